@@ -0,0 +1,221 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import org.openjdk.jmh.annotations.*;
+
+/** JMH benchmarks for the coaccess build and read paths. The input is
+    made by SyntheticData (Zipf-distributed partners and lookups) in a
+    temporary directory, from which a Lucene index and a
+    CoaccessStore are built once per run.
+
+    <p>Run with "ant bench" (see build.xml), which reports the
+    throughput in ops/s, and, through JMH's gc profiler, the
+    allocation per operation (gc.alloc.rate.norm). Extra JMH options
+    can be given in the property bench.args, e.g.
+    -Dbench.args="-f 1 -wi 3 -i 5 Aggregate".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoaccessBenchmark {
+
+    /** The synthetic data, and the index and store built from them */
+    @State(Scope.Benchmark)
+    public static class Data {
+	@Param({"20000"})
+	public int articles;
+	@Param({"200"})
+	public int partners;
+
+	File dir;
+	int[] years = {2003, 2004, 2005};
+	/** The articles that have data, and their per-year lists */
+	String[] aids;
+	String[][] yearData;
+	/** The per-year lists joined with "\n:\n", as in the old
+	    COACCESS field */
+	String[] joined;
+	/** The aggregated lists, encoded */
+	byte[][] records;
+	/** Lookups, in a Zipf-distributed order, with some unknown IDs */
+	String[] lookups;
+	CoaccessIndex index;
+	CoaccessStore store;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+	    dir = File.createTempFile("coaccess-bench", "");
+	    dir.delete();
+	    SyntheticData syn = new SyntheticData(articles, partners, 1.0, 1);
+	    syn.writeYears(dir, years);
+
+	    File[] ydirs = new File[years.length];
+	    for(int i=0; i<years.length; i++) ydirs[i] = new File(dir, "" + years[i]);
+	    final Vector<String> av = new Vector<String>();
+	    final Vector<String[]> dv = new Vector<String[]>();
+	    new YearMerger(ydirs).run(new YearMerger.Handler() {
+		    void handle(String aid, String[] v) {
+			av.add(aid);
+			dv.add(v);
+		    }
+		});
+	    aids = av.toArray(new String[0]);
+	    yearData = dv.toArray(new String[0][]);
+	    joined = new String[aids.length];
+	    records = new byte[aids.length][];
+	    for(int i=0; i<aids.length; i++) {
+		StringBuffer b = new StringBuffer();
+		for(String y: yearData[i]) b.append(y).append("\n:\n");
+		joined[i] = b.toString();
+		records[i] = SearchFiles.aggregate(yearData[i]).encode(100, 0);
+	    }
+
+	    lookups = new String[100000];
+	    Random r = new Random(2);
+	    for(int i=0; i<lookups.length; i++) {
+		lookups[i] = (r.nextInt(20)==0) ? "9999." + r.nextInt(100000) : syn.nextAid();
+	    }
+
+	    File indexDir = new File(dir, "index");
+	    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	    iwc.setOpenMode(OpenMode.CREATE);
+	    IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), iwc);
+	    File storeDir = new File(dir, "store");
+	    CoaccessStore.Writer sw = new CoaccessStore.Writer(storeDir);
+	    for(int i=0; i<aids.length; i++) {
+		IndexFiles.storeRecord(writer, null, aids[i], records[i]);
+		sw.add(aids[i], records[i]);
+	    }
+	    writer.forceMerge(1);
+	    writer.close();
+	    sw.close();
+	    IndexFiles.writeAidFiles(indexDir);
+	    index = new CoaccessIndex(indexDir, 60000);
+	    store = new CoaccessStore(storeDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+	    index.close();
+	    store.close();
+	    delete(dir);
+	}
+
+	private static void delete(File f) {
+	    File[] files = f.listFiles();
+	    if (files!=null) for(File g: files) delete(g);
+	    f.delete();
+	}
+    }
+
+    /** Each thread's position in the input */
+    @State(Scope.Thread)
+    public static class Cursor {
+	int i = 0;
+	int next(int n) {
+	    if (i >= n) i = 0;
+	    return i++;
+	}
+    }
+
+    /** Each thread's reader of the first year's files, opened once
+	per iteration and read forward, as IndexFiles reads them; after
+	the last article, it starts over with a new reader */
+    @State(Scope.Thread)
+    public static class JoinedReader {
+	IndexFiles.JoinedFileAccess fa;
+	/** The next article to read */
+	int i;
+
+	@Setup(Level.Iteration)
+	public void open(Data d) {
+	    fa = new IndexFiles.JoinedFileAccess(new File(d.dir, "" + d.years[0]));
+	    i = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void close() throws IOException {
+	    fa.closeAll();
+	}
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, Integer>> aggregateCounts(Data d, Cursor c) {
+	return SearchFiles.aggregateCounts(d.joined[c.next(d.joined.length)]);
+    }
+
+    @Benchmark
+    public String consolidate(Data d, Cursor c) {
+	return SearchFiles.consolidate(d.yearData[c.next(d.yearData.length)], 100);
+    }
+
+    /** Aggregating and encoding one article, as IndexFiles does */
+    @Benchmark
+    public byte[] aggregateEncode(Data d, Cursor c) {
+	return SearchFiles.aggregate(d.yearData[c.next(d.yearData.length)]).encode(100, 0);
+    }
+
+    /** Reading the next 1000 articles' lists for one year, in order,
+	through JoinedFileAccess.read() (reported per article) */
+    @Benchmark
+    @OperationsPerInvocation(1000)
+    public int joinedFileRead(Data d, JoinedReader jr) throws IOException {
+	if (jr.i + 1000 > d.aids.length) {
+	    jr.close();
+	    jr.open(d);
+	}
+	int len = 0;
+	for(int end = jr.i + 1000; jr.i < end; jr.i++) {
+	    String s = jr.fa.read(d.aids[jr.i]);
+	    if (s!=null) len += s.length();
+	}
+	return len;
+    }
+
+    /** Decoding a stored record, entry by entry */
+    @Benchmark
+    public int decodeRecord(Data d, Cursor c) throws IOException {
+	byte[] b = d.records[c.next(d.records.length)];
+	CoaccessRecord rec = new CoaccessRecord(b, 0, b.length);
+	int sum = 0;
+	while(rec.next()) sum += rec.count() + rec.aid().length();
+	return sum;
+    }
+
+    /** What CoaccessServlet.getRawData() does, with the Lucene index */
+    @Benchmark
+    public String getRawDataIndex(Data d, Cursor c) throws IOException {
+	return d.index.getRawData(d.lookups[c.next(d.lookups.length)]);
+    }
+
+    /** What CoaccessServlet.getRawData() does, with the store */
+    @Benchmark
+    public String getRawDataStore(Data d, Cursor c) throws IOException {
+	return d.store.getRawData(d.lookups[c.next(d.lookups.length)]);
+    }
+
+    /** A batch lookup of 100 articles (reported per article) */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public CoaccessRecord[] getRecordsIndex(Data d, Cursor c) throws IOException {
+	int start = c.next(d.lookups.length - 100);
+	return d.index.getRecords(Arrays.copyOfRange(d.lookups, start, start + 100));
+    }
+
+    @Benchmark
+    public boolean bloomFilter(Data d, Cursor c) throws IOException {
+	return d.index.mightContain(d.lookups[c.next(d.lookups.length)]);
+    }
+}
@@ -0,0 +1,221 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A dictionary of article IDs (both old-style, like hep-th/9901001,
+    and new-style, like 1203.4567), mapping each of them to a dense
+    integer ordinal 0 thru n-1, so that code which handles many
+    articles can work with int arrays instead of hashing Strings.
+
+    <p>The ordinals are the positions of the IDs in byte order (for
+    ASCII IDs, the same as String order). The dictionary is made of two
+    files, read through memory mapping:
+    <ul>
+    <li>aids.dat - the IDs, sorted, in UTF-8, concatenated
+    <li>aids.idx - (n+1) big-endian ints; the i-th ID occupies bytes
+    [idx[i], idx[i+1]) of aids.dat
+    </ul>
+    Thus ordinal-&gt;ID takes O(1), and ID-&gt;ordinal is a binary
+    search, O(log n). No data are copied onto the heap.
+
+    <p>IndexFiles writes the dictionary into the index directory (from
+    the index's terms, after the index has been built), where TwoHop
+    numbers the rows of its matrix by it; CoaccessStore has it as part
+    of the store. The ordinals are only
+    meaningful together with the dictionary they came from: a rebuilt
+    index has a new dictionary, and the same article may get a
+    different ordinal.
+ */
+public class AidDictionary {
+
+    static final String AIDS_DAT = "aids.dat", AIDS_IDX = "aids.idx";
+
+    final File dir;
+    private final ByteBuffer aids, aidsIdx;
+    /** The number of articles */
+    private final int n;
+
+    /** Maps the dictionary files in the specified directory */
+    public AidDictionary(File _dir) throws IOException {
+	dir = _dir;
+	aids = map(new File(dir, AIDS_DAT));
+	aidsIdx = map(new File(dir, AIDS_IDX));
+	n = aidsIdx.capacity()/4 - 1;
+	if (n < 0 || aidsIdx.getInt(4*n) != aids.capacity()) {
+	    throw new IOException("Inconsistent file sizes in article ID dictionary " + dir);
+	}
+    }
+
+    /** Does the directory contain a dictionary? */
+    static boolean exists(File dir) {
+	return new File(dir, AIDS_DAT).exists() && new File(dir, AIDS_IDX).exists();
+    }
+
+    static MappedByteBuffer map(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    long len = raf.length();
+	    if (len > Integer.MAX_VALUE) throw new IOException("File " + f + " is too large to map (" + len + " bytes)");
+	    return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, len);
+	} finally {
+	    // the mapping stays valid after the channel is closed
+	    raf.close();
+	}
+    }
+
+    /** The number of articles in the dictionary */
+    public int size() {
+	return n;
+    }
+
+    /** Finds the ordinal of an article.
+	@return The ordinal (0 thru n-1), or -1 if not found */
+    public int ord(String aid) {
+	int ord = find(toBytes(aid), 0);
+	return (ord < 0) ? -1 : ord;
+    }
+
+    /** Converts several IDs to ordinals, in one sorted pass: each
+	binary search starts where the previous one has ended.
+	@return An array with one element per ID, in the same order;
+	-1 for IDs that are not found
+     */
+    public int[] ords(String[] aids) {
+	int[] ords = new int[aids.length];
+	int lo = 0;
+	for(int i: CoaccessSource.sortedOrder(aids)) {
+	    int ord = find(toBytes(aids[i]), lo);
+	    if (ord < 0) {
+		ords[i] = -1;
+		lo = -ord - 1;
+	    } else {
+		ords[i] = lo = ord;
+	    }
+	}
+	return ords;
+    }
+
+    /** Binary search in the dictionary, from position lo on.
+	@return The ordinal of the key if found; otherwise,
+	(-(insertion point) - 1) */
+    int find(byte[] key, int lo) {
+	int hi = n-1;
+	while(lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    int c = compareAt(mid, key);
+	    if (c < 0) lo = mid + 1;
+	    else if (c > 0) hi = mid - 1;
+	    else return mid;
+	}
+	return -(lo + 1);
+    }
+
+    /** Compares the ord-th stored ID with key, as unsigned bytes */
+    private int compareAt(int ord, byte[] key) {
+	int start = aidsIdx.getInt(4*ord), end = aidsIdx.getInt(4*ord + 4);
+	int len = end - start;
+	int m = Math.min(len, key.length);
+	for(int i=0; i<m; i++) {
+	    int c = (aids.get(start + i) & 0xFF) - (key[i] & 0xFF);
+	    if (c != 0) return c;
+	}
+	return len - key.length;
+    }
+
+    /** The article ID with the specified ordinal */
+    public String get(int ord) {
+	int start = aidsIdx.getInt(4*ord), end = aidsIdx.getInt(4*ord + 4);
+	byte[] b = new byte[end - start];
+	for(int i=0; i<b.length; i++) b[i] = aids.get(start + i);
+	try {
+	    return new String(b, "UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+    static byte[] toBytes(String aid) {
+	try {
+	    return aid.getBytes("UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+    /** Compares two byte arrays as unsigned bytes, i.e. in the order
+	in which the IDs are stored */
+    static int compareBytes(byte[] a, byte[] b) {
+	int m = Math.min(a.length, b.length);
+	for(int i=0; i<m; i++) {
+	    int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+	    if (c != 0) return c;
+	}
+	return a.length - b.length;
+    }
+
+    /** Writes a dictionary. The IDs must be added in increasing byte
+	order, without repetitions; the ordinal of each ID is the number
+	of IDs added before it. The files are written under temporary
+	names, and renamed by close(), so that a dictionary that is
+	being replaced stays whole (and a mapped one valid) meanwhile.
+     */
+    static class Writer {
+	private final File dir;
+	private final DataOutputStream aidsOut, aidsIdxOut;
+	private int pos = 0;
+	private byte[] last = null;
+	private int cnt = 0;
+
+	Writer(File _dir) throws IOException {
+	    dir = _dir;
+	    if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+	    aidsOut = open(tmpFile(dir, AIDS_DAT));
+	    aidsIdxOut = open(tmpFile(dir, AIDS_IDX));
+	}
+
+	private static File tmpFile(File dir, String name) {
+	    return new File(dir, name + ".tmp");
+	}
+
+	private static DataOutputStream open(File f) throws IOException {
+	    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+	}
+
+	/** Appends the next ID.
+	    @return Its ordinal */
+	int add(byte[] aid) throws IOException {
+	    if (last != null && compareBytes(last, aid) >= 0) {
+		throw new IOException("Article IDs added to the dictionary out of order: '" + new String(aid, "UTF-8") + "' after '" + new String(last, "UTF-8") + "'");
+	    }
+	    aidsIdxOut.writeInt(pos);
+	    aidsOut.write(aid);
+	    pos += aid.length;
+	    last = aid;
+	    return cnt++;
+	}
+
+	/** Finishes the files, and moves them in place of the old
+	    dictionary, if any
+	    @return The number of IDs written */
+	int close() throws IOException {
+	    aidsIdxOut.writeInt(pos);
+	    aidsOut.close();
+	    aidsIdxOut.close();
+	    rename(AIDS_DAT);
+	    rename(AIDS_IDX);
+	    return cnt;
+	}
+
+	private void rename(String name) throws IOException {
+	    File tmp = tmpFile(dir, name), f = new File(dir, name);
+	    if (!tmp.renameTo(f)) {
+		f.delete();
+		if (!tmp.renameTo(f)) throw new IOException("Cannot rename " + tmp + " to " + f);
+	    }
+	}
+    }
+}
@@ -0,0 +1,143 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+/** A version of CoaccessServlet that does the lookups off the
+    container's request threads, using the Servlet 3.0 asynchronous
+    API (so it needs Tomcat 7 or later, and async-supported in
+    web.xml).
+
+    <p>Each request is put into asynchronous mode, and its lookup is
+    handed to a dedicated thread pool of a fixed size, with a bounded
+    queue. The container thread is released at once, so slow disk
+    reads in the index only hold up the pool's threads, rather than
+    exhausting Tomcat's pool and stalling unrelated requests. When
+    the queue is full, the request is turned away right away with 503
+    (Service Unavailable) and a Retry-After header; a request that
+    has not been answered within the timeout also gets a 503.
+
+    <p>The parameters (init-params in web.xml) are "threads" (the
+    pool size), "queueSize" and "timeoutMsec". The counters of
+    accepted, rejected, timed out and failed requests, as well as
+    the current queue depth, are shown by a request with
+    stats=true.
+ */
+public class AsyncCoaccessServlet extends CoaccessServlet {
+
+    static final int THREADS = 8, QUEUE_SIZE = 200;
+    static final long TIMEOUT_MSEC = 10 * 1000;
+
+    private ThreadPoolExecutor executor = null;
+    private long timeoutMsec = TIMEOUT_MSEC;
+
+    final AtomicLong accepted = new AtomicLong(), rejected = new AtomicLong(),
+	timedOut = new AtomicLong(), failed = new AtomicLong();
+
+    public void init(ServletConfig config) throws ServletException {
+	super.init(config);
+	int threads = getIntParam(config, "threads", THREADS);
+	int queueSize = getIntParam(config, "queueSize", QUEUE_SIZE);
+	timeoutMsec = getIntParam(config, "timeoutMsec", (int)TIMEOUT_MSEC);
+	final AtomicInteger cnt = new AtomicInteger();
+	executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					  new ArrayBlockingQueue<Runnable>(queueSize),
+					  new ThreadFactory() {
+					      public Thread newThread(Runnable r) {
+						  Thread t = new Thread(r, "coaccess-lookup-" + cnt.incrementAndGet());
+						  t.setDaemon(true);
+						  return t;
+					      }
+					  },
+					  new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public void destroy() {
+	if (executor!=null) {
+	    executor.shutdown();
+	    try {
+		executor.awaitTermination(timeoutMsec, TimeUnit.MILLISECONDS);
+	    } catch(InterruptedException ex) {}
+	}
+	super.destroy();
+    }
+
+    public void service(final HttpServletRequest request, final HttpServletResponse response) {
+	if (executor==null || !request.isAsyncSupported()) {
+	    // e.g. async-supported is not set in web.xml
+	    super.service(request, response);
+	    return;
+	}
+
+	final AsyncContext ac = request.startAsync();
+	ac.setTimeout(timeoutMsec);
+	// set by whichever comes first: the worker, or the timeout
+	final AtomicBoolean done = new AtomicBoolean(false);
+	ac.addListener(new AsyncListener() {
+		public void onTimeout(AsyncEvent e) throws IOException {
+		    if (!done.compareAndSet(false, true)) return;
+		    timedOut.incrementAndGet();
+		    sendUnavailable(response, "Timed out");
+		    ac.complete();
+		}
+		public void onError(AsyncEvent e) throws IOException {
+		    done.set(true);
+		}
+		public void onComplete(AsyncEvent e) {}
+		public void onStartAsync(AsyncEvent e) {}
+	    });
+
+	try {
+	    executor.execute(new Runnable() {
+		    public void run() {
+			if (done.get()) return; // already timed out in the queue
+			try {
+			    byte[] body = respond(request);
+			    if (!done.compareAndSet(false, true)) return;
+			    try {
+				response.setContentType("text/plain");
+				OutputStream aout = response.getOutputStream();
+				aout.write(body);
+				aout.close();
+			    } finally {
+				ac.complete();
+			    }
+			} catch(Exception e) {
+			    failed.incrementAndGet();
+			    if (!done.compareAndSet(false, true)) return;
+			    sendError(response, e);
+			    ac.complete();
+			}
+		    }
+		});
+	    accepted.incrementAndGet();
+	} catch(RejectedExecutionException ex) {
+	    rejected.incrementAndGet();
+	    done.set(true);
+	    sendUnavailable(response, "Too many requests");
+	    ac.complete();
+	}
+    }
+
+    private void sendUnavailable(HttpServletResponse response, String msg) {
+	try {
+	    response.setHeader("Retry-After", "1");
+	    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+	} catch(IOException ex) {}
+    }
+
+    String getStats() {
+	String s = super.getStats();
+	if (executor==null) return s;
+	return s + "executor: threads=" + executor.getPoolSize() +
+	    " active=" + executor.getActiveCount() +
+	    " queued=" + executor.getQueue().size() +
+	    " queueFree=" + executor.getQueue().remainingCapacity() +
+	    " accepted=" + accepted.get() + " rejected=" + rejected.get() +
+	    " timedOut=" + timedOut.get() + " failed=" + failed.get() + "\n";
+    }
+}
@@ -0,0 +1,142 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.io.*;
+
+/** A Bloom filter over the article IDs present in a coaccess index
+    (or store), so that requests for unknown IDs (new papers,
+    malformed IDs, crawlers), which are a large share of the traffic,
+    can be answered without touching the index at all. A "no" from
+    the filter is always right; a "yes" is wrong with the probability
+    of about FPP, and then the index lookup simply finds nothing.
+
+    <p>The filter is written by IndexFiles, as the file aids.bloom in
+    the index (or store) directory. Its format (big-endian) is: int
+    MAGIC, long stamp, int k (number of hash functions), int n (number
+    of 64-bit words), and n longs of bits. For a Lucene index, the
+    stamp is the generation of the commit from which the filter was
+    built; CoaccessIndex only uses a filter whose stamp matches the
+    commit it is reading, since a filter made for an older commit
+    could wrongly reject articles added since.
+
+    <p>With the default FPP of 1%, the filter takes about 10 bits per
+    article, i.e. some 2.5 MB for 2 million articles.
+ */
+class BloomFilter {
+
+    static final String FILE = "aids.bloom";
+    static final double FPP = 0.01;
+    private static final int MAGIC = 0x426c6f31; // "Blo1"
+
+    private final long[] bits;
+    private final int k;
+    /** The number of bits, i.e. 64*bits.length */
+    private final long m;
+    /** Identifies the data the filter has been built from */
+    final long stamp;
+
+    /** Creates an empty filter sized for the expected number of
+	elements and the desired false positive probability */
+    BloomFilter(int expected, double fpp, long _stamp) {
+	long mm = (long)Math.ceil(-Math.max(expected, 1) * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+	bits = new long[(int)((mm + 63) / 64)];
+	m = 64L * bits.length;
+	k = Math.max(1, (int)Math.round((double)m / Math.max(expected, 1) * Math.log(2)));
+	stamp = _stamp;
+    }
+
+    private BloomFilter(long[] _bits, int _k, long _stamp) {
+	bits = _bits;
+	k = _k;
+	m = 64L * bits.length;
+	stamp = _stamp;
+    }
+
+    /** Computes a 64-bit hash of the string, whose two halves are used
+	as independent 32-bit hashes in double hashing */
+    private static long hash(String s) {
+	int h1 = 0x9747b28c, h2 = 0x811c9dc5;
+	for(int i=0; i<s.length(); i++) {
+	    int c = s.charAt(i);
+	    h1 = (h1 ^ c) * 0x5bd1e995;
+	    h1 ^= h1 >>> 15;
+	    h2 = (h2 ^ c) * 0x01000193;
+	}
+	h1 ^= h1 >>> 13;
+	h1 *= 0x85EBCA6B;
+	h1 ^= h1 >>> 16;
+	h2 ^= h2 >>> 16;
+	h2 *= 0xC2B2AE35;
+	h2 ^= h2 >>> 13;
+	return ((long)h1 << 32) | (h2 & 0xFFFFFFFFL);
+    }
+
+    void add(String aid) {
+	long h = hash(aid);
+	long a = h >>> 32, b = h & 0xFFFFFFFFL;
+	for(int i=0; i<k; i++) {
+	    long pos = (a + i*b) % m;
+	    bits[(int)(pos >>> 6)] |= 1L << pos;
+	}
+    }
+
+    /** @return false if the article is definitely not in the set */
+    boolean mightContain(String aid) {
+	long h = hash(aid);
+	long a = h >>> 32, b = h & 0xFFFFFFFFL;
+	for(int i=0; i<k; i++) {
+	    long pos = (a + i*b) % m;
+	    if ((bits[(int)(pos >>> 6)] & (1L << pos)) == 0) return false;
+	}
+	return true;
+    }
+
+    /** Writes the filter to a temporary file, and then renames it, so
+	that a reader never sees a partially written filter */
+    void write(File f) throws IOException {
+	File tmp = new File(f.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeLong(stamp);
+	    out.writeInt(k);
+	    out.writeInt(bits.length);
+	    for(long w: bits) out.writeLong(w);
+	} finally {
+	    out.close();
+	}
+	if (!tmp.renameTo(f)) {
+	    f.delete();
+	    if (!tmp.renameTo(f)) throw new IOException("Cannot rename " + tmp + " to " + f);
+	}
+    }
+
+    /** Reads only the stamp of a filter written by write()
+	@return The stamp, or -1 if the file does not exist */
+    static long readStamp(File f) throws IOException {
+	if (!f.exists()) return -1;
+	DataInputStream in = new DataInputStream(new FileInputStream(f));
+	try {
+	    if (in.readInt() != MAGIC) throw new IOException("Not a Bloom filter file: " + f);
+	    return in.readLong();
+	} finally {
+	    in.close();
+	}
+    }
+
+    /** Reads a filter written by write()
+	@return The filter, or null if the file does not exist */
+    static BloomFilter read(File f) throws IOException {
+	if (!f.exists()) return null;
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+	try {
+	    if (in.readInt() != MAGIC) throw new IOException("Not a Bloom filter file: " + f);
+	    long stamp = in.readLong();
+	    int k = in.readInt();
+	    long[] bits = new long[in.readInt()];
+	    for(int i=0; i<bits.length; i++) bits[i] = in.readLong();
+	    return new BloomFilter(bits, k, stamp);
+	} finally {
+	    in.close();
+	}
+    }
+}
@@ -0,0 +1,814 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/** Builds one year's directory of coaccess data (one joined file per
+    prefix, in the format read by IndexFiles.JoinedFileAccess and
+    YearMerger) from the usage log, in Java. This replaces the
+    _phase1/_phase2/_phase3 temporary files, the external sort, and
+    the per-article append-mode files of server/annual-coaccess.py.
+
+    <p>The input is a stream of "user aid time" lines (the _phase1
+    format: the user's cookie or IP hash, the article ID, and the
+    access time in seconds). The counting rule is that of the Python
+    script: a user's views are split into sessions (with -gap SEC, at
+    every pause longer than SEC; by default, each user's views make up
+    one session, as in the script), repeated views of the same article
+    in a session are counted once, sessions with more than maxDocs
+    (200) distinct articles are skipped (as robots), and every pair
+    of distinct articles in a session adds 1 to both articles'
+    counts for each other. Each article's top maxCnt (100) partners
+    are written, by count in descending order.
+
+    <p>The work is done in three passes, each reading its input
+    sequentially, once:
+    <ol>
+    <li>The input is read, the article IDs are numbered, and the
+    (user, time, article) tuples are collected in fixed-size arrays;
+    each full buffer is sorted by user and time, and written to a
+    "run" file, by a worker thread, while the reader goes on with
+    another buffer.
+    <li>The article numbers are replaced by their ranks in the
+    (prefix, article ID) order. The tuple runs are merged, which
+    brings each user's views together, in time order; the sessions
+    are cut, and their pairs are put, as (rank, rank) longs, into
+    fixed-size buffers, which are sorted, and written (with the
+    counts of duplicate pairs) to pair runs, by the worker threads.
+    Each pair run remembers where each prefix's section starts.
+    <li>The prefixes are shared out among the worker threads; each
+    one merges its prefix's sections of all pair runs, sums up the
+    counts, selects each article's top partners, and writes
+    prefix.txt. Since the ranks follow the article IDs, the files come
+    out sorted, as YearMerger requires.
+    </ol>
+    Only the buffers, and a dictionary of the article IDs, are held
+    in memory; users are only known by 64-bit hashes of their IDs.
+
+    <p>Usage:
+    <pre>
+    CoaccessBuilder -out DIR [-aids FILE] [-tmp DIR] [-gap SEC] [-maxdocs N] [-maxcnt N] [-buffer N] [-threads N] [INPUT ...]
+    </pre>
+    The input files may be gzipped (*.gz); without any, the standard
+    input is read. With -aids, only the articles listed in FILE (one
+    ID per line) are counted. -buffer is the number of tuples or pairs
+    in one in-memory buffer (1M by default); there are threads+1 of
+    them, each taking 28 bytes per tuple, or 8 per pair. The
+    temporary files go to a new subdirectory of -tmp (DIR/_tmp by
+    default), which is deleted at the end; so several builds can
+    share -tmp.
+ */
+public class CoaccessBuilder {
+
+    /** The default max number of distinct articles in a session that
+	is counted */
+    static final int MAX_DOCS = 200;
+    /** The default number of partners written for each article */
+    static final int MAX_CNT = 100;
+
+    final File outDir, tmpDir;
+    /** This run's own subdirectory of tmpDir, for the runs */
+    private File runDir;
+    final int nThreads, bufferSize, maxDocs, maxCnt;
+    /** The max pause (in seconds) within a session; 0 for one
+	session per user */
+    final long gap;
+    /** The articles to count, or null for all */
+    final Set<String> valid;
+
+    /** The article IDs seen, numbered in the order first seen */
+    private final HashMap<String,Integer> aidNums = new HashMap<String,Integer>();
+    private final Vector<String> aids = new Vector<String>();
+    /** The article IDs, by rank (set by rankAids()) */
+    private String[] ranked;
+
+    /** The prefixes, in order; and the first rank of each (with
+	firstRank[prefixes.length] being the number of articles) */
+    private String[] prefixes;
+    private int[] firstRank;
+
+    private ExecutorService pool;
+    private final Vector<Future<?>> pending = new Vector<Future<?>>();
+
+    /** Counters, for the report */
+    int lines = 0, badLines = 0, sessions = 0, skippedSessions = 0;
+    long pairs = 0;
+
+    CoaccessBuilder(File _outDir, File _tmpDir, Set<String> _valid, long _gap, int _maxDocs, int _maxCnt,
+		    int _bufferSize, int _nThreads) {
+	outDir = _outDir;
+	tmpDir = _tmpDir;
+	valid = _valid;
+	gap = _gap;
+	maxDocs = _maxDocs;
+	maxCnt = _maxCnt;
+	bufferSize = _bufferSize;
+	nThreads = _nThreads;
+    }
+
+    /** Writes x in the variable-length format of
+	CoaccessRecord.writeVInt(), for longs */
+    static void writeVLong(OutputStream out, long x) throws IOException {
+	while((x & ~0x7FL) != 0) {
+	    out.write((int)((x & 0x7F) | 0x80));
+	    x >>>= 7;
+	}
+	out.write((int)x);
+    }
+
+    static long readVLong(InputStream in) throws IOException {
+	long x = 0;
+	for(int shift=0; ; shift+=7) {
+	    int b = in.read();
+	    if (b < 0) throw new EOFException();
+	    x |= (long)(b & 0x7F) << shift;
+	    if ((b & 0x80) == 0) return x;
+	}
+    }
+
+    /** A 64-bit hash of a user ID (FNV-1a, with a final mix) */
+    static long userHash(String s, int start, int end) {
+	long h = 0xcbf29ce484222325L;
+	for(int i=start; i<end; i++) {
+	    h ^= s.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	h ^= (h >>> 33);
+	h *= 0xff51afd7ed558ccdL;
+	return h ^ (h >>> 33);
+    }
+
+    /** Submits a task to the worker pool, remembering it so that its
+	errors are reported */
+    private void submit(Callable<Object> task) {
+	pending.add(pool.submit(task));
+    }
+
+    /** Waits for all the tasks submitted so far
+	@throws IOException if any of them has failed */
+    private void waitForTasks() throws IOException {
+	try {
+	    for(Future<?> f: pending) f.get();
+	} catch(InterruptedException ex) {
+	    throw new InterruptedIOException();
+	} catch(ExecutionException ex) {
+	    Throwable c = ex.getCause();
+	    if (c instanceof IOException) throw (IOException)c;
+	    throw new IOException(c);
+	} finally {
+	    pending.clear();
+	}
+    }
+
+    /** Takes a free buffer from the queue, rethrowing the errors of
+	the tasks that have failed so far (which would otherwise never
+	put their buffers back) */
+    private <T> T take(BlockingQueue<T> free) throws IOException {
+	try {
+	    while(true) {
+		T b = free.poll(1, TimeUnit.SECONDS);
+		if (b != null) return b;
+		for(Future<?> f: pending) {
+		    if (f.isDone()) f.get();
+		}
+	    }
+	} catch(InterruptedException ex) {
+	    throw new InterruptedIOException();
+	} catch(ExecutionException ex) {
+	    Throwable c = ex.getCause();
+	    if (c instanceof IOException) throw (IOException)c;
+	    throw new IOException(c);
+	}
+    }
+
+    //---- pass 1: tuples
+
+    /** A buffer of (user, time, article) tuples */
+    static class TupleBuffer {
+	final long[] user, time;
+	final int[] aid;
+	/** Scratch space for sorting */
+	final int[] order, tmp;
+	int n = 0;
+
+	TupleBuffer(int size) {
+	    user = new long[size];
+	    time = new long[size];
+	    aid = new int[size];
+	    order = new int[size];
+	    tmp = new int[size];
+	}
+
+	boolean isFull() {
+	    return n == user.length;
+	}
+
+	void add(long u, long t, int a) {
+	    user[n] = u;
+	    time[n] = t;
+	    aid[n] = a;
+	    n++;
+	}
+
+	private int compare(int i, int j) {
+	    if (user[i] != user[j]) return user[i] < user[j] ? -1 : 1;
+	    if (time[i] != time[j]) return time[i] < time[j] ? -1 : 1;
+	    return aid[i] - aid[j];
+	}
+
+	/** Sorts the tuples (by user, time and article), by a bottom-up
+	    merge sort of their positions */
+	void sort() {
+	    int[] a = order, b = tmp;
+	    for(int i=0; i<n; i++) a[i] = i;
+	    for(int w=1; w<n; w*=2) {
+		for(int lo=0; lo<n; lo+=2*w) {
+		    int mid = Math.min(lo+w, n), hi = Math.min(lo+2*w, n);
+		    int i = lo, j = mid, k = lo;
+		    while(i < mid && j < hi) b[k++] = (compare(a[i], a[j]) <= 0) ? a[i++] : a[j++];
+		    while(i < mid) b[k++] = a[i++];
+		    while(j < hi) b[k++] = a[j++];
+		}
+		int[] t = a;
+		a = b;
+		b = t;
+	    }
+	    if (a != order) System.arraycopy(a, 0, order, 0, n);
+	}
+
+	/** Sorts the tuples, and writes them to a run file */
+	void write(File f) throws IOException {
+	    sort();
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+	    try {
+		out.writeInt(n);
+		for(int k=0; k<n; k++) {
+		    int i = order[k];
+		    out.writeLong(user[i]);
+		    out.writeLong(time[i]);
+		    out.writeInt(aid[i]);
+		}
+	    } finally {
+		out.close();
+	    }
+	    n = 0;
+	}
+    }
+
+    /** The article's number, or -1 if it is not to be counted */
+    private int aidNum(String aid) {
+	Integer k = aidNums.get(aid);
+	if (k != null) return k;
+	if ((valid != null && !valid.contains(aid)) || IndexFiles.getPrefix(aid) == null) return -1;
+	k = aids.size();
+	aidNums.put(aid, k);
+	aids.add(aid);
+	return k;
+    }
+
+    /** Parses a time stamp, ignoring any fractional part */
+    private static long parseTime(String s) {
+	int dot = s.indexOf('.');
+	return Long.parseLong(dot < 0 ? s : s.substring(0, dot));
+    }
+
+    /** Reads the input, and writes the sorted tuple runs.
+	@param inputs The input files; "-" stands for the standard input
+	@return The run files */
+    Vector<File> readTuples(Vector<String> inputs) throws IOException {
+	final Vector<File> runs = new Vector<File>();
+	final BlockingQueue<TupleBuffer> free = new ArrayBlockingQueue<TupleBuffer>(nThreads + 1);
+	for(int i=0; i<=nThreads; i++) free.add(new TupleBuffer(bufferSize));
+	TupleBuffer buf = take(free);
+	for(String name: inputs) {
+	    BufferedReader r = name.equals("-") ?
+		new BufferedReader(new InputStreamReader(System.in, "UTF-8"), 1<<16) : open(new File(name));
+	    String s;
+	    while((s = r.readLine()) != null) {
+		lines++;
+		String[] v = s.trim().split("\\s+");
+		if (v.length < 3) {
+		    badLines++;
+		    continue;
+		}
+		long t;
+		try {
+		    t = parseTime(v[2]);
+		} catch(NumberFormatException ex) {
+		    badLines++;
+		    continue;
+		}
+		int a = aidNum(v[1]);
+		if (a < 0) continue;
+		buf.add(userHash(v[0], 0, v[0].length()), t, a);
+		if (buf.isFull()) {
+		    spillTuples(buf, runs, free);
+		    buf = take(free);
+		}
+	    }
+	    r.close();
+	}
+	if (buf.n > 0) spillTuples(buf, runs, free);
+	waitForTasks();
+	return runs;
+    }
+
+    private void spillTuples(final TupleBuffer buf, Vector<File> runs, final BlockingQueue<TupleBuffer> free) {
+	final File f = new File(runDir, "tuples-" + runs.size() + ".run");
+	runs.add(f);
+	submit(new Callable<Object>() {
+		public Object call() throws IOException {
+		    buf.write(f);
+		    free.add(buf);
+		    return null;
+		}
+	    });
+    }
+
+    /** Sorts the articles by prefix and ID, and sets up prefixes[]
+	and firstRank[]
+	@return The rank of each article number */
+    int[] rankAids() {
+	final int n = aids.size();
+	final String[] pre = new String[n];
+	Integer[] byRank = new Integer[n];
+	for(int i=0; i<n; i++) {
+	    pre[i] = IndexFiles.getPrefix(aids.elementAt(i));
+	    byRank[i] = i;
+	}
+	Arrays.sort(byRank, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    int c = pre[a].compareTo(pre[b]);
+		    return (c != 0) ? c : aids.elementAt(a).compareTo(aids.elementAt(b));
+		}
+	    });
+	int[] rank = new int[n];
+	Vector<String> pv = new Vector<String>();
+	Vector<Integer> fv = new Vector<Integer>();
+	for(int r=0; r<n; r++) {
+	    int a = byRank[r];
+	    rank[a] = r;
+	    if (r==0 || !pre[a].equals(pre[byRank[r-1]])) {
+		pv.add(pre[a]);
+		fv.add(r);
+	    }
+	}
+	prefixes = pv.toArray(new String[0]);
+	firstRank = new int[prefixes.length + 1];
+	for(int p=0; p<prefixes.length; p++) firstRank[p] = fv.elementAt(p);
+	firstRank[prefixes.length] = n;
+	ranked = new String[n];
+	for(int i=0; i<n; i++) ranked[rank[i]] = aids.elementAt(i);
+	return rank;
+    }
+
+    //---- pass 2: sessions and pairs
+
+    /** A cursor over a tuple run */
+    static class TupleRun {
+	final DataInputStream in;
+	int left;
+	long user, time;
+	int aid;
+
+	TupleRun(File f) throws IOException {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+	    left = in.readInt();
+	}
+
+	boolean next() throws IOException {
+	    if (left == 0) {
+		in.close();
+		return false;
+	    }
+	    left--;
+	    user = in.readLong();
+	    time = in.readLong();
+	    aid = in.readInt();
+	    return true;
+	}
+    }
+
+    /** A buffer of pairs, each packed into a long as (rank1 << 32) |
+	rank2 */
+    static class PairBuffer {
+	final long[] pairs;
+	int n = 0;
+
+	PairBuffer(int size) {
+	    pairs = new long[size];
+	}
+    }
+
+    /** A pair run: the file, and where each prefix's section starts
+	in it, and how many entries it has */
+    static class PairRun {
+	final File file;
+	final long[] offset;
+	final int[] count;
+
+	PairRun(File _file, int nPrefixes) {
+	    file = _file;
+	    offset = new long[nPrefixes];
+	    count = new int[nPrefixes];
+	}
+    }
+
+    /** Counts the bytes written through it */
+    static class CountingOutputStream extends FilterOutputStream {
+	long written = 0;
+	CountingOutputStream(OutputStream out) {
+	    super(out);
+	}
+	public void write(int b) throws IOException {
+	    out.write(b);
+	    written++;
+	}
+	public void write(byte[] b, int off, int len) throws IOException {
+	    out.write(b, off, len);
+	    written += len;
+	}
+    }
+
+    /** Sorts the pairs, and writes them to a run file, as (key delta,
+	count) vlongs, with the delta starting from 0 at each prefix's
+	section, so that each section can be read by itself */
+    void writePairs(PairBuffer buf, PairRun run) throws IOException {
+	long[] a = buf.pairs;
+	int n = buf.n;
+	Arrays.sort(a, 0, n);
+	CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 1<<16));
+	try {
+	    int p = -1;
+	    long prev = 0;
+	    for(int i=0; i<n; ) {
+		long key = a[i];
+		int j = i + 1;
+		while(j < n && a[j] == key) j++;
+		int r = (int)(key >>> 32);
+		if (p < 0 || r >= firstRank[p+1]) {
+		    // the first pair of a new prefix
+		    do p++; while(r >= firstRank[p+1]);
+		    run.offset[p] = out.written;
+		    prev = 0;
+		}
+		writeVLong(out, key - prev);
+		writeVLong(out, j - i);
+		run.count[p]++;
+		prev = key;
+		i = j;
+	    }
+	} finally {
+	    out.close();
+	}
+	buf.n = 0;
+    }
+
+    private void spillPairs(final PairBuffer buf, Vector<PairRun> runs, final BlockingQueue<PairBuffer> free) {
+	final PairRun run = new PairRun(new File(runDir, "pairs-" + runs.size() + ".run"), prefixes.length);
+	runs.add(run);
+	submit(new Callable<Object>() {
+		public Object call() throws IOException {
+		    writePairs(buf, run);
+		    free.add(buf);
+		    return null;
+		}
+	    });
+    }
+
+    /** Merges the tuple runs, cuts the sessions, and writes the
+	sorted pair runs
+	@param rank The rank of each article number
+	@return The pair runs */
+    Vector<PairRun> makePairs(Vector<File> tupleRuns, int[] rank) throws IOException {
+	PriorityQueue<TupleRun> queue = new PriorityQueue<TupleRun>(Math.max(1, tupleRuns.size()), new Comparator<TupleRun>() {
+		public int compare(TupleRun a, TupleRun b) {
+		    if (a.user != b.user) return a.user < b.user ? -1 : 1;
+		    if (a.time != b.time) return a.time < b.time ? -1 : 1;
+		    return a.aid - b.aid;
+		}
+	    });
+	for(File f: tupleRuns) {
+	    TupleRun t = new TupleRun(f);
+	    if (t.next()) queue.add(t);
+	}
+	Vector<PairRun> runs = new Vector<PairRun>();
+	BlockingQueue<PairBuffer> free = new ArrayBlockingQueue<PairBuffer>(nThreads + 1);
+	for(int i=0; i<=nThreads; i++) free.add(new PairBuffer(bufferSize));
+	PairBuffer buf = take(free);
+
+	// the current session's articles (ranks), with repeats
+	int[] docs = new int[256];
+	int nDocs = 0;
+	long user = 0, last = 0;
+	boolean any = false;
+	while(true) {
+	    TupleRun t = queue.poll();
+	    boolean newSession = (t == null) || !any || t.user != user || (gap > 0 && t.time - last > gap);
+	    if (newSession && nDocs > 0) {
+		// the distinct articles of the session
+		Arrays.sort(docs, 0, nDocs);
+		int d = 0;
+		for(int i=0; i<nDocs; i++) {
+		    if (i==0 || docs[i] != docs[i-1]) docs[d++] = docs[i];
+		}
+		sessions++;
+		if (d > maxDocs) {
+		    skippedSessions++;
+		} else {
+		    for(int i=0; i<d; i++) {
+			for(int j=0; j<d; j++) {
+			    if (i == j) continue;
+			    if (buf.n == buf.pairs.length) {
+				spillPairs(buf, runs, free);
+				buf = take(free);
+			    }
+			    buf.pairs[buf.n++] = ((long)docs[i] << 32) | docs[j];
+			}
+		    }
+		    pairs += (long)d * (d-1);
+		}
+		nDocs = 0;
+	    }
+	    if (t == null) break;
+	    if (nDocs == docs.length) docs = Arrays.copyOf(docs, 2*nDocs);
+	    docs[nDocs++] = rank[t.aid];
+	    user = t.user;
+	    last = t.time;
+	    any = true;
+	    if (t.next()) queue.add(t);
+	}
+	if (buf.n > 0) spillPairs(buf, runs, free);
+	waitForTasks();
+	return runs;
+    }
+
+    //---- pass 3: the joined files
+
+    /** A cursor over one prefix's section of a pair run */
+    static class PairSection {
+	final InputStream in;
+	int left;
+	long key = 0;
+	int count;
+
+	PairSection(PairRun run, int p) throws IOException {
+	    FileInputStream fin = new FileInputStream(run.file);
+	    fin.getChannel().position(run.offset[p]);
+	    in = new BufferedInputStream(fin, 1<<14);
+	    left = run.count[p];
+	}
+
+	boolean next() throws IOException {
+	    if (left == 0) {
+		in.close();
+		return false;
+	    }
+	    left--;
+	    key += readVLong(in);
+	    count = (int)readVLong(in);
+	    return true;
+	}
+    }
+
+    /** Merges a prefix's sections of several pair runs, summing up
+	the counts of each pair */
+    static class SectionMerger {
+	private final PriorityQueue<PairSection> queue;
+	/** The current pair, and its total count */
+	long key;
+	int count;
+
+	SectionMerger(List<PairRun> runs, int p) throws IOException {
+	    queue = new PriorityQueue<PairSection>(Math.max(1, runs.size()), new Comparator<PairSection>() {
+		    public int compare(PairSection a, PairSection b) {
+			return (a.key < b.key) ? -1 : (a.key > b.key ? 1 : 0);
+		    }
+		});
+	    for(PairRun run: runs) {
+		if (run.count[p] == 0) continue;
+		PairSection s = new PairSection(run, p);
+		if (s.next()) queue.add(s);
+	    }
+	}
+
+	/** Advances to the next pair
+	    @return false if there are no more pairs */
+	boolean next() throws IOException {
+	    PairSection s = queue.poll();
+	    if (s == null) return false;
+	    key = s.key;
+	    count = 0;
+	    while(s != null && s.key == key) {
+		count += s.count;
+		if (s.next()) queue.add(s);
+		s = queue.poll();
+	    }
+	    if (s != null) queue.add(s);
+	    return true;
+	}
+    }
+
+    /** The max number of pair runs merged at once; if there are more,
+	they are merged into fewer, larger runs first, so that the
+	number of open files (and of read buffers) stays bounded */
+    static final int MAX_FANIN = 64;
+
+    /** Merges several pair runs into one, section by section */
+    void mergeRuns(List<PairRun> runs, PairRun out) throws IOException {
+	CountingOutputStream w = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(out.file), 1<<16));
+	try {
+	    for(int p=0; p<prefixes.length; p++) {
+		SectionMerger m = new SectionMerger(runs, p);
+		out.offset[p] = w.written;
+		long prev = 0;
+		while(m.next()) {
+		    writeVLong(w, m.key - prev);
+		    writeVLong(w, m.count);
+		    out.count[p]++;
+		    prev = m.key;
+		}
+	    }
+	} finally {
+	    w.close();
+	}
+	for(PairRun r: runs) r.file.delete();
+    }
+
+    /** Merges groups of pair runs, in parallel, until there are at
+	most MAX_FANIN of them */
+    Vector<PairRun> reduceRuns(Vector<PairRun> runs) throws IOException {
+	int gen = 0;
+	while(runs.size() > MAX_FANIN) {
+	    Vector<PairRun> merged = new Vector<PairRun>();
+	    for(int i=0; i<runs.size(); i+=MAX_FANIN) {
+		final List<PairRun> group = runs.subList(i, Math.min(i+MAX_FANIN, runs.size()));
+		final PairRun out = new PairRun(new File(runDir, "pairs-" + gen + "-" + merged.size() + ".run"), prefixes.length);
+		merged.add(out);
+		submit(new Callable<Object>() {
+			public Object call() throws IOException {
+			    mergeRuns(group, out);
+			    return null;
+			}
+		    });
+	    }
+	    waitForTasks();
+	    runs = merged;
+	    gen++;
+	}
+	return runs;
+    }
+
+    /** Writes the top partners of article a, from the (count, rank)
+	entries in e[0..n), each packed as (-count << 32) | rank, so
+	that sorting puts the highest counts first, and breaks ties by
+	the partner's ID */
+    private void writeArticle(Writer w, int a, long[] e, int n) throws IOException {
+	Arrays.sort(e, 0, n);
+	w.write(": " + ranked[a] + "\n");
+	for(int i=0; i<n && i<maxCnt; i++) {
+	    int b = (int)(e[i] & 0xFFFFFFFFL);
+	    int c = -(int)(e[i] >> 32);
+	    w.write(ranked[b] + " " + c + "\n");
+	}
+    }
+
+    /** Merges a prefix's sections of all pair runs into prefix.txt
+	@return The number of articles written */
+    int writePrefix(int p, Vector<PairRun> runs) throws IOException {
+	SectionMerger m = new SectionMerger(runs, p);
+	if (!m.next()) return 0;
+	Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outDir, prefixes[p] + ".txt")), "UTF-8"), 1<<16);
+	int cnt = 0;
+	try {
+	    long[] e = new long[1024];
+	    int n = 0, a = (int)(m.key >>> 32);
+	    boolean more = true;
+	    while(more) {
+		if (n == e.length) e = Arrays.copyOf(e, 2*n);
+		e[n++] = ((long)-m.count << 32) | (m.key & 0xFFFFFFFFL);
+		more = m.next();
+		if (!more || (int)(m.key >>> 32) != a) {
+		    // all of article a's pairs have been read
+		    writeArticle(w, a, e, n);
+		    cnt++;
+		    n = 0;
+		    a = (int)(m.key >>> 32);
+		}
+	    }
+	} finally {
+	    w.close();
+	}
+	return cnt;
+    }
+
+    /** Writes all prefixes' files, in parallel
+	@return The number of articles written */
+    int writeFiles(final Vector<PairRun> runs) throws IOException {
+	final int[] cnt = new int[prefixes.length];
+	for(int p=0; p<prefixes.length; p++) {
+	    final int q = p;
+	    submit(new Callable<Object>() {
+		    public Object call() throws IOException {
+			cnt[q] = writePrefix(q, runs);
+			return null;
+		    }
+		});
+	}
+	waitForTasks();
+	int total = 0;
+	for(int c: cnt) total += c;
+	return total;
+    }
+
+    /** Runs all three passes
+	@return The number of articles written */
+    int run(Vector<String> inputs) throws IOException {
+	if (!outDir.exists() && !outDir.mkdirs()) throw new IOException("Cannot create directory " + outDir);
+	if (!tmpDir.exists() && !tmpDir.mkdirs()) throw new IOException("Cannot create directory " + tmpDir);
+	runDir = File.createTempFile("coaccess-", ".tmp", tmpDir);
+	if (!runDir.delete() || !runDir.mkdir()) throw new IOException("Cannot create directory " + runDir);
+	pool = Executors.newFixedThreadPool(nThreads);
+	Vector<File> tupleRuns = null;
+	Vector<PairRun> pairRuns = null;
+	try {
+	    long t0 = System.currentTimeMillis();
+	    tupleRuns = readTuples(inputs);
+	    long t1 = System.currentTimeMillis();
+	    System.out.println("Read " + lines + " lines (" + badLines + " bad ones), with " + aids.size() +
+			       " articles, into " + tupleRuns.size() + " runs in " + (t1-t0) + " msec");
+	    int[] rank = rankAids();
+	    pairRuns = makePairs(tupleRuns, rank);
+	    System.out.println("Found " + sessions + " sessions (skipped " + skippedSessions + " with over " + maxDocs +
+			       " articles), with " + pairs + " pairs, in " + pairRuns.size() + " runs");
+	    pairRuns = reduceRuns(pairRuns);
+	    long t2 = System.currentTimeMillis();
+	    System.out.println("Sorted the pairs into " + pairRuns.size() + " runs in " + (t2-t1) + " msec");
+	    int cnt = writeFiles(pairRuns);
+	    long t3 = System.currentTimeMillis();
+	    System.out.println("Wrote the lists of " + cnt + " articles, for " + prefixes.length + " prefixes, to " +
+			       outDir + " in " + (t3-t2) + " msec");
+	    return cnt;
+	} finally {
+	    pool.shutdownNow();
+	    if (tupleRuns != null) for(File f: tupleRuns) f.delete();
+	    if (pairRuns != null) for(PairRun r: pairRuns) r.file.delete();
+	    // the runs of an interrupted reduceRuns()
+	    File[] left = runDir.listFiles();
+	    if (left != null) for(File f: left) f.delete();
+	    runDir.delete();
+	}
+    }
+
+    /** Opens an input file, unzipping it if its name ends with .gz */
+    static BufferedReader open(File f) throws IOException {
+	InputStream in = new FileInputStream(f);
+	if (f.getName().endsWith(".gz")) in = new GZIPInputStream(in, 1<<16);
+	return new BufferedReader(new InputStreamReader(in, "UTF-8"), 1<<16);
+    }
+
+    static public void main(String argv[]) throws IOException {
+	String out = null, tmp = null, aidFile = null;
+	long gap = 0;
+	int maxDocs = MAX_DOCS, maxCnt = MAX_CNT, bufferSize = 1 << 20;
+	int nThreads = Runtime.getRuntime().availableProcessors();
+	int i = 0;
+	for(; i<argv.length && argv[i].startsWith("-") && argv[i].length() > 1; i++) {
+	    if (argv[i].equals("-out")) out = argv[++i];
+	    else if (argv[i].equals("-tmp")) tmp = argv[++i];
+	    else if (argv[i].equals("-aids")) aidFile = argv[++i];
+	    else if (argv[i].equals("-gap")) gap = Long.parseLong(argv[++i]);
+	    else if (argv[i].equals("-maxdocs")) maxDocs = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-maxcnt")) maxCnt = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-buffer")) bufferSize = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-threads")) nThreads = Integer.parseInt(argv[++i]);
+	    else throw new IllegalArgumentException("Unknown option: " + argv[i]);
+	}
+	if (out==null) throw new IllegalArgumentException("Usage: CoaccessBuilder -out DIR [-aids FILE] [-tmp DIR] [-gap SEC] [-maxdocs N] [-maxcnt N] [-buffer N] [-threads N] [INPUT ...]");
+	File outDir = new File(out);
+	File tmpDir = (tmp != null) ? new File(tmp) : new File(outDir, "_tmp");
+
+	Set<String> valid = null;
+	if (aidFile != null) {
+	    valid = new HashSet<String>();
+	    BufferedReader r = open(new File(aidFile));
+	    String s;
+	    while((s = r.readLine()) != null) {
+		s = s.trim();
+		if (s.length() > 0) valid.add(s);
+	    }
+	    r.close();
+	    System.out.println("Read " + valid.size() + " valid article IDs from " + aidFile);
+	}
+
+	Vector<String> inputs = new Vector<String>();
+	for(; i<argv.length; i++) inputs.add(argv[i]);
+	if (inputs.size()==0) inputs.add("-");
+
+	CoaccessBuilder b = new CoaccessBuilder(outDir, tmpDir, valid, gap, maxDocs, maxCnt, bufferSize, Math.max(1, nThreads));
+	b.run(inputs);
+	if (tmp == null) tmpDir.delete();
+    }
+}
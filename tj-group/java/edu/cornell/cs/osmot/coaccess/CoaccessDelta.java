@@ -0,0 +1,571 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Live updates of the coaccess data between the full rebuilds: the
+    pair counts from the views seen since the last compaction, held in
+    memory, and merged with the stored lists at read time, so that new
+    papers get their partners within minutes rather than at the next
+    rebuild.
+
+    <p>The views come in as "user aid [time]" lines (as read by
+    CoaccessBuilder; the time, in seconds, defaults to now), either
+    posted to CoaccessServlet with append=true, or read from the end
+    of a log file that is being written (see Tailer). They are cut
+    into sessions as by CoaccessBuilder -gap: a user's session ends
+    after a pause of more than gap seconds; an article viewed again in
+    the same session is not counted again; and a session that reaches
+    more than maxDocs articles is taken for a robot, and its pairs are
+    taken back (as far as they have not been compacted yet).
+
+    <p>The counts are kept in a map from each article to its
+    partners' counts, split into STRIPES stripes by the hash of the
+    article ID, each with its own lock, so that concurrent updates
+    and reads rarely wait for each other; the sessions are striped
+    the same way, by user.
+
+    <p>Source wraps the stored data (CoaccessIndex, ShardedIndex or
+    CoaccessStore), adding the live counts to an article's stored list
+    (including its retained tail) whenever there are any; such lists
+    are not cached.
+    Every so often, the compactor thread folds the counts into the
+    index (IndexFiles.foldDelta(), as the current year's counts, the
+    way IndexFiles -append does), and reopens the index. Just before
+    folding, it moves the counts out of the live ones into a separate
+    "folding" map, tagged with the version of the index reader then
+    current; they are added to a stored list only if it was read
+    (CoaccessRecord.version) from that version or an earlier one, so
+    that a request sees them exactly once, whether it has got the old
+    reader or the new one. They are forgotten at the next compaction,
+    when no request can hold the old reader any more. The next full
+    rebuild replaces the folded counts with those from the logs. With CoaccessStore, which cannot be updated, the live
+    counts just grow until the servlet is restarted; they are also
+    lost when it is.
+ */
+final class CoaccessDelta {
+
+    static final int STRIPES = 64;
+    /** The default max pause (in seconds) within a session */
+    static final long GAP_SEC = 30 * 60;
+
+    /** A part of the counts: each article's partners, with their
+	counts; and the counts being (or last) folded into the index */
+    private static final class Stripe {
+	final HashMap<String, HashMap<String,int[]>> lists = new HashMap<String, HashMap<String,int[]>>();
+	final HashMap<String,Folded> folding = new HashMap<String,Folded>();
+    }
+
+    /** The counts of one article that have been folded into an index
+	whose reader had the version before */
+    private static final class Folded {
+	final HashMap<String,int[]> counts;
+	final long before;
+	Folded(HashMap<String,int[]> _counts, long _before) {
+	    counts = _counts;
+	    before = _before;
+	}
+    }
+
+    private static final class Session {
+	long last;
+	final ArrayList<String> docs = new ArrayList<String>();
+	boolean robot = false;
+    }
+
+    private static final class SessionStripe {
+	final HashMap<String,Session> sessions = new HashMap<String,Session>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final SessionStripe[] sessionStripes = new SessionStripe[STRIPES];
+
+    final long gap;
+    final int maxDocs;
+
+    /** The latest view time seen, in seconds */
+    private final AtomicLong latest = new AtomicLong();
+
+    final AtomicLong views = new AtomicLong(), badLines = new AtomicLong(),
+	folded = new AtomicLong(), compactions = new AtomicLong(), failed = new AtomicLong();
+
+    private Tailer tailer = null;
+    private ScheduledExecutorService compactor = null;
+
+    CoaccessDelta(long _gap, int _maxDocs) {
+	gap = _gap;
+	maxDocs = _maxDocs;
+	for(int i=0; i<STRIPES; i++) {
+	    stripes[i] = new Stripe();
+	    sessionStripes[i] = new SessionStripe();
+	}
+    }
+
+    private static int stripe(String s) {
+	int h = s.hashCode();
+	h ^= (h >>> 16);
+	return h & (STRIPES - 1);
+    }
+
+    /** counts{a}{b} += inc; the entries that drop to 0 are removed */
+    private void add(String a, String b, int inc) {
+	Stripe st = stripes[stripe(a)];
+	synchronized(st) {
+	    HashMap<String,int[]> m = st.lists.get(a);
+	    if (m == null) {
+		if (inc <= 0) return;
+		m = new HashMap<String,int[]>();
+		st.lists.put(a, m);
+	    }
+	    int[] c = m.get(b);
+	    if (c == null) {
+		if (inc > 0) m.put(b, new int[] {inc});
+	    } else {
+		c[0] += inc;
+		if (c[0] <= 0) m.remove(b);
+	    }
+	    if (m.isEmpty()) st.lists.remove(a);
+	}
+    }
+
+    /** Records one view.
+	@param time In seconds
+     */
+    void view(String user, String aid, long time) {
+	views.incrementAndGet();
+	long t;
+	while((t = latest.get()) < time && !latest.compareAndSet(t, time));
+	SessionStripe ss = sessionStripes[stripe(user)];
+	synchronized(ss) {
+	    Session s = ss.sessions.get(user);
+	    if (s == null || time - s.last > gap) {
+		s = new Session();
+		ss.sessions.put(user, s);
+	    }
+	    s.last = Math.max(s.last, time);
+	    if (s.robot || s.docs.contains(aid)) return;
+	    if (s.docs.size() == maxDocs) {
+		// too many articles: take back the session's pairs
+		s.robot = true;
+		for(int i=0; i<s.docs.size(); i++) {
+		    for(int j=0; j<s.docs.size(); j++) {
+			if (i != j) add(s.docs.get(i), s.docs.get(j), -1);
+		    }
+		}
+		s.docs.clear();
+		return;
+	    }
+	    for(String a: s.docs) {
+		add(a, aid, 1);
+		add(aid, a, 1);
+	    }
+	    s.docs.add(aid);
+	}
+    }
+
+    /** Parses and records one "user aid [time]" line
+	@return false if the line is not valid */
+    boolean addLine(String line) {
+	String[] v = line.trim().split("\\s+");
+	if (v.length < 2 || IndexFiles.getPrefix(v[1]) == null) return false;
+	long time = System.currentTimeMillis() / 1000;
+	if (v.length > 2) {
+	    int dot = v[2].indexOf('.');
+	    try {
+		time = Long.parseLong(dot < 0 ? v[2] : v[2].substring(0, dot));
+	    } catch(NumberFormatException ex) {
+		return false;
+	    }
+	}
+	view(v[0], v[1], time);
+	return true;
+    }
+
+    /** Records the views in all lines from the reader
+	@return The number of valid lines */
+    int addLines(BufferedReader r) throws IOException {
+	int cnt = 0;
+	String s;
+	while((s = r.readLine()) != null) {
+	    if (s.trim().length() == 0) continue;
+	    if (addLine(s)) cnt++;
+	    else badLines.incrementAndGet();
+	}
+	return cnt;
+    }
+
+    /** Forgets the sessions that have ended, i.e. have not seen a view
+	for gap seconds before the latest view */
+    void expireSessions() {
+	long now = latest.get();
+	for(SessionStripe ss: sessionStripes) {
+	    synchronized(ss) {
+		Iterator<Session> it = ss.sessions.values().iterator();
+		while(it.hasNext()) {
+		    if (now - it.next().last > gap) it.remove();
+		}
+	    }
+	}
+    }
+
+    /** Are there live (or just folded) counts for this article? */
+    boolean has(String aid) {
+	Stripe st = stripes[stripe(aid)];
+	synchronized(st) {
+	    return st.lists.containsKey(aid) || st.folding.containsKey(aid);
+	}
+    }
+
+    /** Are there live counts for this article, which may change at
+	any time? (The folded ones don't change the served list: it is
+	the same whether they are added to the old stored list or
+	included in the new one.) */
+    boolean hasLive(String aid) {
+	Stripe st = stripes[stripe(aid)];
+	synchronized(st) {
+	    return st.lists.containsKey(aid);
+	}
+    }
+
+    /** Adds the article's live counts to the aggregator, and its
+	folded ones unless the stored list already includes them
+	@param version The version of the reader the stored list has
+	been read from; -1 if there is no stored list
+	@return false if there are none */
+    private boolean addTo(String aid, long version, CountAggregator agg) {
+	Stripe st = stripes[stripe(aid)];
+	synchronized(st) {
+	    HashMap<String,int[]> m = st.lists.get(aid);
+	    Folded f = st.folding.get(aid);
+	    if (f != null && version > f.before) f = null;
+	    if (m == null && f == null) return false;
+	    if (m != null) {
+		for(Map.Entry<String,int[]> e: m.entrySet()) agg.add(e.getKey(), e.getValue()[0]);
+	    }
+	    if (f != null) {
+		for(Map.Entry<String,int[]> e: f.counts.entrySet()) agg.add(e.getKey(), e.getValue()[0]);
+	    }
+	    return true;
+	}
+    }
+
+    /** Adds the live counts to an article's stored list
+	@param base The stored list, or null if there is none
+	@return The merged list (with as many top entries as are
+	stored, and the same retained tail), or base if there are no
+	live counts
+     */
+    CoaccessRecord merge(String aid, CoaccessRecord base) throws IOException {
+	CountAggregator agg = CountAggregator.aggregator();
+	if (!addTo(aid, (base==null) ? -1 : base.version, agg)) return base;
+	int tail = 0;
+	if (base != null) {
+	    tail = base.size() - base.topSize();
+	    while(base.next()) agg.add(base.aid(), base.count());
+	}
+	byte[] b = agg.encode(IndexFiles.MAX_CNT, tail);
+	return new CoaccessRecord(b, 0, b.length);
+    }
+
+    /** A copy of all the live counts, as the "aid count" lines of
+	each article */
+    private Map<String,String> snapshot() {
+	HashMap<String,String> texts = new HashMap<String,String>();
+	for(Stripe st: stripes) {
+	    synchronized(st) {
+		for(Map.Entry<String, HashMap<String,int[]>> e: st.lists.entrySet()) {
+		    StringBuffer b = new StringBuffer();
+		    for(Map.Entry<String,int[]> f: e.getValue().entrySet()) {
+			b.append(f.getKey() + " " + f.getValue()[0] + "\n");
+		    }
+		    texts.put(e.getKey(), b.toString());
+		}
+	    }
+	}
+	return texts;
+    }
+
+    /** Moves the counts of a snapshot out of the live counts, into
+	the folding map, just before they are folded into an index
+	@param before The version of the index's current reader
+     */
+    private void startFolding(Map<String,String> texts, long before) {
+	for(Map.Entry<String,String> e: texts.entrySet()) {
+	    HashMap<String,int[]> counts = new HashMap<String,int[]>();
+	    for(String line: e.getValue().split("\n")) {
+		int sp = line.lastIndexOf(' ');
+		counts.put(line.substring(0, sp), new int[] {Integer.parseInt(line.substring(sp+1))});
+	    }
+	    String a = e.getKey();
+	    Stripe st = stripes[stripe(a)];
+	    synchronized(st) {
+		for(Map.Entry<String,int[]> f: counts.entrySet()) add(a, f.getKey(), -f.getValue()[0]);
+		st.folding.put(a, new Folded(counts, before));
+	    }
+	}
+    }
+
+    /** Moves the counts of a snapshot back into the live counts, if
+	they could not be folded after all */
+    private void undoFolding(Map<String,String> texts) {
+	for(String a: texts.keySet()) {
+	    Stripe st = stripes[stripe(a)];
+	    synchronized(st) {
+		Folded f = st.folding.remove(a);
+		if (f == null) continue;
+		for(Map.Entry<String,int[]> e: f.counts.entrySet()) add(a, e.getKey(), e.getValue()[0]);
+	    }
+	}
+    }
+
+    /** Forgets the counts folded by the previous compaction: by now,
+	every request reads them from the index */
+    private void forgetFolded() {
+	for(Stripe st: stripes) {
+	    synchronized(st) {
+		st.folding.clear();
+	    }
+	}
+    }
+
+    /** Folds the live counts into the index (a CoaccessIndex, or
+	the shards of a ShardedIndex). The counts of articles with no
+	shard for their prefix, and those of a shard that could not be
+	updated (e.g. because it is being rebuilt), stay here, to be
+	tried again next time.
+	@return The number of articles updated */
+    int compact(CoaccessSource base) throws IOException {
+	forgetFolded();
+	Map<String,String> texts = snapshot();
+	if (texts.isEmpty()) return 0;
+	int year = Calendar.getInstance().get(Calendar.YEAR);
+	int n = 0;
+	if (base instanceof ShardedIndex) {
+	    HashMap<String,Map<String,String>> byPrefix = new HashMap<String,Map<String,String>>();
+	    for(Map.Entry<String,String> e: texts.entrySet()) {
+		String prefix = IndexFiles.getPrefix(e.getKey());
+		Map<String,String> m = byPrefix.get(prefix);
+		if (m==null) {
+		    m = new HashMap<String,String>();
+		    byPrefix.put(prefix, m);
+		}
+		m.put(e.getKey(), e.getValue());
+	    }
+	    Map<String,CoaccessIndex> shards = ((ShardedIndex)base).getShards();
+	    for(Map.Entry<String,Map<String,String>> e: byPrefix.entrySet()) {
+		CoaccessIndex s = shards.get(e.getKey());
+		if (s==null) continue;
+		try {
+		    n += fold(s, e.getValue(), year);
+		} catch(IOException ex) {
+		    System.out.println("CoaccessDelta: cannot fold the live counts into the shard for prefix " + e.getKey() + ": " + ex);
+		}
+	    }
+	} else {
+	    n = fold((CoaccessIndex)base, texts, year);
+	}
+	folded.addAndGet(n);
+	compactions.incrementAndGet();
+	return n;
+    }
+
+    /** Folds the counts of a snapshot into one index, and reopens it
+	@return The number of articles updated */
+    private int fold(CoaccessIndex index, Map<String,String> texts, int year) throws IOException {
+	index.refreshNow();
+	long before = index.getVersion();
+	startFolding(texts, before);
+	boolean success = false;
+	try {
+	    IndexFiles.foldDelta(index.indexDir, texts, year);
+	    success = true;
+	} finally {
+	    index.refreshNow();
+	    // unless the commit has gone through (and only, say, the
+	    // Bloom filter could not be written)
+	    if (!success && index.getVersion() == before) undoFolding(texts);
+	}
+	return texts.size();
+    }
+
+    /** Follows a log file of "user aid time" lines that is being
+	written, like tail -f: every second, the lines appended since
+	the last check are recorded. It starts at the end of the file,
+	since the earlier views are (or will be) in the stored data; if
+	the file gets shorter (e.g. it has been rotated), it starts over
+	from its beginning. */
+    class Tailer extends Thread {
+	final File file;
+	volatile boolean stopped = false;
+
+	Tailer(File _file) {
+	    super("coaccess-delta-tailer");
+	    file = _file;
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    long pos = file.length();
+	    byte[] buf = new byte[1 << 20];
+	    while(!stopped) {
+		try {
+		    long len = file.length();
+		    if (len < pos) pos = 0;
+		    while(len > pos && !stopped) {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			int n;
+			try {
+			    raf.seek(pos);
+			    n = raf.read(buf, 0, (int)Math.min(buf.length, len - pos));
+			} finally {
+			    raf.close();
+			}
+			if (n <= 0) break;
+			// only the complete lines
+			int end = n;
+			while(end > 0 && buf[end-1] != '\n') end--;
+			if (end == 0) {
+			    if (n < buf.length) break; // wait for the rest of the line
+			    end = n;                   // a line longer than the buffer
+			}
+			addLines(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, end), "UTF-8")));
+			pos += end;
+		    }
+		    Thread.sleep(1000);
+		} catch(InterruptedException ex) {
+		    return;
+		} catch(IOException ex) {
+		    System.out.println("CoaccessDelta: cannot read " + file + ": " + ex);
+		    try {
+			Thread.sleep(10000);
+		    } catch(InterruptedException ex2) {
+			return;
+		    }
+		}
+	    }
+	}
+    }
+
+    /** Starts the background threads.
+	@param base The stored data; the counts are only compacted if
+	this is a CoaccessIndex or a ShardedIndex
+	@param log A log file to follow, or null
+	@param compactMsec How often to compact the counts into the
+	index (and forget the sessions that have ended)
+     */
+    synchronized void start(final CoaccessSource base, File log, long compactMsec) {
+	if (log != null) {
+	    tailer = new Tailer(log);
+	    tailer.start();
+	}
+	compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "coaccess-delta-compactor");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	compactor.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    expireSessions();
+		    if (!(base instanceof CoaccessIndex || base instanceof ShardedIndex)) return;
+		    try {
+			long t0 = System.currentTimeMillis();
+			int n = compact(base);
+			if (n > 0) System.out.println("CoaccessDelta: folded the live counts of " + n + " articles into the index in " + (System.currentTimeMillis() - t0) + " msec");
+		    } catch(Exception ex) {
+			// e.g. the index is locked by a rebuild; try again next time
+			failed.incrementAndGet();
+			System.out.println("CoaccessDelta: compaction failed: " + ex);
+		    }
+		}
+	    }, compactMsec, compactMsec, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+	if (tailer != null) {
+	    tailer.stopped = true;
+	    tailer.interrupt();
+	    tailer = null;
+	}
+	if (compactor != null) {
+	    compactor.shutdown();
+	    try {
+		compactor.awaitTermination(60, TimeUnit.SECONDS);
+	    } catch(InterruptedException ex) {}
+	    compactor = null;
+	}
+    }
+
+    /** The counters, as shown for a request with stats=true */
+    String stats() {
+	long articles = 0, entries = 0, sessions = 0;
+	for(Stripe st: stripes) {
+	    synchronized(st) {
+		articles += st.lists.size();
+		for(HashMap<String,int[]> m: st.lists.values()) entries += m.size();
+	    }
+	}
+	for(SessionStripe ss: sessionStripes) {
+	    synchronized(ss) {
+		sessions += ss.sessions.size();
+	    }
+	}
+	return "delta: views=" + views.get() + " bad=" + badLines.get() + " sessions=" + sessions +
+	    " articles=" + articles + " entries=" + entries + " folded=" + folded.get() +
+	    " compactions=" + compactions.get() + " failed=" + failed.get();
+    }
+
+    /** The stored data, with the live counts added */
+    static class Source extends CoaccessSource {
+	final CoaccessSource base;
+	final CoaccessDelta delta;
+
+	Source(CoaccessSource _base, CoaccessDelta _delta) {
+	    base = _base;
+	    delta = _delta;
+	}
+
+	CoaccessRecord getRecord(String aid) throws IOException {
+	    CoaccessRecord rec = base.mightContain(aid) ? base.getRecord(aid) : null;
+	    return delta.merge(aid, rec);
+	}
+
+	CoaccessRecord[] getRecords(String[] aids) throws IOException {
+	    CoaccessRecord[] recs = base.getRecords(aids);
+	    for(int i=0; i<aids.length; i++) recs[i] = delta.merge(aids[i], recs[i]);
+	    return recs;
+	}
+
+	YearCounts getYearCounts(String aid) throws IOException {
+	    return base.getYearCounts(aid);
+	}
+
+	CoaccessRecord getTwoHopRecord(String aid) throws IOException {
+	    return base.getTwoHopRecord(aid);
+	}
+
+	int getLastYear() {
+	    return base.getLastYear();
+	}
+
+	boolean mightContain(String aid) throws IOException {
+	    return delta.has(aid) || base.mightContain(aid);
+	}
+
+	boolean isCacheable(String aid) {
+	    return !delta.hasLive(aid) && base.isCacheable(aid);
+	}
+
+	long getGeneration() {
+	    return base.getGeneration();
+	}
+
+	void close() throws IOException {
+	    delta.stop();
+	    base.close();
+	}
+    }
+}
@@ -0,0 +1,346 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/** A shared, reloadable handle on the Lucene index in which the
+    coaccess data are stored. One instance is opened when the servlet
+    is initialized, and is used by all requests, instead of opening a
+    new IndexReader for every lookup.
+
+    <p>The actual IndexSearcher is managed by Lucene's
+    SearcherManager, which reference-counts it: a request acquires the
+    current searcher, and releases it when done. When the index
+    directory changes (e.g. after a rebuild with IndexFiles -update),
+    the new reader is opened with openIfChanged() and swapped in
+    atomically; the old reader is closed once the last in-flight
+    request holding it has released it.
+ */
+class CoaccessIndex extends CoaccessSource {
+
+    final File indexDir;
+    private final Directory dir;
+    private final SearcherManager mgr;
+
+    /** How often (in msec) we check if the index has changed on disk */
+    private final long refreshMsec;
+    private volatile long lastRefreshCheck;
+    /** Incremented every time a new reader is swapped in */
+    private volatile long generation = 0;
+
+    /** The Bloom filter of the article IDs, if there is one that
+	matches the current reader's commit; otherwise null */
+    private volatile BloomFilter filter = null;
+    /** The modification time of the filter file last loaded, i.e.
+	last found to match the commit */
+    private long filterModified = 0;
+    /** The last year included, according to the current commit */
+    private volatile int lastYear = 0;
+
+    /** Only these fields are loaded from a matching document */
+    static final Set<String> fieldsToLoad =
+	new HashSet<String>(Arrays.asList(IndexFiles.Fields.COACCESS_BIN,
+					  IndexFiles.Fields.COACCESS));
+    /** The fields loaded for getYearCounts() */
+    private static final Set<String> yearFieldsToLoad =
+	Collections.singleton(IndexFiles.Fields.COACCESS_YEARS);
+    /** The fields loaded for getTwoHopRecord() */
+    private static final Set<String> twoHopFieldsToLoad =
+	Collections.singleton(IndexFiles.Fields.COACCESS_2HOP);
+
+    /** @param _refreshMsec Check for index changes at most this often.
+	If 0, check on every request.
+     */
+    CoaccessIndex(File _indexDir, long _refreshMsec) throws IOException {
+	indexDir = _indexDir;
+	refreshMsec = _refreshMsec;
+	dir = FSDirectory.open(indexDir);
+	mgr = new SearcherManager(dir, null);
+	mgr.addListener(new ReferenceManager.RefreshListener() {
+		public void beforeRefresh() {}
+		public void afterRefresh(boolean didRefresh) {
+		    if (didRefresh) {
+			// the old filter may miss articles added since
+			filter = null;
+			generation++;
+		    }
+		}
+	    });
+	lastRefreshCheck = System.currentTimeMillis();
+	loadFilter();
+    }
+
+    /** Loads the Bloom filter (written by IndexFiles) if there is one
+	for the commit the current reader is reading, and it has not
+	been loaded yet. Since the filter is written after the commit,
+	it may appear some time after the reader has been reopened;
+	so this is re-tried on every refresh check. The last year
+	included is also taken from the commit here.
+     */
+    private synchronized void loadFilter() throws IOException {
+	long commitGen;
+	IndexSearcher searcher = mgr.acquire();
+	try {
+	    IndexCommit commit = ((DirectoryReader)searcher.getIndexReader()).getIndexCommit();
+	    commitGen = commit.getGeneration();
+	    int last = 0;
+	    String years = commit.getUserData().get(IndexFiles.YEARS_KEY);
+	    if (years!=null) {
+		for(String y: years.split(",")) {
+		    if (y.length()>0) last = Math.max(last, Integer.parseInt(y));
+		}
+	    }
+	    lastYear = last;
+	} finally {
+	    mgr.release(searcher);
+	}
+	BloomFilter f = filter;
+	if (f != null && f.stamp == commitGen) return;
+	File file = new File(indexDir, BloomFilter.FILE);
+	long modified = file.lastModified();
+	if (modified == filterModified) return;
+	// a filter of an older commit is not remembered, since the new
+	// one may be written within the same modification time; only
+	// its stamp is read again on the next check
+	f = null;
+	try {
+	    if (BloomFilter.readStamp(file) == commitGen) f = BloomFilter.read(file);
+	} catch(IOException ex) {
+	    System.out.println("Cannot read Bloom filter " + file + ": " + ex);
+	}
+	if (f != null && f.stamp == commitGen) {
+	    filter = f;
+	    filterModified = modified;
+	} else {
+	    filter = null;
+	}
+    }
+
+    boolean mightContain(String aid) throws IOException {
+	maybeRefresh();
+	BloomFilter f = filter;
+	return f==null || f.mightContain(aid);
+    }
+
+    /** Gets the current searcher, checking first (if it's time to)
+	whether the index has changed. Every call to this method
+	must be matched by a call to release() in a finally clause.
+     */
+    IndexSearcher acquire() throws IOException {
+	maybeRefresh();
+	return mgr.acquire();
+    }
+
+    void release(IndexSearcher searcher) throws IOException {
+	mgr.release(searcher);
+    }
+
+    /** Reopens the reader if the index has changed, and if at
+	least refreshMsec have passed since the last check. If another
+	thread is already refreshing, returns right away, and the
+	caller will use the current searcher.
+     */
+    void maybeRefresh() throws IOException {
+	long now = System.currentTimeMillis();
+	if (now - lastRefreshCheck < refreshMsec) return;
+	lastRefreshCheck = now;
+	mgr.maybeRefresh();
+	loadFilter();
+    }
+
+    /** Reopens the reader right away if the index has changed (e.g.
+	after CoaccessDelta has folded its counts into it), waiting for
+	any refresh already in progress. */
+    void refreshNow() throws IOException {
+	lastRefreshCheck = System.currentTimeMillis();
+	mgr.maybeRefreshBlocking();
+	loadFilter();
+    }
+
+    /** The version of the searcher's reader, which grows with every
+	commit */
+    private static long version(IndexSearcher searcher) {
+	return ((DirectoryReader)searcher.getIndexReader()).getVersion();
+    }
+
+    /** The version of the current reader (see CoaccessRecord.version) */
+    long getVersion() throws IOException {
+	IndexSearcher searcher = mgr.acquire();
+	try {
+	    return version(searcher);
+	} finally {
+	    mgr.release(searcher);
+	}
+    }
+
+    /** Incremented every time maybeRefresh() has reopened the
+	reader */
+    long getGeneration() {
+	return generation;
+    }
+
+    /** Finds the (live) document for the specified article ID, by
+	seeking the term in each segment's terms dictionary directly.
+	@return The top-level doc id, or -1 if there is no match
+     */
+    static int findDoc(IndexSearcher searcher, String aid) throws IOException {
+	Term term = new Term(IndexFiles.Fields.ARXIV_ID, aid);
+	for(AtomicReaderContext ctx: searcher.getIndexReader().leaves()) {
+	    DocsEnum de = ctx.reader().termDocsEnum(term);
+	    if (de==null) continue;
+	    int doc = de.nextDoc();
+	    if (doc != DocIdSetIterator.NO_MORE_DOCS) return ctx.docBase + doc;
+	}
+	return -1;
+    }
+
+    /** Looks up the stored coaccess data for one article.
+	@return The coaccess list, or null if the article is not in
+	the index
+     */
+    CoaccessRecord getRecord(String aid) throws IOException {
+	IndexSearcher searcher = acquire();
+	try {
+	    int doc = findDoc(searcher, aid);
+	    if (doc < 0) return null;
+	    CoaccessRecord rec = getRecord(searcher.doc(doc, fieldsToLoad));
+	    if (rec != null) rec.version = version(searcher);
+	    return rec;
+	} finally {
+	    release(searcher);
+	}
+    }
+
+    /** Looks up several articles with one searcher, in one sorted
+	pass over each segment's terms dictionary: since the IDs are
+	sought in increasing order, each seek continues from where the
+	previous one ended. The stored documents are then loaded in
+	increasing docid order.
+     */
+    CoaccessRecord[] getRecords(String[] aids) throws IOException {
+	Integer[] order = sortedOrder(aids);
+	int[] docs = new int[aids.length];
+	Arrays.fill(docs, -1);
+	IndexSearcher searcher = acquire();
+	try {
+	    for(AtomicReaderContext ctx: searcher.getIndexReader().leaves()) {
+		AtomicReader r = ctx.reader();
+		Terms terms = r.terms(IndexFiles.Fields.ARXIV_ID);
+		if (terms == null) continue;
+		TermsEnum te = terms.iterator(null);
+		DocsEnum de = null;
+		for(int i: order) {
+		    if (docs[i] >= 0) continue; // found in an earlier segment
+		    if (!te.seekExact(new BytesRef(aids[i]))) continue;
+		    de = te.docs(r.getLiveDocs(), de, DocsEnum.FLAG_NONE);
+		    int doc = de.nextDoc();
+		    if (doc != DocIdSetIterator.NO_MORE_DOCS) docs[i] = ctx.docBase + doc;
+		}
+	    }
+
+	    Integer[] byDoc = new Integer[aids.length];
+	    for(int i=0; i<byDoc.length; i++) byDoc[i] = i;
+	    final int[] d = docs;
+	    Arrays.sort(byDoc, new Comparator<Integer>() {
+		    public int compare(Integer a, Integer b) {
+			return d[a] - d[b];
+		    }
+		});
+	    CoaccessRecord[] recs = new CoaccessRecord[aids.length];
+	    long v = version(searcher);
+	    for(int i: byDoc) {
+		if (docs[i] >= 0) recs[i] = getRecord(searcher.doc(docs[i], fieldsToLoad));
+		if (recs[i] != null) recs[i].version = v;
+	    }
+	    return recs;
+	} finally {
+	    release(searcher);
+	}
+    }
+
+    YearCounts getYearCounts(String aid) throws IOException {
+	IndexSearcher searcher = acquire();
+	try {
+	    int doc = findDoc(searcher, aid);
+	    if (doc < 0) return null;
+	    return getYearCounts(searcher.doc(doc, yearFieldsToLoad));
+	} finally {
+	    release(searcher);
+	}
+    }
+
+    CoaccessRecord getTwoHopRecord(String aid) throws IOException {
+	IndexSearcher searcher = acquire();
+	try {
+	    int doc = findDoc(searcher, aid);
+	    if (doc < 0) return null;
+	    BytesRef b = searcher.doc(doc, twoHopFieldsToLoad).getBinaryValue(IndexFiles.Fields.COACCESS_2HOP);
+	    return (b == null) ? null : new CoaccessRecord(b.bytes, b.offset, b.length);
+	} finally {
+	    release(searcher);
+	}
+    }
+
+    int getLastYear() {
+	return lastYear;
+    }
+
+    /** Extracts the per-year counts from a stored document.
+	@return The counts, or null if the document has none
+     */
+    static YearCounts getYearCounts(Document d) throws IOException {
+	BytesRef b = d.getBinaryValue(IndexFiles.Fields.COACCESS_YEARS);
+	return (b == null) ? null : new YearCounts(b.bytes, b.offset, b.length);
+    }
+
+    /** Extracts the coaccess list from a stored document. Documents
+	in indexes built before the binary format was introduced only
+	have the text COACCESS field; for those, the text is converted
+	on the fly. In either case, the returned record is aggregated
+	(CoaccessRecord.aggregated()). The thread's CountAggregator is
+	left alone, so that this can be called while it is in use.
+     */
+    static CoaccessRecord getRecord(Document d) throws IOException {
+	BytesRef b = d.getBinaryValue(IndexFiles.Fields.COACCESS_BIN);
+	if (b != null) return new CoaccessRecord(b.bytes, b.offset, b.length).aggregated();
+	String text = d.get(IndexFiles.Fields.COACCESS);
+	if (text == null) return null;
+	byte[] q = CoaccessRecord.encode(textToList(text), -1);
+	return new CoaccessRecord(q, 0, q.length);
+    }
+
+    /** Converts the old text format into a list. If the text
+	contains per-year sections (separated by "\n:\n"), they are
+	aggregated; but if it is a single section, it has been produced
+	by SearchFiles.consolidate(), and is already merged and sorted,
+	so it is simply parsed, line by line.
+     */
+    private static List<Map.Entry<String, Integer>> textToList(String text) {
+	if (text.indexOf("\n:\n") >= 0) {
+	    CountAggregator agg = new CountAggregator();
+	    agg.addText(text);
+	    return agg.toList(-1);
+	}
+	List<Map.Entry<String, Integer>> list = new ArrayList<Map.Entry<String, Integer>>();
+	for(String line: text.split("\n")) {
+	    int k = line.indexOf(' ');
+	    if (k<0) continue;
+	    list.add(new AbstractMap.SimpleImmutableEntry<String,Integer>(line.substring(0,k), Integer.parseInt(line.substring(k+1).trim())));
+	}
+	return list;
+    }
+
+    /** Closes the searcher manager. Searchers that are still acquired
+	will be closed when released. */
+    void close() throws IOException {
+	mgr.close();
+	dir.close();
+    }
+}
@@ -0,0 +1,276 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** The compact binary encoding of one article's coaccess list, as
+    stored in the COACCESS_BIN field of the coaccess index. It replaces
+    the old text format (lines of "aid count", with years separated
+    by "\n:\n"), which had to be re-parsed with String.split() on every
+    request.
+
+    <p>The list is stored already merged over all years, and sorted by
+    count in descending order, so that the serving code can simply
+    stream the first maxlen entries, without any hashing or sorting;
+    this is marked by the FLAG_AGGREGATED bit in the header. The
+    layout is:
+<pre>
+    byte    format version (FORMAT_V2)
+    byte    flags (FLAG_AGGREGATED, FLAG_TAIL)
+    vint    n, the number of entries
+    vint    (only if FLAG_TAIL is set) the number of top entries to serve
+    n times:
+      vint  length of the partner's article ID, in bytes
+      bytes the article ID (UTF-8; in practice, plain ASCII)
+      vint  the count for the first entry; for each subsequent entry,
+            the difference between the previous count and this one
+</pre>
+    Since the counts are non-increasing, the differences are small
+    non-negative numbers, and mostly fit into one byte each.
+
+    <p>An object of this class is a cursor over one encoded
+    record. It works on a ByteBuffer, so that it can read either from
+    a byte array or from a slice of a memory-mapped file, without
+    copying the data.
+ */
+final class CoaccessRecord {
+
+    /** FORMAT_V1 records have no flags byte; they were always
+	written aggregated. */
+    static final byte FORMAT_V1 = 1, FORMAT_V2 = 2;
+
+    /** The entries have been merged over all years (each partner
+	appears once), and sorted by count in descending order. */
+    static final byte FLAG_AGGREGATED = 0x1;
+
+    /** Only the first few entries are served; the rest are a "tail",
+	retained so that the counts can be updated correctly when a new
+	year's data are merged in (IndexFiles -append). */
+    static final byte FLAG_TAIL = 0x2;
+
+    private final ByteBuffer buf;
+    private final byte flags;
+    /** The number of entries in the list, including the tail */
+    private final int n;
+    /** The number of entries to serve */
+    private final int top;
+    /** The number of entries read so far */
+    private int pos = 0;
+    /** The current entry */
+    private int count = 0, aidStart = 0, aidLen = 0;
+
+    /** The version (DirectoryReader.getVersion()) of the index reader
+	the record was read from, if known, or -1. CoaccessDelta uses it
+	to tell whether the record includes the counts it has folded
+	into the index. */
+    long version = -1;
+
+    /** Scratch space for writeTo(), used when buf has no backing array */
+    private byte[] scratch = null;
+
+    /** Creates a cursor positioned before the first entry.
+	@param _buf A buffer containing the encoded record, between
+	its current position and its limit. The buffer's position will
+	be changed as the record is read.
+     */
+    CoaccessRecord(ByteBuffer _buf) throws IOException {
+	buf = _buf;
+	byte format = buf.get();
+	if (format == FORMAT_V1) {
+	    flags = FLAG_AGGREGATED;
+	} else if (format == FORMAT_V2) {
+	    flags = buf.get();
+	} else {
+	    throw new IOException("Unknown coaccess record format: " + format);
+	}
+	n = readVInt(buf);
+	top = ((flags & FLAG_TAIL) != 0) ? readVInt(buf) : n;
+    }
+
+    CoaccessRecord(byte[] b, int offset, int length) throws IOException {
+	this(ByteBuffer.wrap(b, offset, length));
+    }
+
+    /** The number of (article, count) entries in the list, including
+	the retained tail */
+    int size() {
+	return n;
+    }
+
+    /** The number of entries to serve, i.e. not counting the tail */
+    int topSize() {
+	return top;
+    }
+
+    /** True if the entries are merged and sorted, and can be served
+	as they are. */
+    boolean isAggregated() {
+	return (flags & FLAG_AGGREGATED) != 0;
+    }
+
+    /** Makes sure that a record can be served. The records we write
+	are always aggregated; one that is not (e.g. written by some
+	other tool, with a partner appearing once per year) has its
+	entries merged and sorted here, keeping the same number of top
+	entries and of tail entries at most. Must be called before
+	next(). This uses an aggregator of its own, not the thread's
+	(CountAggregator.aggregator()), which the caller may be filling.
+	@return This record if it is aggregated; otherwise, a new,
+	aggregated one
+     */
+    CoaccessRecord aggregated() throws IOException {
+	if (isAggregated()) return this;
+	CountAggregator agg = new CountAggregator(n);
+	while(next()) agg.add(aid(), count);
+	byte[] b = agg.encode(top, n - top);
+	return new CoaccessRecord(b, 0, b.length);
+    }
+
+    /** Advances to the next entry. This goes through all entries,
+	including the tail; the methods that produce output for the
+	users (writeTo(), toList()) stop at topSize().
+	@return false if there are no more entries */
+    boolean next() {
+	if (pos >= n) return false;
+	aidLen = readVInt(buf);
+	aidStart = buf.position();
+	buf.position(aidStart + aidLen);
+	int d = readVInt(buf);
+	count = (pos==0) ? d : count - d;
+	pos++;
+	return true;
+    }
+
+    /** The coaccess count for the current entry */
+    int count() {
+	return count;
+    }
+
+    /** The article ID for the current entry. This creates a String;
+	the servlet uses writeTo() instead. */
+    String aid() {
+	byte[] b = new byte[aidLen];
+	for(int i=0; i<aidLen; i++) b[i] = buf.get(aidStart + i);
+	try {
+	    return new String(b, "UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+    /** Writes the remaining entries (up to maxlen of them) to the output
+	stream, one "aid count" line per entry, without creating any
+	Strings.
+	@param maxlen The max number of entries to write. If 0 or
+	negative, all entries are written.
+	@return The number of entries written
+    */
+    int writeTo(OutputStream out, int maxlen) throws IOException {
+	int cnt=0;
+	while((maxlen <= 0 || cnt < maxlen) && pos < top && next()) {
+	    writeAid(out);
+	    out.write(' ');
+	    writeInt(out, count);
+	    out.write('\n');
+	    cnt++;
+	}
+	return cnt;
+    }
+
+    private void writeAid(OutputStream out) throws IOException {
+	if (buf.hasArray()) {
+	    out.write(buf.array(), buf.arrayOffset() + aidStart, aidLen);
+	} else {
+	    if (scratch==null || scratch.length < aidLen) scratch = new byte[Math.max(aidLen, 64)];
+	    for(int i=0; i<aidLen; i++) scratch[i] = buf.get(aidStart + i);
+	    out.write(scratch, 0, aidLen);
+	}
+    }
+
+    /** Writes a non-negative integer in decimal notation */
+    private static void writeInt(OutputStream out, int x) throws IOException {
+	byte[] digits = new byte[10];
+	int k = digits.length;
+	do {
+	    digits[--k] = (byte)('0' + x % 10);
+	    x /= 10;
+	} while(x > 0);
+	out.write(digits, k, digits.length - k);
+    }
+
+    /** Converts the remaining entries to a list of (aid, count) pairs,
+	in the same form as returned by SearchFiles.aggregateCounts() */
+    List<Map.Entry<String, Integer>> toList() {
+	List<Map.Entry<String, Integer>> list = new ArrayList<Map.Entry<String, Integer>>(Math.max(top - pos, 0));
+	while(pos < top && next()) {
+	    list.add(new AbstractMap.SimpleImmutableEntry<String,Integer>(aid(), count));
+	}
+	return list;
+    }
+
+    /** Encodes a list of (aid, count) pairs, which must already be
+	aggregated, i.e. contain each partner once, and be sorted by
+	count in descending order. The record is marked with
+	FLAG_AGGREGATED.
+	@param maxCnt Only store this many top entries. If negative,
+	store all.
+     */
+    static byte[] encode(List<Map.Entry<String, Integer>> list, int maxCnt) {
+	int n = (maxCnt >= 0) ? Math.min(maxCnt, list.size()) : list.size();
+	String[] aids = new String[n];
+	int[] counts = new int[n];
+	int i = 0;
+	for(Map.Entry<String, Integer> e: list) {
+	    if (i==n) break;
+	    aids[i] = e.getKey();
+	    counts[i] = e.getValue();
+	    i++;
+	}
+	return encode(aids, counts, n, n);
+    }
+
+    /** Encodes the first n entries of a list given as two parallel
+	arrays; the same requirements apply as for the List version.
+	@param top Only this many entries are to be served; the rest
+	(if top &lt; n) are stored as the tail
+     */
+    static byte[] encode(String[] aids, int[] counts, int n, int top) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 16 * n);
+	out.write(FORMAT_V2);
+	out.write(top < n ? (FLAG_AGGREGATED | FLAG_TAIL) : FLAG_AGGREGATED);
+	writeVInt(out, n);
+	if (top < n) writeVInt(out, top);
+	for(int i=0; i<n; i++) {
+	    byte[] b;
+	    try {
+		b = aids[i].getBytes("UTF-8");
+	    } catch (UnsupportedEncodingException ex) {
+		throw new AssertionError(ex);
+	    }
+	    if (i>0 && counts[i] > counts[i-1]) throw new IllegalArgumentException("List not sorted by count, at " + aids[i]);
+	    writeVInt(out, b.length);
+	    out.write(b, 0, b.length);
+	    writeVInt(out, (i==0) ? counts[i] : counts[i-1] - counts[i]);
+	}
+	return out.toByteArray();
+    }
+
+    /** Writes a non-negative int, 7 bits per byte, low-order bits first */
+    static void writeVInt(ByteArrayOutputStream out, int x) {
+	while ((x & ~0x7F) != 0) {
+	    out.write((x & 0x7F) | 0x80);
+	    x >>>= 7;
+	}
+	out.write(x);
+    }
+
+    static int readVInt(ByteBuffer buf) {
+	int x = 0;
+	for(int shift=0; ; shift += 7) {
+	    byte b = buf.get();
+	    x |= (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0) return x;
+	}
+    }
+}
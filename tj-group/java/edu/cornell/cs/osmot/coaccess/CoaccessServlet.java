@@ -2,6 +2,7 @@ package edu.cornell.cs.osmot.coaccess;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -23,79 +24,472 @@ public class CoaccessServlet extends HttpServlet {
 ) {
 
        try { 
-	   String aid = request.getParameter(AID);
-	   if (aid==null) {
-	       throw new IllegalArgumentException(AID + " not supplied");
-	   }
-	   aid = aid.trim();
-	   boolean raw = getBoolean(request, "raw", false);
-	   int maxlen = (int)getLong(request, "maxlen", 20);
-
-	   String rawData = getRawData(aid);
-
+	   byte[] body = respond(request);
 	   response.setContentType("text/plain");
 	   OutputStream aout = response.getOutputStream();
-	   PrintWriter w = new PrintWriter(aout);
-
-	   if (rawData==null) {
-	       if (raw)  {
-		   String result =  "NO MATCH FOR arxiv_id='" + aid + "'";
-		   w.println(result);
-	       }
-	   } else if (raw) {
-	       w.println(rawData);
-	   } else {
-		List<Map.Entry<String, Integer>> list= SearchFiles.aggregateCounts(rawData);
-		int cnt=0;
-		for(Map.Entry<String, Integer> e: list) {
-		    w.println(e.getKey() + " " + e.getValue());
-		    cnt++;
-		    if (maxlen>0 && cnt>=maxlen) break;
+	   aout.write(body);
+	   aout.close();
+       } catch(Exception e) {
+	   sendError(response, e);
+       }
+
+
+   }
+
+    /** Reports a failed request to the client */
+    static void sendError(HttpServletResponse response, Exception e) {
+	try {
+	    e.printStackTrace(System.out);
+	    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "error in CoaccessServlet: " + e); //e.getMessage());
+	} catch(IOException ex) {};
+    }
+
+    /** Does all the work of a request: parses the parameters, looks
+	up the data, and renders the response's text. This is kept
+	apart from the writing of the response, so that the lookup can
+	also be done on another thread (see AsyncCoaccessServlet).
+     */
+    byte[] respond(HttpServletRequest request) throws IOException {
+	ByteArrayOutputStream aout = new ByteArrayOutputStream(8192);
+	if (getBoolean(request, "stats", false)) {
+	    aout.write(getStats().getBytes("UTF-8"));
+	    return aout.toByteArray();
+	}
+	if (getBoolean(request, "append", false)) {
+	    aout.write(("added " + append(request) + " views\n").getBytes("UTF-8"));
+	    return aout.toByteArray();
+	}
+
+	String[] aids = getAids(request);
+	boolean batch = (aids.length > 1) || "POST".equals(request.getMethod());
+	boolean raw = getBoolean(request, "raw", false);
+	int maxlen = raw? 0 : (int)getLong(request, "maxlen", 20);
+	YearWindow window = getYearWindow(request);
+	int hops = (int)getLong(request, "hops", 1);
+	if (hops != 1 && hops != 2) throw new IllegalArgumentException("hops must be 1 or 2: " + hops);
+	if (hops == 2 && window != null) throw new IllegalArgumentException("Two-hop lists have no per-year counts");
+
+	if (getBoolean(request, "merge", false)) {
+	    if (hops != 1 || window != null) throw new IllegalArgumentException("merge cannot be combined with hops or a window of years");
+	    double[] weights = getWeights(request, aids.length);
+	    boolean integral = true;
+	    for(double w: weights) if (w != Math.floor(w)) integral = false;
+	    aout.write(getMergedText(aids, weights, maxlen, integral));
+	    return aout.toByteArray();
+	}
+
+	if (!batch) {
+	    String aid = aids[0];
+	    byte[] text = (hops==2) ? getTwoHopText(aid, maxlen) :
+		(window!=null) ? getWindowText(aid, maxlen, window) : getText(aid, maxlen);
+	    if (text==RecordCache.NOT_FOUND) {
+		if (raw)  {
+		    String result =  "NO MATCH FOR arxiv_id='" + aid + "'\n";
+		    aout.write(result.getBytes("UTF-8"));
 		}
-	   }
+	    } else {
+		aout.write(text);
+	    }
+	} else {
+	    // One block per article, in the order requested, each
+	    // starting with a ": AID" header line (as in the joined
+	    // per-prefix files); the block is empty if the article is
+	    // not known.
+	    byte[][] texts;
+	    if (hops==2) {
+		texts = new byte[aids.length][];
+		for(int i=0; i<aids.length; i++) texts[i] = getTwoHopText(aids[i], maxlen);
+	    } else if (window!=null) {
+		texts = new byte[aids.length][];
+		for(int i=0; i<aids.length; i++) texts[i] = getWindowText(aids[i], maxlen, window);
+	    } else {
+		texts = getTexts(aids, maxlen);
+	    }
+	    for(int i=0; i<aids.length; i++) {
+		aout.write((": " + aids[i] + "\n").getBytes("UTF-8"));
+		aout.write(texts[i]);
+	    }
+	}
+	return aout.toByteArray();
+    }
 
-	   w.close();
+    /** A query over a window of years: the counts from the years
+	from..to, each year weighted by decay^(to-year). Given by the
+	request parameters "from" and "to" (which default to the first
+	and the last year of the data), or "years" (the last N years,
+	ending with "to"), and "decay" (1 by default, i.e. plain counts). */
+    static class YearWindow {
+	final int from, to, years;
+	final double decay;
+	YearWindow(int _from, int _to, int _years, double _decay) {
+	    from = _from;
+	    to = _to;
+	    years = _years;
+	    decay = _decay;
+	}
+    }
 
+    /** @return The window requested, or null if none of its
+	parameters has been given */
+    private static YearWindow getYearWindow(HttpServletRequest request) {
+	if (request.getParameter("from")==null && request.getParameter("to")==null &&
+	    request.getParameter("years")==null && request.getParameter("decay")==null) return null;
+	double decay = getDouble(request, "decay", 1.0);
+	if (!(decay > 0 && decay <= 1)) throw new IllegalArgumentException("decay must be in (0,1]: " + decay);
+	return new YearWindow((int)getLong(request, "from", 0), (int)getLong(request, "to", 0),
+			      (int)getLong(request, "years", 0), decay);
+    }
 
-       } catch(Exception e) {
-	   try {
-	       e.printStackTrace(System.out);
-	       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "error in CoaccessServlet: " + e); //e.getMessage());
-	   } catch(IOException ex) {};
-       }
+    /** Renders an article's coaccess list for a window of years,
+	from its per-year counts. These are not cached.
+	@return The text, or RecordCache.NOT_FOUND
+     */
+    static byte[] getWindowText(String aid, int maxlen, YearWindow w) throws IOException {
+	CoaccessSource src = getSource();
+	if (!src.mightContain(aid)) {
+	    filtered.incrementAndGet();
+	    return RecordCache.NOT_FOUND;
+	}
+	YearCounts yc = src.getYearCounts(aid);
+	if (yc==null) return RecordCache.NOT_FOUND;
+	int to = (w.to != 0) ? w.to : Math.max(src.getLastYear(), yc.lastYear());
+	int from = (w.from != 0) ? w.from : (w.years > 0) ? to - w.years + 1 : yc.firstYear();
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	yc.writeTo(out, yc.scores(from, to, w.decay), w.decay == 1.0, maxlen);
+	return out.toByteArray();
+    }
 
+    /** Renders an article's two-hop coaccess list (hops=2), as
+	computed by TwoHop. These are not cached.
+	@return The text, or RecordCache.NOT_FOUND
+     */
+    static byte[] getTwoHopText(String aid, int maxlen) throws IOException {
+	CoaccessSource src = getSource();
+	if (!src.mightContain(aid)) {
+	    filtered.incrementAndGet();
+	    return RecordCache.NOT_FOUND;
+	}
+	CoaccessRecord rec = src.getTwoHopRecord(aid);
+	return (rec==null) ? RecordCache.NOT_FOUND : render(rec, maxlen);
+    }
 
-   }
+    /** Gets the seeds' weights, from the "weights" parameter: a list
+	of non-negative numbers, separated by commas, one per seed, in
+	the order of the seeds. Without it, all weights are 1. */
+    private static double[] getWeights(HttpServletRequest request, int n) {
+	double[] w = new double[n];
+	String s = request.getParameter("weights");
+	if (s==null) {
+	    Arrays.fill(w, 1.0);
+	    return w;
+	}
+	String[] v = s.split("[\\s,]+");
+	if (v.length != n) throw new IllegalArgumentException("weights: " + v.length + " values given for " + n + " articles");
+	for(int i=0; i<n; i++) {
+	    w[i] = Double.parseDouble(v[i]);
+	    if (!(w[i] >= 0) || Double.isInfinite(w[i])) throw new IllegalArgumentException("weights must be non-negative: " + v[i]);
+	}
+	return w;
+    }
+
+    /** Renders the top maxlen articles coaccessed with any of the
+	seeds (merge=true), scored by the weighted sum of their counts
+	in the seeds' lists, leaving out the seeds (see SeedMerger).
+	These are not cached.
+     */
+    static byte[] getMergedText(String[] seeds, double[] weights, int maxlen, boolean integral) throws IOException {
+	CoaccessSource src = getSource();
+	Vector<String> found = new Vector<String>();
+	Vector<Double> fw = new Vector<Double>();
+	for(int i=0; i<seeds.length; i++) {
+	    if (!src.mightContain(seeds[i])) {
+		filtered.incrementAndGet();
+		continue;
+	    }
+	    found.add(seeds[i]);
+	    fw.add(weights[i]);
+	}
+	CoaccessRecord[] recs = src.getRecords(found.toArray(new String[0]));
+	double[] w = new double[recs.length];
+	for(int i=0; i<w.length; i++) w[i] = fw.elementAt(i);
+	SeedMerger m = new SeedMerger(seeds, recs, w);
+	SeedMerger.Candidate[] top = m.merge(maxlen);
+	merges.incrementAndGet();
+	mergeRead.addAndGet(m.entriesRead());
+	mergeEntries.addAndGet(m.entries());
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	SeedMerger.writeTo(out, top, integral);
+	return out.toByteArray();
+    }
+
+    /** The servlet's counters, one line per component, as shown for
+	a request with stats=true */
+    String getStats() {
+	CoaccessDelta d = delta;
+	return (cache==null? "cache: off" : cache.stats()) + "\n" +
+	    "filter: rejected=" + filtered.get() + "\n" +
+	    "merge: requests=" + merges.get() + " read=" + mergeRead.get() + " of " + mergeEntries.get() + " entries\n" +
+	    (d==null? "" : d.stats() + "\n");
+    }
+
+    /** Records the views posted with append=true: "user aid [time]"
+	lines in the request's body (see CoaccessDelta). This is only
+	allowed if live updates are on, and, unless the deltaAppend
+	init-param is "any", only from the local host.
+	@return The number of views recorded
+     */
+    private int append(HttpServletRequest request) throws IOException {
+	CoaccessDelta d = delta;
+	if (d==null || appendFrom==null) throw new IllegalArgumentException("Live updates are not enabled");
+	if (appendFrom.equals("local")) {
+	    String ip = request.getRemoteAddr();
+	    if (!(ip.equals("127.0.0.1") || ip.equals("::1") || ip.equals("0:0:0:0:0:0:0:1"))) {
+		throw new IllegalArgumentException("append is only allowed from the local host");
+	    }
+	}
+	if (!"POST".equals(request.getMethod())) throw new IllegalArgumentException("append needs a POST request");
+	return d.addLines(request.getReader());
+    }
+
+    /** The max number of articles that can be looked up in one
+	batch request */
+    static final int MAX_BATCH = 1000;
+
+    /** Gets the article IDs to look up. They can be given as (one or
+	several) arxiv_id parameters; in a POST request, they can also
+	be sent in the body, separated by white space or commas, unless
+	the body is a submitted form.
+	@return A non-empty array of IDs
+     */
+    private static String[] getAids(HttpServletRequest request) throws IOException {
+	Vector<String> v = new Vector<String>();
+	String[] params = request.getParameterValues(AID);
+	if (params!=null) {
+	    for(String a: params) addAids(v, a);
+	}
+	String ct = request.getContentType();
+	if ("POST".equals(request.getMethod()) &&
+	    (ct==null || !ct.startsWith("application/x-www-form-urlencoded"))) {
+	    BufferedReader r = request.getReader();
+	    String s;
+	    while((s = r.readLine())!=null) {
+		addAids(v, s);
+		if (v.size() > MAX_BATCH) break;
+	    }
+	}
+	if (v.size()==0) {
+	    throw new IllegalArgumentException(AID + " not supplied");
+	}
+	if (v.size() > MAX_BATCH) {
+	    throw new IllegalArgumentException("Too many article IDs requested; the limit is " + MAX_BATCH);
+	}
+	return v.toArray(new String[0]);
+    }
 
-    /** The Lucene index directory where coaccess data are stored. */
+    private static void addAids(Vector<String> v, String s) {
+	for(String a: s.split("[\\s,]+")) {
+	    if (a.length()>0) v.add(a);
+	}
+    }
+
+    /** The default Lucene index directory where coaccess data are
+	stored. Can be overridden with the servlet's "indexDir"
+	init-param in web.xml. */
     static final public String indexDir = "/data/coaccess/round5/lucene_framework/index";
 
+    /** How often (in msec) the servlet checks whether the index has
+	been rebuilt on disk, and needs to be reopened. */
+    static final long REFRESH_MSEC = 60 * 1000;
+
+    /** Where the data come from: the Lucene index, or the
+	memory-mapped store. Opened in init() (or, for command-line
+	tools, on the first call to getRawData()) */
+    private static CoaccessSource source = null;
+
+    /** The default max number of entries in the result cache. Can be
+	overridden with the "cacheSize" init-param; 0 turns the cache
+	off. */
+    static final int CACHE_SIZE = 10000;
+
+    /** Rendered coaccess lists of recently requested articles.
+	Created in init(), so it's not used by command-line tools. */
+    private static volatile RecordCache cache = null;
+
+    /** The live updates, if they are on (the "delta" init-param);
+	the source is then wrapped in a CoaccessDelta.Source */
+    private static volatile CoaccessDelta delta = null;
+    /** Who may post views with append=true: "local", "any", or null
+	for nobody */
+    private static volatile String appendFrom = null;
+
+    /** The default interval between compactions of the live
+	updates, in minutes; can be overridden with the
+	deltaCompactMin init-param */
+    static final int DELTA_COMPACT_MIN = 60;
+
+    /** The number of lookups answered by the data source's Bloom
+	filter, without searching */
+    static final AtomicLong filtered = new AtomicLong();
+
+    /** The number of merge=true requests, and the number of list
+	entries they have read, out of the total length of the seeds'
+	lists */
+    static final AtomicLong merges = new AtomicLong(), mergeRead = new AtomicLong(),
+	mergeEntries = new AtomicLong();
+
+    static synchronized CoaccessSource getSource() throws IOException {
+	if (source==null) {
+	    source = ShardedIndex.open(new File(indexDir), REFRESH_MSEC);
+	}
+	return source;
+    }
+
+    /** Opens the coaccess data once, so that they can be used by all
+	requests. With the init-param backend=store, the data are read
+	from the CoaccessStore in the directory given by the
+	"storeDir" init-param; otherwise, from the Lucene index in
+	"indexDir", which may also be the root of a ShardedIndex (one
+	index per prefix, each lookup going to its prefix's shard).
+
+	<p>With the init-param delta=true, live updates are on (see
+	CoaccessDelta): views can be posted with append=true (from the
+	local host only, unless deltaAppend is "any"; "off" turns this
+	off), and with deltaLog, the log file it names is followed. The
+	live counts are folded into the index every deltaCompactMin
+	minutes; sessions end after deltaGapSec seconds without views.
+    */
+    public void init(ServletConfig config) throws ServletException {
+	super.init(config);
+	String backend = config.getInitParameter("backend");
+	boolean useStore = "store".equals(backend);
+	String dir = config.getInitParameter(useStore? "storeDir" : "indexDir");
+	if (dir==null) {
+	    if (useStore) throw new ServletException("backend=store requires the storeDir init-param");
+	    dir = indexDir;
+	}
+	try {
+	    synchronized(CoaccessServlet.class) {
+		if (source!=null) source.close();
+		source = useStore? new CoaccessStore(new File(dir)) :
+		    ShardedIndex.open(new File(dir), REFRESH_MSEC);
+		if (delta!=null) delta.stop();
+		delta = null;
+		if ("true".equals(config.getInitParameter("delta"))) {
+		    delta = new CoaccessDelta(getIntParam(config, "deltaGapSec", (int)CoaccessDelta.GAP_SEC), CoaccessBuilder.MAX_DOCS);
+		    String log = config.getInitParameter("deltaLog");
+		    delta.start(source, log==null? null : new File(log), 60L * 1000 * getIntParam(config, "deltaCompactMin", DELTA_COMPACT_MIN));
+		    source = new CoaccessDelta.Source(source, delta);
+		    String a = config.getInitParameter("deltaAppend");
+		    appendFrom = (a==null) ? "local" : a.equals("off") ? null : a;
+		}
+		int cacheSize = getIntParam(config, "cacheSize", CACHE_SIZE);
+		cache = (cacheSize > 0) ? new RecordCache(cacheSize, source.getGeneration()) : null;
+	    }
+	} catch(IOException ex) {
+	    throw new ServletException("Cannot open coaccess data in " + dir, ex);
+	}
+    }
+
+    /** Closes the shared index. Requests still in progress will
+	finish using the reader they have already acquired. */
+    public void destroy() {
+	synchronized(CoaccessServlet.class) {
+	    try {
+		if (source!=null) source.close();
+	    } catch(IOException ex) {
+		ex.printStackTrace(System.out);
+	    }
+	    source = null;
+	    cache = null;
+	    delta = null;
+	}
+	super.destroy();
+    }
+
+    /** Renders the coaccess list for one article, as sent to the
+	client, going to the cache first.
+	@param maxlen The max number of entries; 0 means all
+	@return The text, or RecordCache.NOT_FOUND
+     */
+    static byte[] getText(String aid, int maxlen) throws IOException {
+	CoaccessSource src = getSource();
+	RecordCache c = cache;
+	// read before the lookup, so that data from a reader that
+	// has just been replaced are never filed under the new
+	// generation
+	long gen = src.getGeneration();
+	if (!src.mightContain(aid)) {
+	    filtered.incrementAndGet();
+	    return RecordCache.NOT_FOUND;
+	}
+	if (!src.isCacheable(aid)) c = null;
+	if (c!=null) {
+	    byte[] text = c.get(aid, maxlen, gen);
+	    if (text!=null) return text;
+	}
+	byte[] text = render(src.getRecord(aid), maxlen);
+	if (c!=null) c.put(aid, maxlen, text, gen);
+	return text;
+    }
+
+    /** Like getText(), but for several articles. The ones not found
+	in the cache are looked up together, with getRecords().
+     */
+    static byte[][] getTexts(String[] aids, int maxlen) throws IOException {
+	CoaccessSource src = getSource();
+	RecordCache c = cache;
+	long gen = src.getGeneration();
+	byte[][] texts = new byte[aids.length][];
+	Vector<String> missed = new Vector<String>();
+	for(int i=0; i<aids.length; i++) {
+	    if (!src.mightContain(aids[i])) {
+		filtered.incrementAndGet();
+		texts[i] = RecordCache.NOT_FOUND;
+		continue;
+	    }
+	    if (c!=null && src.isCacheable(aids[i])) texts[i] = c.get(aids[i], maxlen, gen);
+	    if (texts[i]==null) missed.add(aids[i]);
+	}
+	if (missed.size()==0) return texts;
+	CoaccessRecord[] recs = src.getRecords(missed.toArray(new String[0]));
+	for(int i=0, j=0; i<aids.length; i++) {
+	    if (texts[i]!=null) continue;
+	    texts[i] = render(recs[j++], maxlen);
+	    if (c!=null && src.isCacheable(aids[i])) c.put(aids[i], maxlen, texts[i], gen);
+	}
+	return texts;
+    }
+
+    private static byte[] render(CoaccessRecord rec, int maxlen) throws IOException {
+	if (rec==null) return RecordCache.NOT_FOUND;
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	rec.writeTo(out, maxlen);
+	return out.toByteArray();
+    }
 
     /** The main method for getting stored coaccess data from the
 	Lucene index.  (God knows why they are stored in a Lucene
 	index, but that was A&amp;Z's solution).
      */
     static String getRawData(String aid) throws IOException {
-       IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexDir)));
-       IndexSearcher searcher = new IndexSearcher(reader);
-
-       /*
-       String aidx = simplifyAid(aid);       	
-       Term term =new Term(AID, aidx);
-       */
-       Term term =new Term(AID, aid);
-
-       Query query = new TermQuery(term);
-       TopDocs 	 top = searcher.search(query,1);
-       ScoreDoc[] hits = top.scoreDocs;
-       if (hits.length == 0) {
-	   return null;
-       } else {
-	   Document doc = searcher.doc(hits[0].doc);
-	   //	   String yearArray = doc.get("Year");
-	   String yearArray = doc.get(IndexFiles.Fields.COACCESS);
-	   return yearArray;
-       } 
+	return getSource().getRawData(aid);
+    }
+
+    /** Gets the stored coaccess list for one article.
+	@return The list, or null if the article is not in the index
+     */
+    static CoaccessRecord getRecord(String aid) throws IOException {
+	return getSource().getRecord(aid);
+    }
+
+    static int getIntParam(ServletConfig config, String name, int defVal) throws ServletException {
+	String s = config.getInitParameter(name);
+	if (s==null) return defVal;
+	try {
+	    return Integer.parseInt(s.trim());
+	} catch (NumberFormatException ex) {
+	    throw new ServletException("Invalid value for init-param " + name + ": " + s);
+	}
     }
 
     /** For some strange reasons, article IDs are stored in the data store
@@ -137,6 +531,16 @@ public class CoaccessServlet extends HttpServlet {
     }
 
 
+    static double getDouble(HttpServletRequest request, String name, double defVal) {
+	String s = request.getParameter(name);
+	if (s==null) return defVal;
+	try {
+	    return Double.parseDouble(s);
+	} catch (Exception ex) {
+	    return defVal;
+	}
+    }
+
     public static void main(String[] argv) throws IOException {
 	for(int i=0; i<argv.length; i++) {
 	    String aid = argv[i];
@@ -145,12 +549,7 @@ public class CoaccessServlet extends HttpServlet {
 	    if (rawData==null) {
 		System.out.println( "NO MATCH FOR arxiv_id=" + aid);
 	    } else {
-		System.out.println(rawData);
-		System.out.println("Aggregate data for aid=" + aid);
-		List<Map.Entry<String, Integer>> list= SearchFiles.aggregateCounts(rawData);
-		for(Map.Entry<String, Integer> e: list) {
-		    System.out.println(e.getKey() + " " + e.getValue());
-		}
+		System.out.print(rawData);
 	    }
 
 	}
@@ -0,0 +1,110 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+/** A place from which CoaccessServlet gets the stored coaccess
+    lists. There are two implementations: CoaccessIndex (the Lucene
+    index built by IndexFiles) and CoaccessStore (the memory-mapped
+    files built by IndexFiles -store).
+ */
+abstract class CoaccessSource {
+
+    /** Looks up the stored coaccess list for one article. The list
+	is always aggregated (merged over all years, and sorted by
+	count), so the caller can simply read as many entries from the
+	top as it needs.
+	@return The list, or null if the article is not known
+     */
+    abstract CoaccessRecord getRecord(String aid) throws IOException;
+
+    /** Looks up the stored coaccess lists for several articles at
+	once. The implementations do this in one pass over the sorted
+	IDs, which is cheaper than separate calls to getRecord().
+	@return An array with one element per ID, in the same order; an
+	element is null if that article is not known
+     */
+    CoaccessRecord[] getRecords(String[] aids) throws IOException {
+	CoaccessRecord[] recs = new CoaccessRecord[aids.length];
+	for(int i=0; i<aids.length; i++) recs[i] = getRecord(aids[i]);
+	return recs;
+    }
+
+    /** Returns the positions of the elements of aids, ordered by the
+	IDs' values, so that they can be looked up in one sorted pass */
+    static Integer[] sortedOrder(final String[] aids) {
+	Integer[] order = new Integer[aids.length];
+	for(int i=0; i<order.length; i++) order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return aids[a].compareTo(aids[b]);
+		}
+	    });
+	return order;
+    }
+
+    /** Looks up the stored coaccess data for one article, and
+	renders it in the text form (one "aid count" line per entry).
+	@return The coaccess data, or null if the article is not known
+     */
+    String getRawData(String aid) throws IOException {
+	CoaccessRecord rec = getRecord(aid);
+	if (rec == null) return null;
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	rec.writeTo(out, 0);
+	return out.toString("UTF-8");
+    }
+
+    /** Looks up the per-year counts of an article's partners, for
+	queries over a window of years.
+	@return The counts, or null if the article is not known, or if
+	there are no per-year counts for it (as in CoaccessStore, or in
+	an index built before they were introduced)
+     */
+    YearCounts getYearCounts(String aid) throws IOException {
+	return null;
+    }
+
+    /** Looks up an article's two-hop coaccess list (computed by
+	TwoHop).
+	@return The list, or null if the article is not known, or if
+	there is no two-hop list for it
+     */
+    CoaccessRecord getTwoHopRecord(String aid) throws IOException {
+	return null;
+    }
+
+    /** The last year whose data have been included, or 0 if this is
+	not known. Windows such as "the last N years" end with this year
+	(which may be later than an article's last year with data). */
+    int getLastYear() {
+	return 0;
+    }
+
+    /** Checks whether the article may be present, without looking it
+	up, e.g. with a Bloom filter.
+	@return false if the article is certainly not known; true if
+	it may be (which is all one can say if there is no filter)
+     */
+    boolean mightContain(String aid) throws IOException {
+	return true;
+    }
+
+    /** Can the rendered list of this article be cached (until the
+	generation changes)? Not if it may change at any time, as with
+	live updates (CoaccessDelta). */
+    boolean isCacheable(String aid) {
+	return true;
+    }
+
+    /** A number that grows every time the data are reopened (e.g.
+	after the index has been rebuilt), so that anything cached from
+	the old data can be discarded. Stays 0 for data that never
+	change. */
+    long getGeneration() {
+	return 0;
+    }
+
+    /** Releases the underlying files. */
+    void close() throws IOException {}
+}
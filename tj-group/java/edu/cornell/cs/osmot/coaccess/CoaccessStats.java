@@ -3,14 +3,11 @@ package edu.cornell.cs.osmot.coaccess;
 import java.util.*;
 import java.io.*;
 
-//import javax.servlet.*;
-//import javax.servlet.http.*;
+import java.util.concurrent.*;
 
-//import org.apache.lucene.document.*;
-//import org.apache.lucene.index.*;
-//import org.apache.lucene.search.*;
-//import org.apache.lucene.store.FSDirectory;
-import org.apache.commons.lang.mutable.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
 
 /** Computing some aggregate statistics for the coaccess data. Used as a command-line tool 
     @data 2017-07-05
@@ -19,25 +16,89 @@ import org.apache.commons.lang.mutable.*;
 public class CoaccessStats {
     /** Usage:
 	<pre>
-	CoccessStats aid1 aid2 aid3 ...
-	CoccessStats -
+	CoccessStats [options] aid1 aid2 aid3 ...
+	CoccessStats [options] -
+	CoccessStats [options] -all [-threads N]
 	</pre>
+	With -all, every record in the index (or store) is scanned, in
+	parallel, rather than only those for the listed articles.
+
+	<p>Options:
+	<ul>
+	<li>-index DIR, -store DIR - where the data are; by default,
+	CoaccessServlet's index
+	<li>-add FILE - start with the histograms saved by an earlier
+	run (may be repeated)
+	<li>-save FILE - save the histograms, to be added to later
+	<li>-quantiles q1,q2,... - the quantiles to report (default
+	0.5,0.9,0.99)
+	</ul>
+
+	<p>Besides the histograms (coaccess-count.dat,
+	coaccess-diff.dat), the cumulative distribution functions
+	(coaccess-count-cumul.dat, coaccess-diff-cumul.dat, in the
+	format formerly produced by Cumulative) and the quantiles per
+	rank (coaccess-quantiles.txt) are written directly.
     */
     static public void main(String argv[]) throws IOException {
 
 	int maxRank = 10;
-	CoaccessStats stats = new CoaccessStats(maxRank);
-	Vector<String> aids = (new ArgvIterator(argv,0)).readAll();
-	int n = aids.size();
-	for(String aid: aids) {
-	    String rawData = CoaccessServlet.getRawData(aid);
-	    if (rawData==null) {
-		System.err.println("Ignoring " + aid);
-		continue;
+	String indexDir = null, storeDir = null, saveFile = null;
+	Vector<String> addFiles = new Vector<String>();
+	double[] quantiles = {0.5, 0.9, 0.99};
+	boolean all = false;
+	int nThreads = Runtime.getRuntime().availableProcessors();
+	int pos = 0;
+	for(; pos<argv.length; pos++) {
+	    if (argv[pos].equals("-index")) {
+		indexDir = argv[++pos];
+	    } else if (argv[pos].equals("-store")) {
+		storeDir = argv[++pos];
+	    } else if (argv[pos].equals("-threads")) {
+		nThreads = Integer.parseInt(argv[++pos]);
+	    } else if (argv[pos].equals("-add")) {
+		addFiles.add(argv[++pos]);
+	    } else if (argv[pos].equals("-save")) {
+		saveFile = argv[++pos];
+	    } else if (argv[pos].equals("-quantiles")) {
+		String[] q = argv[++pos].split(",");
+		quantiles = new double[q.length];
+		for(int i=0; i<q.length; i++) quantiles[i] = Double.parseDouble(q[i]);
+	    } else if (argv[pos].equals("-all")) {
+		all = true;
+	    } else {
+		break;
 	    }
-	    List<Map.Entry<String, Integer>> list= SearchFiles.aggregateCounts(rawData);
-	    stats.addStats(list);
-	}	
+	}
+
+	CoaccessStats stats;
+	if (all) {
+	    CoaccessSource src = openSource(indexDir, storeDir);
+	    long t0 = System.currentTimeMillis();
+	    stats = scanAll(src, maxRank, nThreads);
+	    System.out.println("Scanned " + stats.recordCnt + " records with " + nThreads + " threads in " + (System.currentTimeMillis()-t0) + " msec");
+	    src.close();
+	} else {
+	    stats = new CoaccessStats(maxRank);
+	    Vector<String> aids = (new ArgvIterator(argv,pos)).readAll();
+	    if (aids.size() > 0) {
+		CoaccessSource src = openSource(indexDir, storeDir);
+		CoaccessRecord[] recs = src.getRecords(aids.toArray(new String[0]));
+		for(int i=0; i<recs.length; i++) {
+		    if (recs[i]==null) {
+			System.err.println("Ignoring " + aids.elementAt(i));
+			continue;
+		    }
+		    stats.addStats(recs[i]);
+		}
+		src.close();
+	    }
+	}
+	for(String f: addFiles) {
+	    System.out.println("Adding the histograms saved in " + f);
+	    stats.merge(read(new File(f)));
+	}
+	if (saveFile!=null) stats.write(new File(saveFile));
 
 	String fname = "coaccess-count.dat";
 	stats.writeToFile( fname, stats.aid2cnt);
@@ -45,43 +106,61 @@ public class CoaccessStats {
 	fname = "coaccess-diff.dat";
 	stats.writeToFile( fname, stats.aid2diffCnt);
 
+	writeCumulative("coaccess-count-cumul.dat", stats.aid2cnt);
+	writeCumulative("coaccess-diff-cumul.dat", stats.aid2diffCnt);
+	stats.writeQuantiles("coaccess-quantiles.txt", quantiles);
+    }
 
+    private static CoaccessSource openSource(String indexDir, String storeDir) throws IOException {
+	return (storeDir!=null) ? new CoaccessStore(new File(storeDir)) :
+	    (indexDir!=null) ? ShardedIndex.open(new File(indexDir), 0) :
+	    CoaccessServlet.getSource();
     }
 
     final int maxRank;
-    private Vector<TreeMap<Integer, MutableInt>> aid2cnt, aid2diffCnt;
+    /** For each rank, the histogram of scores (or of differences) */
+    private LogHistogram[] aid2cnt, aid2diffCnt;
+    /** How many records have been added */
+    private int recordCnt = 0;
+
+    /** The precision of the histograms: values below 2^8 are counted
+	exactly, and larger ones to within 1/128 (see LogHistogram) */
+    static final int SUB_BITS = 8;
 
     CoaccessStats(int _maxRank) {
 	maxRank = _maxRank;
-	aid2cnt = new Vector<TreeMap<Integer, MutableInt>>();
-	aid2diffCnt =  new Vector<TreeMap<Integer, MutableInt>>();
+	aid2cnt = new LogHistogram[maxRank];
+	aid2diffCnt = new LogHistogram[maxRank];
 	for(int i=0; i<maxRank; i++) {
-	    aid2cnt.add( new TreeMap<Integer, MutableInt>());
-	    aid2diffCnt.add( new TreeMap<Integer, MutableInt>());
+	    aid2cnt[i] = new LogHistogram(SUB_BITS);
+	    aid2diffCnt[i] = new LogHistogram(SUB_BITS);
 	}
     }
 
-    /** map{key} += inc */
-    private void addToMap(TreeMap<Integer, MutableInt> map, Integer key, int inc) {
-	MutableInt cnt = map.get(key);
-	if (cnt==null) map.put(key, cnt=new MutableInt());
-	cnt.add(inc);
+    /** Adds all counts from another CoaccessStats to this one */
+    void merge(CoaccessStats o) {
+	if (o.maxRank != maxRank) throw new IllegalArgumentException("Cannot merge statistics for " + o.maxRank + " and " + maxRank + " ranks");
+	for(int i=0; i<maxRank; i++) {
+	    aid2cnt[i].merge(o.aid2cnt[i]);
+	    aid2diffCnt[i].merge(o.aid2diffCnt[i]);
+	}
+	recordCnt += o.recordCnt;
     }
 
     /** Fills the buckets for the histograms. For scores, ranks start
       with 1; rank 1 is the top rank. For differences, ranks start
       with 1 as well; rank 1 diff is the difference between rank 2
       score and rank 1 score, etc. */
-    private void addStats(List<Map.Entry<String, Integer>> list) {
+    void addStats(CoaccessRecord rec) {
+	recordCnt++;
 	int rank=0;
 	int prev= -1;
-	for(Map.Entry<String, Integer> e: list) {
-	    String a = e.getKey();
-	    Integer score = e.getValue();
-	    if (rank<maxRank) addToMap(aid2cnt.elementAt(rank), score, 1);
+	while(rec.next()) {
+	    int score = rec.count();
+	    if (rank<maxRank) aid2cnt[rank].add(score);
 	    if (prev>=0) {
 		int diff = prev-score;
-		addToMap(aid2diffCnt.elementAt(rank-1), new Integer(diff), 1);
+		aid2diffCnt[rank-1].add(diff);
 	    }
 	    if (rank == maxRank) break;
 	    prev=score;
@@ -89,6 +168,128 @@ public class CoaccessStats {
 	}
     }
 
+    /** The number of records in a piece of work for one fork-join
+	task */
+    static final int CHUNK = 4096;
+
+    /** A fork-join task computing the statistics for a range of
+	records [from, to). Ranges longer than CHUNK are split in half;
+	each leaf task fills its own histograms, which are merged on
+	the way back up. */
+    abstract static class Scan extends RecursiveTask<CoaccessStats> {
+	private static final long serialVersionUID = 1L;
+	final int maxRank, from, to;
+	Scan(int _maxRank, int _from, int _to) {
+	    maxRank = _maxRank;
+	    from = _from;
+	    to = _to;
+	}
+
+	/** The i-th record, or null if there is none (e.g. the document
+	    has been deleted) */
+	abstract CoaccessRecord record(int i) throws IOException;
+	/** A task for a subrange of this task's records */
+	abstract Scan sub(int from, int to);
+
+	protected CoaccessStats compute() {
+	    if (to - from <= CHUNK) {
+		CoaccessStats s = new CoaccessStats(maxRank);
+		try {
+		    for(int i=from; i<to; i++) {
+			CoaccessRecord rec = record(i);
+			if (rec!=null) s.addStats(rec);
+		    }
+		} catch(IOException ex) {
+		    throw new RuntimeException(ex);
+		}
+		return s;
+	    }
+	    int mid = (from + to) >>> 1;
+	    Scan a = sub(from, mid), b = sub(mid, to);
+	    a.fork();
+	    CoaccessStats s = b.compute();
+	    s.merge(a.join());
+	    return s;
+	}
+    }
+
+    /** Scans the documents [from, to) of one index segment */
+    static class SegmentScan extends Scan {
+	private static final long serialVersionUID = 1L;
+	final AtomicReader reader;
+	final Bits live;
+	SegmentScan(int maxRank, AtomicReader _reader, int from, int to) {
+	    super(maxRank, from, to);
+	    reader = _reader;
+	    live = reader.getLiveDocs();
+	}
+	CoaccessRecord record(int i) throws IOException {
+	    if (live!=null && !live.get(i)) return null;
+	    return CoaccessIndex.getRecord(reader.document(i, CoaccessIndex.fieldsToLoad));
+	}
+	Scan sub(int from, int to) {
+	    return new SegmentScan(maxRank, reader, from, to);
+	}
+    }
+
+    /** Scans the records [from, to) of a CoaccessStore */
+    static class StoreScan extends Scan {
+	private static final long serialVersionUID = 1L;
+	final CoaccessStore store;
+	StoreScan(int maxRank, CoaccessStore _store, int from, int to) {
+	    super(maxRank, from, to);
+	    store = _store;
+	}
+	CoaccessRecord record(int i) throws IOException {
+	    return new CoaccessRecord(store.slice(i));
+	}
+	Scan sub(int from, int to) {
+	    return new StoreScan(maxRank, store, from, to);
+	}
+    }
+
+    /** Computes the statistics over all records in the index (each
+	segment being split into docid ranges; for a ShardedIndex, the
+	segments of all the shards) or in the store, on a
+	fork-join pool of nThreads threads */
+    static CoaccessStats scanAll(CoaccessSource src, int maxRank, int nThreads) throws IOException {
+	ForkJoinPool pool = new ForkJoinPool(nThreads);
+	try {
+	    if (src instanceof CoaccessStore) {
+		CoaccessStore store = (CoaccessStore)src;
+		return pool.invoke(new StoreScan(maxRank, store, 0, store.size()));
+	    }
+	    // the segments of the index, or of every shard
+	    Vector<CoaccessIndex> indexes = new Vector<CoaccessIndex>();
+	    if (src instanceof ShardedIndex) indexes.addAll(((ShardedIndex)src).getShards().values());
+	    else indexes.add((CoaccessIndex)src);
+	    IndexSearcher[] searchers = new IndexSearcher[indexes.size()];
+	    try {
+		Vector<Scan> tasks = new Vector<Scan>();
+		for(int j=0; j<searchers.length; j++) {
+		    searchers[j] = indexes.get(j).acquire();
+		    for(AtomicReaderContext ctx: searchers[j].getIndexReader().leaves()) {
+			Scan t = new SegmentScan(maxRank, ctx.reader(), 0, ctx.reader().maxDoc());
+			pool.execute(t);
+			tasks.add(t);
+		    }
+		}
+		CoaccessStats stats = new CoaccessStats(maxRank);
+		for(Scan t: tasks) stats.merge(t.join());
+		return stats;
+	    } finally {
+		for(int j=0; j<searchers.length; j++) {
+		    if (searchers[j]!=null) indexes.get(j).release(searchers[j]);
+		}
+	    }
+	} catch(RuntimeException ex) {
+	    if (ex.getCause() instanceof IOException) throw (IOException)ex.getCause();
+	    throw ex;
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
     /*
     static class DescendingCountComparator implements Comparator<MapEntry<Integer,Double>> {
 	public int compare(MapEntry<Integer,Double> o1, MapEntry<Integer,Double> o2)
@@ -100,16 +301,16 @@ TjA1Entry o1,TjA1Entry o2) {
     */
    
 
-    static void writeToFile(String fname, Vector<TreeMap<Integer, MutableInt>> data)  throws IOException {
+    static void writeToFile(String fname, LogHistogram[] data)  throws IOException {
 	System.out.println("Writing data to " +fname);
 	File f= new File(fname);
 	PrintWriter w= new PrintWriter(new FileWriter(f));
-	for(int i=0; i<data.size(); i++) {
+	for(int i=0; i<data.length; i++) {
 	    w.println("# [Rank "+(i+1)+"]"); // used by the "index" clause in gnuplot's plot
-	    TreeMap<Integer, MutableInt> q = data.elementAt(i);
-	    for(Integer key: q.keySet()) {
-		int val =q.get(key).intValue();
-		w.println(key + "\t" + val);
+	    LogHistogram q = data[i];
+	    for(int j=0; j<q.size(); j++) {
+		long val = q.count(j);
+		if (val > 0) w.println(q.lowest(j) + "\t" + val);
 	    }
 	    w.println(); // need 2 blank lines between sets
 	    w.println();
@@ -117,5 +318,76 @@ TjA1Entry o1,TjA1Entry o2) {
 	w.close();
     }
 
+    /** Writes the cumulative distribution function for each rank, as
+	(value, fraction of values &le; value) pairs, in the same layout
+	as writeToFile(). (This is what Cumulative used to compute from
+	the output of writeToFile().) */
+    static void writeCumulative(String fname, LogHistogram[] data)  throws IOException {
+	System.out.println("Writing data to " +fname);
+	PrintWriter w= new PrintWriter(new FileWriter(new File(fname)));
+	for(int i=0; i<data.length; i++) {
+	    w.println("# [Rank "+(i+1)+"]");
+	    LogHistogram q = data[i];
+	    long sum = 0;
+	    for(int j=0; j<q.size(); j++) {
+		if (q.count(j) == 0) continue;
+		sum += q.count(j);
+		w.println(q.lowest(j) + "\t" + (double)sum/(double)q.count());
+	    }
+	    w.println();
+	    w.println();
+	}
+	w.close();
+    }
+
+    /** Writes a table of the specified quantiles of the scores and of
+	the differences, one line per rank */
+    void writeQuantiles(String fname, double[] quantiles)  throws IOException {
+	System.out.println("Writing data to " +fname);
+	PrintWriter w= new PrintWriter(new FileWriter(new File(fname)));
+	StringBuffer b = new StringBuffer("#rank\tn");
+	for(double q: quantiles) b.append("\tcount@" + q);
+	for(double q: quantiles) b.append("\tdiff@" + q);
+	w.println(b);
+	for(int i=0; i<maxRank; i++) {
+	    b = new StringBuffer("" + (i+1) + "\t" + aid2cnt[i].count());
+	    for(double q: quantiles) b.append("\t" + aid2cnt[i].quantile(q));
+	    for(double q: quantiles) b.append("\t" + aid2diffCnt[i].quantile(q));
+	    w.println(b);
+	}
+	w.close();
+    }
+
+    /** Saves the histograms, so that they can be merged with those
+	from a later run (CoaccessStats -add) */
+    void write(File f) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+	try {
+	    out.writeInt(maxRank);
+	    out.writeInt(recordCnt);
+	    for(int i=0; i<maxRank; i++) {
+		aid2cnt[i].write(out);
+		aid2diffCnt[i].write(out);
+	    }
+	} finally {
+	    out.close();
+	}
+    }
+
+    static CoaccessStats read(File f) throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try {
+	    CoaccessStats s = new CoaccessStats(in.readInt());
+	    s.recordCnt = in.readInt();
+	    for(int i=0; i<s.maxRank; i++) {
+		s.aid2cnt[i] = LogHistogram.read(in);
+		s.aid2diffCnt[i] = LogHistogram.read(in);
+	    }
+	    return s;
+	} finally {
+	    in.close();
+	}
+    }
+
 
 }
@@ -0,0 +1,178 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** An alternative to the Lucene index for storing the coaccess
+    lists: a few flat files in one directory, read through memory
+    mapping. A lookup is a binary search in the sorted article ID
+    dictionary, followed by taking a slice of the postings file; no
+    data are copied onto the heap.
+
+    <p>The files (all integers are big-endian) are:
+    <ul>
+    <li>aids.dat, aids.idx - the AidDictionary of the article IDs;
+    the records are numbered by the IDs' ordinals in it
+    <li>postings.dat - the coaccess lists, each encoded as described
+    in CoaccessRecord
+    <li>postings.idx - n pairs (long offset, int length), locating in
+    postings.dat the list for the i-th ID
+    <li>aids.bloom - a BloomFilter of the IDs (optional)
+    </ul>
+
+    <p>The store is built by IndexFiles -store, and is used by
+    CoaccessServlet if its "backend" init-param is "store". Each file
+    is mapped as a single buffer, so it must be under 2 GB.
+ */
+class CoaccessStore extends CoaccessSource {
+
+    static final String POSTINGS_DAT = "postings.dat", POSTINGS_IDX = "postings.idx";
+
+    /** Size of one entry in postings.idx */
+    private static final int POSTINGS_IDX_ENTRY = 12;
+
+    final File dir;
+    /** The article IDs; the i-th record belongs to the ID with the
+	ordinal i */
+    final AidDictionary dict;
+    private final ByteBuffer postings, postingsIdx;
+    /** The number of articles in the store */
+    private final int n;
+    /** The filter of the IDs in the store, or null if there is none */
+    private final BloomFilter filter;
+
+    /** Maps the store's files into memory. */
+    CoaccessStore(File _dir) throws IOException {
+	dir = _dir;
+	dict = new AidDictionary(dir);
+	postings = AidDictionary.map(new File(dir, POSTINGS_DAT));
+	postingsIdx = AidDictionary.map(new File(dir, POSTINGS_IDX));
+	n = dict.size();
+	if (postingsIdx.capacity() != n * POSTINGS_IDX_ENTRY) {
+	    throw new IOException("Inconsistent file sizes in coaccess store " + dir);
+	}
+	filter = BloomFilter.read(new File(dir, BloomFilter.FILE));
+    }
+
+    boolean mightContain(String aid) {
+	return filter==null || filter.mightContain(aid);
+    }
+
+    /** The number of articles in the store */
+    int size() {
+	return n;
+    }
+
+    /** Finds the position of the article in the sorted dictionary.
+	@return The ordinal (0 thru n-1), or -1 if not found */
+    int find(String aid) {
+	return dict.ord(aid);
+    }
+
+    /** Looks up several articles in one sorted pass over the
+	dictionary */
+    CoaccessRecord[] getRecords(String[] aids) throws IOException {
+	int[] ords = dict.ords(aids);
+	CoaccessRecord[] recs = new CoaccessRecord[aids.length];
+	for(int i=0; i<aids.length; i++) {
+	    if (ords[i] >= 0) recs[i] = new CoaccessRecord(slice(ords[i])).aggregated();
+	}
+	return recs;
+    }
+
+    /** The article ID with the specified ordinal */
+    String aid(int ord) {
+	return dict.get(ord);
+    }
+
+    /** A zero-copy view of the encoded coaccess list for the
+	article with the specified ordinal */
+    ByteBuffer slice(int ord) {
+	long offset = postingsIdx.getLong(POSTINGS_IDX_ENTRY * ord);
+	int len = postingsIdx.getInt(POSTINGS_IDX_ENTRY * ord + 8);
+	ByteBuffer b = postings.duplicate();
+	b.position((int)offset);
+	b.limit((int)offset + len);
+	return b.slice();
+    }
+
+    CoaccessRecord getRecord(String aid) throws IOException {
+	int ord = find(aid);
+	return (ord < 0) ? null : new CoaccessRecord(slice(ord)).aggregated();
+    }
+
+    /** Builds a store. The records can be added in any order;
+	postings.dat is written as they come, while the (small)
+	dictionary is kept in memory, and is sorted and written out in
+	close(). The methods are synchronized, so several indexing
+	threads can share one Writer.
+    */
+    static class Writer {
+	final File dir;
+	private final DataOutputStream postingsOut;
+	private long offset = 0;
+
+	private static class Entry {
+	    final byte[] aid;
+	    final long offset;
+	    final int length;
+	    Entry(byte[] _aid, long _offset, int _length) {
+		aid = _aid;
+		offset = _offset;
+		length = _length;
+	    }
+	}
+	private final Vector<Entry> entries = new Vector<Entry>();
+
+	/** Creates a new store in the specified directory, replacing
+	    any old one. */
+	Writer(File _dir) throws IOException {
+	    dir = _dir;
+	    if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+	    postingsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, POSTINGS_DAT)), 1<<16));
+	}
+
+	/** Appends one article's coaccess list.
+	    @param record The list, encoded by CoaccessRecord.encode() */
+	synchronized void add(String aid, byte[] record) throws IOException {
+	    postingsOut.write(record);
+	    entries.add(new Entry(AidDictionary.toBytes(aid), offset, record.length));
+	    offset += record.length;
+	}
+
+	/** Sorts the dictionary, and writes out the remaining files */
+	synchronized void close() throws IOException {
+	    postingsOut.close();
+	    Entry[] a = entries.toArray(new Entry[0]);
+	    Arrays.sort(a, new Comparator<Entry>() {
+		    public int compare(Entry o1, Entry o2) {
+			return AidDictionary.compareBytes(o1.aid, o2.aid);
+		    }
+		});
+	    for(int i=1; i<a.length; i++) {
+		if (AidDictionary.compareBytes(a[i-1].aid, a[i].aid)==0) {
+		    throw new IOException("Duplicate article ID in store: " + new String(a[i].aid, "UTF-8"));
+		}
+	    }
+	    AidDictionary.Writer dictOut = new AidDictionary.Writer(dir);
+	    DataOutputStream postingsIdxOut = open(POSTINGS_IDX);
+	    for(Entry e: a) {
+		dictOut.add(e.aid);
+		postingsIdxOut.writeLong(e.offset);
+		postingsIdxOut.writeInt(e.length);
+	    }
+	    dictOut.close();
+	    postingsIdxOut.close();
+
+	    BloomFilter filter = new BloomFilter(a.length, BloomFilter.FPP, 0);
+	    for(Entry e: a) filter.add(new String(e.aid, "UTF-8"));
+	    filter.write(new File(dir, BloomFilter.FILE));
+	    System.out.println("Wrote coaccess store with " + a.length + " articles to " + dir);
+	}
+
+	private DataOutputStream open(String name) throws IOException {
+	    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name)), 1<<16));
+	}
+    }
+}
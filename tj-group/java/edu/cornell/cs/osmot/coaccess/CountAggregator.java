@@ -0,0 +1,258 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+
+/** Sums up coaccess counts over several years' lists, and selects the
+    top entries. This replaces the old Hashtable + LinkedList +
+    Collections.sort() code in SearchFiles.aggregateCounts(), which
+    boxed every count, and sorted the entire list even though only the
+    top few entries are kept.
+
+    <p>The counts are kept in an open-addressing hash table of
+    (String key, int count) with linear probing, in plain arrays. The
+    text parser hashes article IDs directly in the input String, and
+    only creates a String for an ID the first time it is seen. The
+    top-k selection uses a bounded heap of table slots, so its cost is
+    O(n log k) rather than O(n log n).
+
+    <p>An aggregator is meant to be reused for many articles (call
+    clear() between them), so that the tables are only allocated
+    once. It is not thread-safe; use aggregator() to get the current
+    thread's instance.
+ */
+final class CountAggregator {
+
+    private String[] keys;
+    private int[] counts;
+    /** Hash codes of the keys, to avoid comparing Strings on collision */
+    private int[] hashes;
+    /** The slots that are in use, in the order they were filled */
+    private int[] used;
+    private int size = 0;
+    private int mask;
+
+    CountAggregator() {
+	this(256);
+    }
+
+    /** @param expectedSize The expected number of distinct keys */
+    CountAggregator(int expectedSize) {
+	int cap = 16;
+	while(cap < 2*expectedSize) cap <<= 1;
+	allocate(cap);
+    }
+
+    private void allocate(int cap) {
+	keys = new String[cap];
+	counts = new int[cap];
+	hashes = new int[cap];
+	used = new int[cap/2 + 1];
+	mask = cap - 1;
+	size = 0;
+    }
+
+    private static final ThreadLocal<CountAggregator> local = new ThreadLocal<CountAggregator>() {
+	protected CountAggregator initialValue() {
+	    return new CountAggregator();
+	}
+    };
+
+    /** Returns this thread's aggregator, cleared and ready to use */
+    static CountAggregator aggregator() {
+	CountAggregator a = local.get();
+	a.clear();
+	return a;
+    }
+
+    /** Empties the table. The cost is proportional to the number of
+	entries, not to the table's capacity. */
+    void clear() {
+	for(int i=0; i<size; i++) {
+	    keys[used[i]] = null;
+	}
+	size = 0;
+    }
+
+    /** The number of distinct keys */
+    int size() {
+	return size;
+    }
+
+    /** Spreads the bits of String.hashCode() */
+    private static int mix(int h) {
+	h ^= (h >>> 16);
+	return h * 0x85EBCA6B;
+    }
+
+    /** map{key} += inc */
+    void add(String key, int inc) {
+	add(key, 0, key.length(), key.hashCode(), inc);
+    }
+
+    /** map{s.substring(start,end)} += inc, where h is the substring's
+	hash code (computed as in String.hashCode()). The substring is
+	only created if the key is new. */
+    private void add(String s, int start, int end, int h, int inc) {
+	int len = end - start;
+	int slot = mix(h) & mask;
+	while(true) {
+	    String k = keys[slot];
+	    if (k == null) break;
+	    if (hashes[slot]==h && k.length()==len && s.regionMatches(start, k, 0, len)) {
+		counts[slot] += inc;
+		return;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	keys[slot] = (start==0 && end==s.length()) ? s : s.substring(start, end);
+	counts[slot] = inc;
+	hashes[slot] = h;
+	used[size++] = slot;
+	if (2*size > mask) rehash();
+    }
+
+    /** map{key}, or 0 if the key is not there */
+    int get(String key) {
+	int h = key.hashCode();
+	int slot = mix(h) & mask;
+	while(keys[slot] != null) {
+	    if (hashes[slot]==h && keys[slot].equals(key)) return counts[slot];
+	    slot = (slot + 1) & mask;
+	}
+	return 0;
+    }
+
+    /** Doubles the capacity of the table */
+    private void rehash() {
+	String[] oldKeys = keys;
+	int[] oldCounts = counts, oldHashes = hashes, oldUsed = used;
+	int n = size;
+	allocate(2*oldKeys.length);
+	for(int i=0; i<n; i++) {
+	    int o = oldUsed[i];
+	    int slot = mix(oldHashes[o]) & mask;
+	    while(keys[slot] != null) slot = (slot + 1) & mask;
+	    keys[slot] = oldKeys[o];
+	    counts[slot] = oldCounts[o];
+	    hashes[slot] = oldHashes[o];
+	    used[size++] = slot;
+	}
+    }
+
+    /** Adds the counts from a text section with lines of the form
+	"aid count". Lines that don't have this form (such as the ":"
+	lines separating years in the old format) are ignored.
+     */
+    void addText(String text) {
+	if (text == null) return;
+	int n = text.length();
+	int pos = 0;
+	while(pos < n) {
+	    int h = 0, sp = -1, cnt = 0;
+	    boolean digits = false;
+	    int i = pos;
+	    for(; i<n; i++) {
+		char c = text.charAt(i);
+		if (c == '\n') break;
+		if (sp < 0) {
+		    if (c == ' ') sp = i;
+		    else h = 31*h + c;
+		} else if (c >= '0' && c <= '9') {
+		    cnt = 10*cnt + (c - '0');
+		    digits = true;
+		}
+	    }
+	    if (sp > pos && digits) add(text, pos, sp, h, cnt);
+	    pos = i + 1;
+	}
+    }
+
+    /** Is the entry in slot a ranked higher than that in slot b?
+	Higher counts go first; ties are broken by article ID, so that
+	the result does not depend on the hash table's layout. */
+    private boolean better(int a, int b) {
+	if (counts[a] != counts[b]) return counts[a] > counts[b];
+	return keys[a].compareTo(keys[b]) < 0;
+    }
+
+    /** Selects the top k entries.
+	@param k The max number of entries to return. If negative, all
+	entries are returned.
+	@return The slots of the top entries, best first
+     */
+    private int[] topSlots(int k) {
+	if (k < 0 || k > size) k = size;
+	// a min-heap (the worst of the current top k is at the root)
+	int[] heap = new int[k];
+	int hs = 0;
+	for(int i=0; i<size && k>0; i++) {
+	    int slot = used[i];
+	    if (hs < k) {
+		int j = hs++;
+		while(j > 0) {
+		    int parent = (j-1) >>> 1;
+		    if (!better(heap[parent], slot)) break;
+		    heap[j] = heap[parent];
+		    j = parent;
+		}
+		heap[j] = slot;
+	    } else if (better(slot, heap[0])) {
+		siftDown(heap, hs, slot);
+	    }
+	}
+	// pop the root (the worst) repeatedly, filling the result from the end
+	int[] top = new int[hs];
+	for(int j=hs-1; j>=0; j--) {
+	    top[j] = heap[0];
+	    hs--;
+	    if (hs > 0) siftDown(heap, hs, heap[hs]);
+	}
+	return top;
+    }
+
+    /** Puts slot at the root of the heap, and sifts it down */
+    private void siftDown(int[] heap, int hs, int slot) {
+	int j = 0;
+	while(true) {
+	    int c = 2*j + 1;
+	    if (c >= hs) break;
+	    if (c+1 < hs && better(heap[c], heap[c+1])) c++;
+	    if (!better(slot, heap[c])) break;
+	    heap[j] = heap[c];
+	    j = c;
+	}
+	heap[j] = slot;
+    }
+
+    /** Returns the top k entries, as a list of (aid, count) pairs
+	ordered by count in descending order
+	@param k The max number of entries to return. If negative, all
+	entries are returned.
+     */
+    List<Map.Entry<String, Integer>> toList(int k) {
+	int[] top = topSlots(k);
+	List<Map.Entry<String, Integer>> list = new ArrayList<Map.Entry<String, Integer>>(top.length);
+	for(int slot: top) {
+	    list.add(new AbstractMap.SimpleImmutableEntry<String,Integer>(keys[slot], counts[slot]));
+	}
+	return list;
+    }
+
+    /** Encodes the top k entries as a CoaccessRecord
+	@param k The max number of entries to serve. If negative, all
+	entries are stored and served.
+	@param tail The max number of additional entries to retain
+	beyond the top k (see CoaccessRecord.FLAG_TAIL)
+     */
+    byte[] encode(int k, int tail) {
+	int[] top = topSlots(k < 0 ? -1 : k + tail);
+	String[] a = new String[top.length];
+	int[] c = new int[top.length];
+	for(int i=0; i<top.length; i++) {
+	    a[i] = keys[top[i]];
+	    c[i] = counts[top[i]];
+	}
+	int served = (k < 0) ? top.length : Math.min(k, top.length);
+	return CoaccessRecord.encode(a, c, top.length, served);
+    }
+}
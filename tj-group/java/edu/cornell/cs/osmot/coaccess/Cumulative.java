@@ -9,6 +9,11 @@ import org.apache.commons.lang.mutable.*;
 /** Computes the cumulative distribution function from the distribution data prepared
     by CoaccessStats.
 
+    <p>CoaccessStats now writes the cumulative distribution files
+    (coaccess-count-cumul.dat, coaccess-diff-cumul.dat) itself, so this
+    tool is only needed for histogram files produced by older
+    versions.
+
     <p>For an example of command line for this tool, see
     coaccess-cumulative.sh (which is to be run aftet
     coaccess-stats.sh)
@@ -21,13 +21,23 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 
 import java.io.*;
@@ -43,13 +53,59 @@ public class IndexFiles {
     /** Index all text files under a directory. */
     public static void main(String[] args) {
         String usage = "java org.apache.lucene.demo.IndexFiles"
-        + " -aids aidListFile [-index INDEX_PATH] [-docs DOCS_PATH] [-update]\n\n"
+        + " {-aids aidListFile | -merge} [-index INDEX_PATH | -store STORE_PATH] [-docs DOCS_PATH] [-update] [-threads N] [-retain N] [-checkpoint N] [-resume] [-noforcemerge]\n"
+        + "java edu.cornell.cs.osmot.coaccess.IndexFiles -append YEAR [-force] [-index INDEX_PATH] [-docs DOCS_PATH] [-retain N]\n"
+        + "java edu.cornell.cs.osmot.coaccess.IndexFiles -merge -shards [-prefixes P1,P2,...] [-index INDEX_PATH] [-docs DOCS_PATH] [-threads N] [-retain N] [-resume] [-noforcemerge]\n"
+        + "java edu.cornell.cs.osmot.coaccess.IndexFiles -bloom [-index INDEX_PATH]\n"
+        + "java edu.cornell.cs.osmot.coaccess.IndexFiles -forcemerge [-index INDEX_PATH]\n\n"
         + "This indexes the documents in DOCS_PATH, creating a Lucene index"
-        + "in INDEX_PATH that can be searched with SearchFiles";
+        + "in INDEX_PATH that can be searched with SearchFiles. With -store,"
+        + " a memory-mapped CoaccessStore is created in STORE_PATH instead."
+        + " With -threads N (N>1), the year directories are read in parallel,"
+        + " and N threads aggregate and index the data. With -merge, no aid list"
+        + " is used; instead, all years' files for each prefix are merged in one"
+        + " sequential pass. Otherwise, the aid list has to be in the files'"
+        + " order, except in the year directories that have offset indexes"
+        + " (JoinedFileIndex -build). With -retain N, up to N entries beyond the top ones"
+        + " are kept in each record, so that a later -append YEAR (which only"
+        + " reads the directory DOCS_PATH/YEAR, and updates the existing"
+        + " records) can keep the counts accurate; -append keeps each record's"
+        + " existing tail size unless -retain N is given. Each of these also writes the"
+        + " dictionary of article IDs (AidDictionary) and their Bloom filter"
+        + " (" + BloomFilter.FILE + ") into the index or store directory; -bloom"
+        + " only (re)builds these two for an existing index. The two-hop lists"
+        + " (TwoHop) are dropped by both indexing and -append, and have to be"
+        + " recomputed afterwards. With -shards, INDEX_PATH becomes a"
+        + " ShardedIndex: one index per prefix, each built by one of N"
+        + " parallel workers; -prefixes rebuilds only the shards of the"
+        + " prefixes listed. -append and -bloom detect a sharded index, and"
+        + " work on each shard; two-hop lists are not available for it."
+        + " With -checkpoint N, the index is committed after every N articles,"
+        + " with the last article's ID, and an interrupted build can then be"
+        + " continued from there with -resume (and the same other options);"
+        + " since the partial index is visible to readers after each commit,"
+        + " build into a directory that is not being served. A sharded build"
+        + " resumes shard by shard. -noforcemerge leaves out the final"
+        + " force-merge into one segment, which -forcemerge can do later on"
+        + " the complete index (e.g. while it is being served)";
         String indexPath = "index";
         String docsPath = null;
 	String aidListFilePath = null;
 	String yearsString = null;
+	String storePath = null;
+	int nThreads = 1;
+	boolean merge = false;
+	int appendYear = 0;
+	boolean force = false;
+	boolean bloomOnly = false;
+	boolean shards = false;
+	Vector<String> prefixes = null;
+	int checkpointEvery = 0;
+	boolean resume = false;
+	boolean optimize = true;
+	boolean forceMergeOnly = false;
+	int retain = -1;
+	final int maxCnt = MAX_CNT;
 
 	boolean dry = false;
         boolean create = true;
@@ -60,12 +116,44 @@ public class IndexFiles {
             } else if ("-docs".equals(args[i])) {
                 docsPath = args[i+1];
                 i++;
+            } else if ("-store".equals(args[i])) {
+                storePath = args[i+1];
+                i++;
+            } else if ("-threads".equals(args[i])) {
+                nThreads = Integer.parseInt(args[i+1]);
+                i++;
             } else if ("-aids".equals(args[i])) {
                 aidListFilePath = args[i+1];
                 i++;
             } else if ("-years".equals(args[i])) {
                 yearsString = args[i+1];
                 i++;
+            } else if ("-append".equals(args[i])) {
+                appendYear = Integer.parseInt(args[i+1]);
+                i++;
+            } else if ("-force".equals(args[i])) {
+                force = true;
+            } else if ("-retain".equals(args[i])) {
+                retain = Integer.parseInt(args[i+1]);
+                i++;
+            } else if ("-bloom".equals(args[i])) {
+                bloomOnly = true;
+            } else if ("-merge".equals(args[i])) {
+                merge = true;
+            } else if ("-shards".equals(args[i])) {
+                shards = true;
+            } else if ("-checkpoint".equals(args[i])) {
+                checkpointEvery = Integer.parseInt(args[i+1]);
+                i++;
+            } else if ("-resume".equals(args[i])) {
+                resume = true;
+            } else if ("-noforcemerge".equals(args[i])) {
+                optimize = false;
+            } else if ("-forcemerge".equals(args[i])) {
+                forceMergeOnly = true;
+            } else if ("-prefixes".equals(args[i])) {
+                prefixes = new Vector<String>(Arrays.asList(args[i+1].split(",")));
+                i++;
             } else if ("-update".equals(args[i])) {
                 create = false;
             } else if ("-dry".equals(args[i])) {
@@ -74,10 +162,37 @@ public class IndexFiles {
             }
         }
         
-        if (docsPath == null || aidListFilePath == null) {
+	if (forceMergeOnly) {
+	    try {
+		Date t0 = new Date();
+		forceMerge(new File(indexPath));
+		System.out.println("Force-merged the index in " + indexPath + " in " + (new Date().getTime() - t0.getTime()) + " msec");
+		System.exit(0);
+	    } catch (IOException e) {
+		System.out.println(" caught a " + e.getClass() +
+				   "\n with message: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+	if (bloomOnly) {
+	    try {
+		if (ShardedIndex.isSharded(new File(indexPath))) ShardedIndex.writeAidFiles(new File(indexPath));
+		else writeAidFiles(new File(indexPath));
+		System.exit(0);
+	    } catch (IOException e) {
+		System.out.println(" caught a " + e.getClass() +
+				   "\n with message: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+        if (docsPath == null || (aidListFilePath == null && !merge && appendYear==0)) {
             System.err.println("Usage: " + usage);
             System.exit(1);
         }
+	// -append keeps the existing tails by default; a build has none
+	if (retain < 0 && appendYear == 0) retain = 0;
         
         final File docDir = new File(docsPath);
         // Making sure the directory exists
@@ -88,12 +203,60 @@ public class IndexFiles {
         
         Date start = new Date();
 
+	if (appendYear != 0) {
+	    try {
+		File y = new File(docDir, "" + appendYear);
+		if (!y.canRead()) throw new IOException("Cannot read directory " + y);
+		int cnt;
+		if (ShardedIndex.isSharded(new File(indexPath))) {
+		    cnt = ShardedIndex.appendYear(new File(indexPath), y, appendYear, maxCnt, retain, force);
+		} else {
+		    cnt = appendYear(new File(indexPath), y, appendYear, maxCnt, retain, force);
+		    writeAidFiles(new File(indexPath));
+		}
+		System.out.println("Merged year " + appendYear + "'s data for " + cnt + " articles into the index in " + indexPath);
+		System.out.println(new Date().getTime() - start.getTime() + " total milliseconds");
+		System.exit(0);
+	    } catch (IOException e) {
+		System.out.println(" caught a " + e.getClass() +
+				   "\n with message: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
 	int[] years = makeYearList(yearsString);
 
+	if (shards) {
+	    if (!merge || storePath!=null || !create) {
+		System.err.println("-shards only works with -merge, and without -store, -update or -dry\nUsage: " + usage);
+		System.exit(1);
+	    }
+	    try {
+		File yearDirs[] = new File[years.length];
+		for(int i=0; i<years.length; i++) {
+		    yearDirs[i] = new File(docDir, "" + years[i]);
+		    if (!yearDirs[i].canRead()) throw new IOException("Cannot read directory " + yearDirs[i]);
+		}
+		int cnt = ShardedIndex.build(new File(indexPath), yearDirs, years, prefixes, maxCnt, retain, nThreads, resume, optimize);
+		System.out.println("Merged data for " + cnt + " articles from " + years.length + " years' directories into the shards in " + indexPath);
+		System.out.println(new Date().getTime() - start.getTime() + " total milliseconds");
+		System.exit(0);
+	    } catch (IOException e) {
+		System.out.println(" caught a " + e.getClass() +
+				   "\n with message: " + e.getMessage());
+		System.exit(1);
+	    }
+	}
+
+	if ((resume || checkpointEvery > 0) && (dry || storePath!=null)) {
+	    System.err.println("-checkpoint and -resume only work for a Lucene index, without -store or -dry\nUsage: " + usage);
+	    System.exit(1);
+	}
+
         try {
-	    Vector<String> aids = readAidList(aidListFilePath); 
+	    Vector<String> aids = merge? null : readAidList(aidListFilePath); 
 
-            System.out.println("At "+new Date()+", indexing to directory '" + indexPath + "'...");
+            System.out.println("At "+new Date()+", indexing to directory '" + (storePath!=null? storePath : indexPath) + "'...");
             
             Directory dir = FSDirectory.open(new File(indexPath));
             Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_40);
@@ -101,6 +264,12 @@ public class IndexFiles {
             
             if (dry) {
 		System.out.println("This is a dry run; no indexing will be actually done!");
+            } else if (storePath != null) {
+		System.out.println("Building a memory-mapped coaccess store, rather than a Lucene index");
+            } else if (resume) {
+                // Continue with the index as of its last checkpoint:
+		if (!DirectoryReader.indexExists(dir)) throw new IOException("There is no checkpoint to resume from in " + indexPath);
+                iwc.setOpenMode(OpenMode.APPEND);
             } else if (create) {
                 // Create a new index in the directory, removing any
                 // previously indexed documents:
@@ -116,9 +285,35 @@ public class IndexFiles {
             // size to the JVM (eg add -Xmx512m or -Xmx1g):
             //
             iwc.setRAMBufferSizeMB(512.0);            
-            IndexWriter writer = dry? null : new IndexWriter(dir, iwc);
+            IndexWriter writer = (dry || storePath!=null)? null : new IndexWriter(dir, iwc);
+	    CoaccessStore.Writer store = (!dry && storePath!=null)?
+		new CoaccessStore.Writer(new File(storePath)) : null;
+
+	    if (writer!=null && create && !resume) {
+		// OpenMode.CREATE keeps the commit data of the old index
+		// (its years, checkpoint, etc.), which don't apply to the
+		// new one
+		writer.setCommitData(new HashMap<String,String>());
+	    }
+
+	    // the last article indexed before the checkpoint
+	    String after = null;
+	    if (resume) {
+		after = writer.getCommitData().get(CHECKPOINT_KEY);
+		if (after == null) throw new IOException("There is no checkpoint to resume from in " + indexPath);
+		String building = writer.getCommitData().get(BUILDING_KEY);
+		if (!Checkpointer.yearList(years).equals(building)) {
+		    throw new IOException("The interrupted build in " + indexPath + " was for the years " + building + ", not " + Checkpointer.yearList(years));
+		}
+		System.out.println("Resuming the build after the checkpoint at " + after);
+		if (!merge) {
+		    int pos = aids.indexOf(after);
+		    if (pos < 0) throw new IOException("The article of the checkpoint, " + after + ", is not in the aid list " + aidListFilePath);
+		    aids = new Vector<String>(aids.subList(pos + 1, aids.size()));
+		}
+	    }
+	    final Checkpointer ckpt = (writer!=null && checkpointEvery > 0) ? new Checkpointer(writer, checkpointEvery, years) : null;
 
-	    final int maxCnt = 100;
 	    if (maxCnt>=0) {
 		System.out.println("Restricting the number of results per article to " + maxCnt);
 	    } else {
@@ -138,14 +333,67 @@ public class IndexFiles {
 	    }
 
 	    int doneCnt = 0;
-	    for(String aid: aids) {
-		boolean done = indexDocs(writer, fa, aid, maxCnt);
-		if (done) doneCnt ++;
-            }
+	    if (merge) {
+		System.out.println("Merging the files of " + years.length + " years, prefix by prefix");
+		YearMerger merger = new YearMerger(yearDirs);
+		final IndexWriter w = writer;
+		final CoaccessStore.Writer st = store;
+		final int m = maxCnt, t = retain;
+		final int[] yl = years;
+		if (nThreads > 1) {
+		    final IndexPipeline pipeline = new IndexPipeline(writer, store, years, maxCnt, retain, nThreads, 1024);
+		    if (ckpt!=null) ckpt.pipeline = pipeline;
+		    pipeline.start();
+		    try {
+			merger.run(new YearMerger.Handler() {
+				void handle(String aid, String[] v) throws IOException {
+				    pipeline.put(aid, v);
+				    if (ckpt!=null) ckpt.done(aid);
+				}
+			    }, after);
+		    } finally {
+			doneCnt = pipeline.finish();
+		    }
+		} else {
+		    doneCnt = merger.run(new YearMerger.Handler() {
+			    void handle(String aid, String[] v) throws IOException {
+				indexData(w, st, aid, v, yl, m, t);
+				if (ckpt!=null) ckpt.done(aid);
+			    }
+			}, after);
+		}
+	    } else if (nThreads > 1) {
+		System.out.println("Indexing with " + nThreads + " threads, and " + fa.length + " reader threads");
+		Vector<String> goodAids = new Vector<String>(aids.size());
+		for(String aid: aids) {
+		    if (getPrefix(aid)==null) {
+			System.err.println("Warning: no prefix in aid=" + aid);
+		    } else {
+			goodAids.add(aid);
+		    }
+		}
+		IndexPipeline pipeline = new IndexPipeline(writer, store, years, maxCnt, retain, nThreads, 1024);
+		if (ckpt!=null) {
+		    ckpt.pipeline = pipeline;
+		    pipeline.setCheckpointer(ckpt);
+		}
+		doneCnt = pipeline.run(goodAids, fa);
+	    } else {
+		for(String aid: aids) {
+		    boolean done = indexDocs(writer, store, fa, years, aid, maxCnt, retain);
+		    if (done) doneCnt ++;
+		    if (ckpt!=null) ckpt.done(aid);
+		}
+	    }
 
 	    for(FileAccess f: fa) { f.closeAll(); }
+	    if (store!=null) store.close();
 
-            System.out.println("Looked for files for " + aids.size() + " articles, in " + years.length + " years' directories. Found at least some data for " + doneCnt + " articles out of these.");
+	    if (merge) {
+		System.out.println("Merged data for " + doneCnt + " articles from " + years.length + " years' directories.");
+	    } else {
+		System.out.println("Looked for files for " + aids.size() + " articles, in " + years.length + " years' directories. Found at least some data for " + doneCnt + " articles out of these.");
+	    }
 	    System.out.println("At "+new Date()+ ", done indexing documents");
 
             // NOTE: if you want to maximize search performance,
@@ -160,16 +408,35 @@ public class IndexFiles {
 	    // forceMerge():
 	    // http://blog.trifork.com/2011/11/21/simon-says-optimize-is-bad-for-you/
 	    
-	    final boolean optimize  = true;
+	    if (writer!=null) {
+		Set<Integer> done = (create && !resume)? new TreeSet<Integer>() : getYears(writer);
+		for(int y: years) done.add(y);
+		setYears(writer, done);
+		// the build is complete, so this is not a commit to
+		// resume from
+		Checkpointer.clear(writer);
+	    }
+
+	    if (writer!=null && (ckpt!=null || resume)) {
+		// the force-merge can take long; don't let an
+		// interruption of it undo the build
+		writer.commit();
+	    }
+
 	    if (optimize && writer!=null) {
 		System.out.println("At "+new Date()+", force-merging index...");
 		writer.forceMerge(1);
 		// writer.optimize();
 		System.out.println("At "+new Date()+", done force-merging index.");
+	    } else if (writer!=null) {
+		System.out.println("Not force-merging the index; run IndexFiles -forcemerge on it later");
 	    }
 	    
 
-            if (writer!=null) writer.close();
+            if (writer!=null) {
+		writer.close();
+		writeAidFiles(new File(indexPath));
+	    }
             
             Date end = new Date();
 
@@ -227,9 +494,21 @@ public class IndexFiles {
     }
 
 
-    /** The names of fields for Lucene documents to create. */
+    /** The number of top entries stored (and served) for each
+	article */
+    static final int MAX_CNT = 100;
+
+    /** The names of fields for Lucene documents to create. COACCESS
+	is the old text format, which is no longer written, but can still
+	be read from older indexes; COACCESS_BIN is the binary format
+	described in CoaccessRecord; COACCESS_YEARS holds the
+	per-year counts of the same partners (see YearCounts);
+	COACCESS_2HOP, the two-hop list, in the same format as
+	COACCESS_BIN, added by TwoHop. */
     static class Fields {
-	static final String ARXIV_ID = "arxiv_id", COACCESS = "coaccess";
+	static final String ARXIV_ID = "arxiv_id", COACCESS = "coaccess",
+	    COACCESS_BIN = "coaccess_bin", COACCESS_YEARS = "coaccess_years",
+	    COACCESS_2HOP = "coaccess_2hop";
     }
 
     abstract static class FileAccess {
@@ -266,10 +545,15 @@ public class IndexFiles {
 	}
     }
 
-    /** Reading data from joined files (one file per prefix) */
+    /** Reading data from joined files (one file per prefix). If the
+	current file has an up-to-date offset index (JoinedFileIndex),
+	read() looks the articles up in it, in any order; otherwise, it
+	reads the file sequentially, and the articles have to be
+	requested in the file's order. */
     static class JoinedFileAccess extends FileAccess {
 	File ydir;
 	LineNumberReader r = null;
+	JoinedFileIndex offsets = null;
 	String oldPrefix = null;
 	String prereadAid = null;       
 
@@ -299,7 +583,7 @@ public class IndexFiles {
 	}
 
 	/** Expects that the AID line has been pre-read already; reads the doc body, and pre-reads the next ID line */
-	private String readBody()  throws IOException{
+	String readBody()  throws IOException{
 	    if (prereadAid == null) throw new AssertionError("Cannot call readBody() w/o pre-read ID");
 	    //System.out.println("Readbody ("+ydir+") for aid=" + prereadAid);
 	    prereadAid = null;
@@ -316,14 +600,18 @@ public class IndexFiles {
 	    String prefix = getPrefix(aid);
 
 	    if (oldPrefix == null || !prefix.equals(oldPrefix)) {
-		if (r!=null) closeAll();
+		if (r!=null || offsets!=null) closeAll();
 		File f = new File(ydir, prefix + ".txt");
 		if (!f.exists()) return null;
-		FileReader fr = new FileReader(f);
-		r =  new LineNumberReader(fr, 16384);
+		offsets = JoinedFileIndex.open(f);
+		if (offsets == null) {
+		    FileReader fr = new FileReader(f);
+		    r =  new LineNumberReader(fr, 16384);
+		}
 		oldPrefix = prefix;
 	    }
 
+	    if (offsets != null) return offsets.read(aid);
 	    if (!preread()) return null;
 	    while( prereadAid != null && prereadAid.compareTo(aid) < 0) {
 		readBody();
@@ -333,6 +621,37 @@ public class IndexFiles {
 	void closeAll()	 throws IOException{
 	    if (r!=null) r.close();
 	    r = null;
+	    if (offsets!=null) offsets.close();
+	    offsets = null;
+	    // the pre-read ID belongs to the file just closed
+	    prereadAid = null;
+	    oldPrefix = null;
+	}
+
+	/** Opens the file for the specified prefix, for a sequential
+	    pass with nextAid() and readBody() (as done by YearMerger),
+	    rather than for lookups with read().
+	    @return false if there is no file for this prefix in this
+	    year's directory
+	*/
+	boolean open(String prefix) throws IOException {
+	    closeAll();
+	    File f = new File(ydir, prefix + ".txt");
+	    if (!f.exists()) return false;
+	    r =  new LineNumberReader(new FileReader(f), 16384);
+	    oldPrefix = prefix;
+	    return true;
+	}
+
+	/** Pre-reads the ID line of the next article in the file.
+	    @return The ID, or null on EOF (or if no file is open) */
+	String nextAid() throws IOException {
+	    return (r != null && preread()) ? prereadAid : null;
+	}
+
+	/** The number of the last line read, for error messages */
+	int getLineNumber() {
+	    return (r==null) ? 0 : r.getLineNumber();
 	}
     }
 
@@ -350,13 +669,15 @@ public class IndexFiles {
      href="../../../../../contrib-benchmark/org/apache/lucene/benchmark/byTask/tasks/WriteLineDocTask.html">WriteLineDocTask</a>.
      
      @param writer Writer to the index where the given file/dir info will be stored
+     @param store If not null, the record goes to this memory-mapped store, rather than to the Lucene index
      @param dataDir Directory in which year subdirectories are to be found. E.g.  "/data/coaccess/round5/"
+     @param years The year of each element of fa, for the per-year counts
 
      @return true if a document has been created
 
      @throws IOException If there is a low-level I/O error
      */
-    static boolean indexDocs(IndexWriter writer, FileAccess[] fa, String aid, int maxCnt)
+    static boolean indexDocs(IndexWriter writer, CoaccessStore.Writer store, FileAccess[] fa, int[] years, String aid, int maxCnt, int retain)
     throws IOException {
 
 	// Loads 10+ years of top k documents and uses :  as delimiter to separate years
@@ -382,13 +703,49 @@ public class IndexFiles {
 	    v[yp++] = s;
 	}
 	if (foundFileCnt==0) return false; // no files found for this article
-	
+	indexData(writer, store, aid, v, years, maxCnt, retain);
+	return true;
+    }
+
+    /** Aggregates one article's data from all years, and stores the
+	result in the index (or the store). This method can be called
+	from several threads at once.
+	@param v The data for each year; "" for years with no data
+	@param years The year of each element of v. If not null, the
+	per-year counts (YearCounts) are stored as well; this is only
+	done in the Lucene index, not in the store.
+	@param maxCnt The number of top entries to store
+	@param retain The number of additional entries to retain as the tail
+     */
+    static void indexData(IndexWriter writer, CoaccessStore.Writer store, String aid, String[] v, int[] years, int maxCnt, int retain)
+    throws IOException {
+	byte[] rec = SearchFiles.aggregate(v).encode(maxCnt, retain);
+	byte[] yearData = (store==null && years!=null) ? YearCounts.build(rec, v, years) : null;
+	storeRecord(writer, store, aid, rec, yearData);
+    }
+
+    /** Stores one article's encoded coaccess list in the index (or
+	the store). */
+    static void storeRecord(IndexWriter writer, CoaccessStore.Writer store, String aid, byte[] coaccessData)
+    throws IOException {
+	storeRecord(writer, store, aid, coaccessData, null);
+    }
+
+    /** Stores one article's encoded coaccess list, and, if yearData
+	is not null, its per-year counts, in the index (or the store,
+	which only takes the former). */
+    static void storeRecord(IndexWriter writer, CoaccessStore.Writer store, String aid, byte[] coaccessData, byte[] yearData)
+    throws IOException {
+	if (store!=null) {
+	    store.add(aid, coaccessData);
+	    return;
+	}
+
 	// make a new, empty document
 	Document doc = new Document();
 
-	String coaccessData = SearchFiles.consolidate( v,  maxCnt);
-      	Field yearField = new StringField(Fields.COACCESS, coaccessData, Field.Store.YES);
-	doc.add(yearField);
+	doc.add(new StoredField(Fields.COACCESS_BIN, coaccessData));
+	if (yearData!=null) doc.add(new StoredField(Fields.COACCESS_YEARS, yearData));
         
 	// Add unique id; this is arxiv id in this case
 	Field uniqueField = new StringField(Fields.ARXIV_ID, aid, Field.Store.YES);
@@ -410,12 +767,335 @@ public class IndexFiles {
 	    System.out.println("Updating doc " + aid);
 	    writer.updateDocument(new Term(Fields.ARXIV_ID, aid), doc);
 	}
-	return true;
+    }
+
+    /** The key, in the index's commit user data, under which the
+	list of years already included in the index is kept */
+    static final String YEARS_KEY = "years";
+
+    /** Which years' data have been indexed, according to the last commit */
+    static Set<Integer> getYears(IndexWriter writer) {
+	return getYears(writer, YEARS_KEY);
+    }
+
+    /** Reads a list of years kept in the commit user data under the
+	specified key */
+    static Set<Integer> getYears(IndexWriter writer, String key) {
+	return getYears(writer.getCommitData(), key);
+    }
+
+    /** Reads a list of years kept under the specified key in the
+	user data of a commit */
+    static Set<Integer> getYears(Map<String,String> data, String key) {
+	Set<Integer> years = new TreeSet<Integer>();
+	String s = data.get(key);
+	if (s==null) return years;
+	for(String y: s.split(",")) {
+	    if (y.length()>0) years.add(Integer.parseInt(y));
+	}
+	return years;
+    }
+
+    /** Records (to be saved with the next commit) which years' data
+	the index includes */
+    static void setYears(IndexWriter writer, Set<Integer> years) {
+	setYears(writer, YEARS_KEY, years);
+    }
+
+    static void setYears(IndexWriter writer, String key, Set<Integer> years) {
+	StringBuffer b = new StringBuffer();
+	for(int y: years) {
+	    if (b.length()>0) b.append(",");
+	    b.append(y);
+	}
+	Map<String,String> data = new HashMap<String,String>(writer.getCommitData());
+	data.put(key, b.toString());
+	writer.setCommitData(data);
+    }
+
+    /** The keys, in the commit user data, under which a build with
+	checkpoints (-checkpoint) keeps the ID of the last article
+	indexed before the commit, and the years being indexed. Both are
+	removed once the build is complete. */
+    static final String CHECKPOINT_KEY = "checkpoint", BUILDING_KEY = "building";
+
+    /** Commits the index every so often during a build, recording
+	the last article indexed, so that an interrupted build can be
+	resumed after it (-resume). The articles must be passed to
+	done() in the order in which they are indexed; with an
+	IndexPipeline, the workers are waited for before each commit. */
+    static class Checkpointer {
+	final IndexWriter writer;
+	final int every;
+	final String years;
+	/** If not null, the pipeline whose workers index the articles */
+	IndexPipeline pipeline = null;
+	private int cnt = 0;
+
+	Checkpointer(IndexWriter _writer, int _every, int[] _years) {
+	    writer = _writer;
+	    every = _every;
+	    years = yearList(_years);
+	}
+
+	/** The years, as kept under BUILDING_KEY */
+	static String yearList(int[] years) {
+	    StringBuffer b = new StringBuffer();
+	    for(int y: years) {
+		if (b.length()>0) b.append(",");
+		b.append(y);
+	    }
+	    return b.toString();
+	}
+
+	/** Called after each article has been indexed (or queued for
+	    indexing, or skipped); commits after every N-th */
+	void done(String aid) throws IOException {
+	    if (++cnt % every != 0) return;
+	    if (pipeline != null) pipeline.await();
+	    Map<String,String> data = new HashMap<String,String>(writer.getCommitData());
+	    data.put(CHECKPOINT_KEY, aid);
+	    data.put(BUILDING_KEY, years);
+	    writer.setCommitData(data);
+	    writer.commit();
+	    System.out.println("At " + new Date() + ", checkpoint after " + cnt + " articles, at " + aid);
+	}
+
+	/** Removes the checkpoint from the commit data (to be saved
+	    with the next commit) */
+	static void clear(IndexWriter writer) {
+	    Map<String,String> data = new HashMap<String,String>(writer.getCommitData());
+	    data.remove(CHECKPOINT_KEY);
+	    data.remove(BUILDING_KEY);
+	    writer.setCommitData(data);
+	}
+    }
+
+    /** Force-merges a complete index (or each shard of a
+	ShardedIndex) into one segment, and then rewrites its dictionary
+	and Bloom filter, since the filter is stamped with the commit.
+	This is the last step of a build, unless -noforcemerge has put
+	it off; the index can be served meanwhile, and the readers
+	switch to the merged index when they are reopened.
+     */
+    static void forceMerge(File indexDir) throws IOException {
+	if (ShardedIndex.isSharded(indexDir)) {
+	    for(File d: ShardedIndex.readMap(indexDir).values()) forceMerge(d);
+	    return;
+	}
+	Directory dir = FSDirectory.open(indexDir);
+	IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	iwc.setOpenMode(OpenMode.APPEND);
+	IndexWriter writer = new IndexWriter(dir, iwc);
+	boolean success = false;
+	try {
+	    if (writer.getCommitData().get(CHECKPOINT_KEY) != null) {
+		throw new IOException("The build of the index in " + indexDir + " has not been completed; finish it with -resume first");
+	    }
+	    System.out.println("At " + new Date() + ", force-merging the index in " + indexDir + "...");
+	    writer.forceMerge(1);
+	    writer.close();
+	    success = true;
+	} finally {
+	    if (!success) writer.rollback();
+	    dir.close();
+	}
+	writeAidFiles(indexDir);
+    }
+
+    /** Merges one new year's data into an existing index, without
+	re-reading any of the earlier years' directories. For each article
+	in the new year's files, the currently stored list (including its
+	retained tail, if any) is decoded, the new counts are added to
+	it, and the document is replaced. Articles with no data in the
+	new year are not touched.
+
+	<p>A partner whose count had been cut off from the stored list
+	(i.e. was below both the top maxCnt and the retained tail) starts
+	from zero; to keep this error small, build the index with a
+	sufficiently large -retain.
+
+	@param ydir The new year's directory, e.g. /data/coaccess/round5/2017
+	@param force If false, refuse to merge a year which, according to
+	the index's commit data, has already been included
+	@return The number of articles updated
+     */
+    static int appendYear(File indexDir, File ydir, int year, final int maxCnt, final int retain, boolean force) throws IOException {
+	return appendYear(indexDir, ydir, null, year, maxCnt, retain, force);
+    }
+
+    /** Merges the new year's data for one prefix only (e.g. into
+	that prefix's shard of a ShardedIndex), or for all prefixes if
+	prefix is null.
+     */
+    static int appendYear(File indexDir, File ydir, String prefix, int year, final int maxCnt, final int retain, boolean force) throws IOException {
+	Directory dir = FSDirectory.open(indexDir);
+	IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	iwc.setOpenMode(OpenMode.APPEND);
+	iwc.setRAMBufferSizeMB(512.0);
+	final IndexWriter writer = new IndexWriter(dir, iwc);
+	// The reader sees the index as it was before this run. This is
+	// all we need, since each article occurs in the new year's data
+	// only once.
+	DirectoryReader reader = null;
+	boolean success = false;
+	try {
+	    Set<Integer> done = getYears(writer);
+	    if (done.contains(year) && !force) {
+		throw new IOException("Year " + year + " has already been merged into the index in " + indexDir + "; use -force to merge it again");
+	    }
+	    if (getYears(writer, DELTA_KEY).contains(year) && !force) {
+		throw new IOException("Live updates for year " + year + " have been folded into the index in " + indexDir + " (see CoaccessDelta), and would be counted twice; rebuild the index, or use -force");
+	    }
+	    reader = DirectoryReader.open(dir);
+	    final IndexSearcher searcher = new IndexSearcher(reader);
+	    final int y = year;
+	    YearMerger.Handler h = new YearMerger.Handler() {
+		    void handle(String aid, String[] v) throws IOException {
+			foldArticle(writer, searcher, aid, v[0], y, maxCnt, retain);
+		    }
+		};
+	    YearMerger merger = new YearMerger(new File[] {ydir});
+	    int cnt = (prefix==null) ? merger.run(h) : merger.mergePrefix(prefix, h);
+	    done.add(year);
+	    setYears(writer, done);
+	    writer.close();
+	    success = true;
+	    return cnt;
+	} finally {
+	    if (!success) writer.rollback();
+	    if (reader!=null) reader.close();
+	    dir.close();
+	}
+    }
+
+    /** Adds new counts for one year to an article's stored list (and
+	its per-year counts, if it has them), and replaces the
+	document, as described for appendYear().
+	@param searcher Searches the index as it was before the update
+	@param text The new counts, as "aid count" lines
+	@param retain The max number of entries to retain beyond the
+	top maxCnt; if negative, the same number as in the old record
+     */
+    static void foldArticle(IndexWriter writer, IndexSearcher searcher, String aid, String text, int year, int maxCnt, int retain)
+    throws IOException {
+	int doc = CoaccessIndex.findDoc(searcher, aid);
+	CoaccessRecord oldRec = null;
+	YearCounts old = null;
+	boolean hasYears = true;
+	int tail = Math.max(retain, 0);
+	if (doc >= 0) {
+	    Document d = searcher.doc(doc);
+	    oldRec = CoaccessIndex.getRecord(d);
+	    if (oldRec != null && retain < 0) tail = oldRec.size() - oldRec.topSize();
+	    old = CoaccessIndex.getYearCounts(d);
+	    // the per-year counts can't be made up for
+	    // the years before, if they were not stored
+	    hasYears = (old != null);
+	}
+	// the old record is all read (and aggregated) before the
+	// thread's aggregator is taken, as that clears it
+	CountAggregator agg = CountAggregator.aggregator();
+	if (oldRec != null) {
+	    while(oldRec.next()) agg.add(oldRec.aid(), oldRec.count());
+	}
+	agg.addText(text);
+	byte[] rec = agg.encode(maxCnt, tail);
+	byte[] yearData = hasYears ? YearCounts.addYear(old, rec, text, year) : null;
+	storeRecord(writer, null, aid, rec, yearData);
+    }
+
+    /** The key, in the index's commit user data, under which the
+	list of years into which live updates have been folded
+	(foldDelta()) is kept. Merging such a year's log data with
+	-append would count those views twice. */
+    static final String DELTA_KEY = "delta";
+
+    /** Folds the live updates collected by CoaccessDelta into the
+	index, as one more part of the specified year's counts; the
+	articles not in the index yet are added. The dictionary and the
+	Bloom filter are rewritten afterwards. If another process (e.g.
+	IndexFiles) is writing the index, this fails, since the index
+	is locked.
+	@param texts The new counts of each article, as "aid count" lines
+	@return The number of articles updated or added
+     */
+    static int foldDelta(File indexDir, Map<String,String> texts, int year) throws IOException {
+	Directory dir = FSDirectory.open(indexDir);
+	IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	iwc.setOpenMode(OpenMode.APPEND);
+	IndexWriter writer = new IndexWriter(dir, iwc);
+	DirectoryReader reader = null;
+	boolean success = false;
+	try {
+	    reader = DirectoryReader.open(dir);
+	    IndexSearcher searcher = new IndexSearcher(reader);
+	    // visit the articles in order, as the terms dictionary has them
+	    for(String aid: new TreeSet<String>(texts.keySet())) {
+		foldArticle(writer, searcher, aid, texts.get(aid), year, MAX_CNT, -1);
+	    }
+	    Set<Integer> folded = getYears(writer, DELTA_KEY);
+	    folded.add(year);
+	    setYears(writer, DELTA_KEY, folded);
+	    writer.close();
+	    success = true;
+	} finally {
+	    if (!success) writer.rollback();
+	    if (reader!=null) reader.close();
+	    dir.close();
+	}
+	writeAidFiles(indexDir);
+	return texts.size();
+    }
+
+    /** Writes the files derived from the list of all article IDs in
+	the index: the AidDictionary, and a Bloom filter. Both are
+	built in one pass over the terms dictionary of the ARXIV_ID
+	field, which is already in the byte order the AidDictionary
+	needs.
+
+	<p>The Bloom filter is stamped with the generation of the
+	current commit. This is done after the writer has been closed,
+	so the filter is written after the commit; until then,
+	CoaccessIndex, seeing that the stamp of the old filter does not
+	match the new commit, does not use any filter.
+     */
+    static void writeAidFiles(File indexDir) throws IOException {
+	Directory dir = FSDirectory.open(indexDir);
+	DirectoryReader reader = DirectoryReader.open(dir);
+	try {
+	    BloomFilter filter = new BloomFilter(reader.maxDoc(), BloomFilter.FPP, reader.getIndexCommit().getGeneration());
+	    AidDictionary.Writer dict = new AidDictionary.Writer(indexDir);
+	    Terms terms = MultiFields.getTerms(reader, Fields.ARXIV_ID);
+	    Bits live = MultiFields.getLiveDocs(reader);
+	    int cnt = 0;
+	    if (terms!=null) {
+		TermsEnum te = terms.iterator(null);
+		DocsEnum de = null;
+		BytesRef term;
+		while((term = te.next())!=null) {
+		    // skip the terms left over from replaced documents
+		    de = te.docs(live, de, DocsEnum.FLAG_NONE);
+		    if (de.nextDoc() == DocIdSetIterator.NO_MORE_DOCS) continue;
+		    filter.add(term.utf8ToString());
+		    byte[] b = new byte[term.length];
+		    System.arraycopy(term.bytes, term.offset, b, 0, term.length);
+		    dict.add(b);
+		    cnt++;
+		}
+	    }
+	    dict.close();
+	    filter.write(new File(indexDir, BloomFilter.FILE));
+	    System.out.println("Wrote the dictionary and the Bloom filter of " + cnt + " article IDs to " + indexDir);
+	} finally {
+	    reader.close();
+	    dir.close();
+	}
     }
 
     private static final char sep[] = {'.', '/', '@'};
 
-    private static String getPrefix(String aid) {
+    static String getPrefix(String aid) {
 	for(char c:  sep) {
 	    int k = aid.indexOf(c);
 	    if (k > 0) return aid.substring(0, k);
@@ -0,0 +1,266 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+
+import org.apache.lucene.index.IndexWriter;
+
+/** A multi-threaded version of the main loop of IndexFiles. Instead
+    of reading all years' data for one article, consolidating them,
+    and adding the document, one step after another, the work is split
+    into stages connected by bounded queues:
+
+    <ul>
+    <li>One reader thread per year directory, each with its own
+    FileAccess, reads that year's data for every article in the list,
+    in order;
+    <li>The calling thread joins the years' data for each article into
+    one record, and puts it into the work queue;
+    <li>N worker threads aggregate the records and add them to the
+    shared IndexWriter (which is thread-safe), or to the
+    CoaccessStore.Writer (whose methods are synchronized).
+    </ul>
+
+    <p>The queues are bounded, so that fast readers do not run far
+    ahead of the workers and fill up the memory. If any thread fails,
+    the whole run is stopped, and the exception is rethrown by
+    run().
+
+    <p>For a checkpoint (IndexFiles.Checkpointer), the calling thread
+    waits until the workers have indexed everything it has queued
+    (await()), so that the commit includes all the articles up to the
+    last one queued, and none after it.
+ */
+class IndexPipeline {
+
+    private final IndexWriter writer;
+    private final CoaccessStore.Writer store;
+    private final int[] years;
+    private final int maxCnt, retain;
+    private final int nThreads;
+    private final int queueSize;
+
+    /** One article's data, as read from all years' directories */
+    static class Item {
+	final String aid;
+	final String[] years;
+	Item(String _aid, String[] _years) {
+	    aid = _aid;
+	    years = _years;
+	}
+    }
+
+    /** Put into a queue to tell the consumer that there will be no
+	more items */
+    private static final Item END = new Item(null, null);
+    /** Used by the year readers in place of null (which can't be
+	queued) for "no data for this article in this year" */
+    private static final String NONE = new String("");
+
+    private final BlockingQueue<Item> work;
+    private final AtomicInteger doneCnt = new AtomicInteger();
+    /** The number of items queued, and not indexed yet */
+    private final AtomicInteger pending = new AtomicInteger();
+    /** Told about every article passed on by run(), if not null */
+    private IndexFiles.Checkpointer checkpointer = null;
+    /** The first exception thrown in any of the threads */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final Vector<Thread> workers = new Vector<Thread>();
+
+    /**
+       @param _writer The index to add documents to (or null, if _store is used, or for a dry run)
+       @param _store If not null, records go to this store, rather than to the Lucene index
+       @param _years The year of each element of an Item's data (see IndexFiles.indexData())
+       @param _maxCnt The number of top entries to store for each article
+       @param _retain The number of additional entries to retain as the tail
+       @param _nThreads The number of aggregation/indexing threads
+       @param _queueSize The capacity of each queue between stages
+     */
+    IndexPipeline(IndexWriter _writer, CoaccessStore.Writer _store, int[] _years, int _maxCnt, int _retain, int _nThreads, int _queueSize) {
+	writer = _writer;
+	store = _store;
+	years = _years;
+	maxCnt = _maxCnt;
+	retain = _retain;
+	nThreads = _nThreads;
+	queueSize = _queueSize;
+	work = new ArrayBlockingQueue<Item>(queueSize);
+    }
+
+    private void fail(Throwable ex) {
+	if (failure.compareAndSet(null, ex)) {
+	    System.err.println("Indexing thread failed: " + ex);
+	    ex.printStackTrace(System.err);
+	}
+    }
+
+    /** Takes items from the work queue, and indexes them */
+    private class Worker extends Thread {
+	Worker(int i) {
+	    super("index-worker-" + i);
+	}
+	public void run() {
+	    try {
+		while(true) {
+		    Item item = work.take();
+		    if (item == END) break;
+		    if (failure.get() != null) continue; // drain the queue
+		    try {
+			IndexFiles.indexData(writer, store, item.aid, item.years, years, maxCnt, retain);
+		    } finally {
+			pending.decrementAndGet();
+		    }
+		    doneCnt.incrementAndGet();
+		}
+	    } catch(Throwable ex) {
+		fail(ex);
+		// keep draining, so that the producer is not blocked forever
+		try {
+		    while(work.take() != END) {}
+		} catch(InterruptedException ie) {}
+	    }
+	}
+    }
+
+    /** Starts the worker threads */
+    void start() {
+	for(int i=0; i<nThreads; i++) {
+	    Thread t = new Worker(i);
+	    workers.add(t);
+	    t.start();
+	}
+    }
+
+    /** Passes one article's data to the workers, waiting if the
+	queue is full. Must only be called from one thread.
+	@param years The data for each year; "" for years with no data
+     */
+    void put(String aid, String[] years) throws IOException {
+	checkFailure();
+	try {
+	    pending.incrementAndGet();
+	    work.put(new Item(aid, years));
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	}
+    }
+
+    /** Waits until all the items queued so far have been indexed.
+	Must be called from the thread that calls put(). */
+    void await() throws IOException {
+	try {
+	    while(pending.get() > 0) {
+		checkFailure();
+		Thread.sleep(10);
+	    }
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	}
+	checkFailure();
+    }
+
+    /** Sets the checkpointer, which run() tells about every article
+	of the list once it has been queued (or skipped, if there are
+	no data for it) */
+    void setCheckpointer(IndexFiles.Checkpointer c) {
+	checkpointer = c;
+    }
+
+    /** Tells the workers that there will be no more data, and waits
+	for them to finish.
+	@return The number of articles indexed
+     */
+    int finish() throws IOException {
+	try {
+	    for(int i=0; i<workers.size(); i++) work.put(END);
+	    for(Thread t: workers) t.join();
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	}
+	checkFailure();
+	return doneCnt.get();
+    }
+
+    private void checkFailure() throws IOException {
+	Throwable ex = failure.get();
+	if (ex == null) return;
+	if (ex instanceof IOException) throw (IOException)ex;
+	throw new IOException("Indexing failed", ex);
+    }
+
+    /** Reads one year's data for every article in the list, in order,
+	and queues them (NONE if there are no data) */
+    private class YearReader extends Thread {
+	final IndexFiles.FileAccess fa;
+	final List<String> aids;
+	final BlockingQueue<String> out;
+	YearReader(int i, IndexFiles.FileAccess _fa, List<String> _aids) {
+	    super("year-reader-" + i);
+	    fa = _fa;
+	    aids = _aids;
+	    out = new ArrayBlockingQueue<String>(queueSize);
+	}
+	public void run() {
+	    try {
+		for(String aid: aids) {
+		    if (failure.get() != null) break;
+		    String s = fa.read(aid);
+		    out.put(s==null? NONE : s);
+		}
+		fa.closeAll();
+	    } catch(Throwable ex) {
+		fail(ex);
+	    }
+	}
+    }
+
+    /** Indexes all articles in the list: starts the workers, and one
+	reader thread for each year, and joins the years' data for each
+	article.
+
+	@param fa One FileAccess per year
+	@return The number of articles for which some data have been
+	found, and indexed
+     */
+    int run(List<String> aids, IndexFiles.FileAccess[] fa) throws IOException {
+	start();
+	YearReader[] readers = new YearReader[fa.length];
+	for(int j=0; j<fa.length; j++) {
+	    readers[j] = new YearReader(j, fa[j], aids);
+	    readers[j].setDaemon(true);
+	    readers[j].start();
+	}
+
+	try {
+	    for(String aid: aids) {
+		String[] v = new String[fa.length];
+		int foundFileCnt = 0;
+		for(int j=0; j<fa.length; j++) {
+		    String s = null;
+		    // poll, so that we notice if a reader has died
+		    while(s == null) {
+			checkFailure();
+			s = readers[j].out.poll(1, TimeUnit.SECONDS);
+		    }
+		    if (s == NONE) {
+			s = "";
+		    } else {
+			foundFileCnt++;
+		    }
+		    v[j] = s;
+		}
+		if (foundFileCnt > 0) put(aid, v);
+		if (checkpointer != null) checkpointer.done(aid);
+	    }
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	} catch(IOException ex) {
+	    // let the workers exit before reporting the problem
+	    finish();
+	    throw ex;
+	}
+	return finish();
+    }
+}
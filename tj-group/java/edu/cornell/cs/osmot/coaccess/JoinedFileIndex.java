@@ -0,0 +1,395 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A sidecar index of a joined per-prefix file (YEAR/PREFIX.txt, as
+    read by IndexFiles.JoinedFileAccess), giving the byte offset and
+    length of each article's record, so that any article's data can be
+    read with one slice of the file, instead of reading the file line
+    by line from the start (or from the last article read).
+
+    <p>The index of PREFIX.txt is PREFIX.off, in the same directory:
+    <ul>
+    <li>a header: int MAGIC, then the length and the modification time
+    (longs) of PREFIX.txt when the index was written, and the number n
+    of articles (int)
+    <li>(n+1) ints; the i-th ID occupies bytes [idx[i], idx[i+1]) of
+    the IDs section
+    <li>n longs: the offset of each record's body (the line after
+    its ": AID" line)
+    <li>n ints: the length of each body, in bytes
+    <li>the IDs, in UTF-8, in the order of the file (which is sorted),
+    concatenated
+    </ul>
+    Both files are read through memory mapping; an ID is found by a
+    binary search in the index, and its record is copied straight from
+    the mapped file. An index whose recorded length or modification
+    time does not match the file's is stale, and is not used.
+
+    <p>The indexes are written once per year directory, after the
+    files are complete:
+    <pre>
+    java edu.cornell.cs.osmot.coaccess.JoinedFileIndex -build [-force] YEAR_DIR...
+    java edu.cornell.cs.osmot.coaccess.JoinedFileIndex -get AID [-docs DOCS_PATH] [-years 2003:2017]
+    </pre>
+    -build writes the missing and stale indexes in each directory
+    (with -force, all of them); -get prints an article's data for
+    each year, from DOCS_PATH/YEAR/PREFIX.txt. IndexFiles (with an aid
+    list) uses the indexes wherever they are up to date, so that the
+    list does not have to be in the files' order.
+ */
+class JoinedFileIndex {
+
+    static final String SUFFIX = ".off";
+    static final int MAGIC = 0x4a464931; // "JFI1"
+    private static final int HEADER = 4 + 8 + 8 + 4;
+
+    final File txt;
+    /** The index, and the joined file itself */
+    private final ByteBuffer index, data;
+    /** Used instead of data, if the file is too large to map */
+    private final FileChannel channel;
+    /** The number of articles */
+    private final int n;
+    /** The positions of the sections of the index */
+    private final int startsPos, lensPos, aidsPos;
+
+    private JoinedFileIndex(File _txt, ByteBuffer _index) throws IOException {
+	txt = _txt;
+	index = _index;
+	n = index.getInt(20);
+	startsPos = HEADER + 4*(n+1);
+	lensPos = startsPos + 8*n;
+	aidsPos = lensPos + 4*n;
+	if (n < 0 || aidsPos + index.getInt(HEADER + 4*n) != index.capacity()) {
+	    throw new IOException("Inconsistent size of the offset index " + indexFile(txt));
+	}
+	if (txt.length() <= Integer.MAX_VALUE) {
+	    data = AidDictionary.map(txt);
+	    channel = null;
+	} else {
+	    data = null;
+	    channel = new RandomAccessFile(txt, "r").getChannel();
+	}
+    }
+
+    /** The index file of a joined file */
+    static File indexFile(File txt) {
+	String name = txt.getName();
+	if (name.endsWith(".txt")) name = name.substring(0, name.length() - 4);
+	return new File(txt.getParentFile(), name + SUFFIX);
+    }
+
+    /** Opens the index of a joined file.
+	@return The index, or null if there is no index, or if it is
+	stale
+     */
+    static JoinedFileIndex open(File txt) throws IOException {
+	File f = indexFile(txt);
+	if (!f.exists()) return null;
+	ByteBuffer b = AidDictionary.map(f);
+	if (b.capacity() < HEADER || b.getInt(0) != MAGIC) throw new IOException("Not an offset index: " + f);
+	if (b.getLong(4) != txt.length() || b.getLong(12) != txt.lastModified()) {
+	    System.out.println("Warning: the offset index " + f + " is stale, and is not used; rebuild it with JoinedFileIndex -build");
+	    return null;
+	}
+	return new JoinedFileIndex(txt, b);
+    }
+
+    /** The number of articles in the file */
+    int size() {
+	return n;
+    }
+
+    /** The article ID of the i-th record */
+    String aid(int i) {
+	int start = index.getInt(HEADER + 4*i), end = index.getInt(HEADER + 4*i + 4);
+	byte[] b = new byte[end - start];
+	for(int j=0; j<b.length; j++) b[j] = index.get(aidsPos + start + j);
+	try {
+	    return new String(b, "UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+    /** Finds an article's record.
+	@return Its position (0 thru n-1), or -1 if not found */
+    int find(String aid) {
+	byte[] key = AidDictionary.toBytes(aid);
+	int lo = 0, hi = n-1;
+	while(lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    int c = compareAt(mid, key);
+	    if (c < 0) lo = mid + 1;
+	    else if (c > 0) hi = mid - 1;
+	    else return mid;
+	}
+	return -1;
+    }
+
+    /** Compares the i-th stored ID with key, as unsigned bytes */
+    private int compareAt(int i, byte[] key) {
+	int start = aidsPos + index.getInt(HEADER + 4*i);
+	int len = aidsPos + index.getInt(HEADER + 4*i + 4) - start;
+	int m = Math.min(len, key.length);
+	for(int j=0; j<m; j++) {
+	    int c = (index.get(start + j) & 0xFF) - (key[j] & 0xFF);
+	    if (c != 0) return c;
+	}
+	return len - key.length;
+    }
+
+    /** Reads the body of an article's record: the "aid count" lines,
+	each ending with "\n", exactly as JoinedFileAccess.readBody()
+	returns them. This can be called by several threads at once.
+	@return The body, or null if the article is not in the file
+     */
+    String read(String aid) throws IOException {
+	int i = find(aid);
+	return (i < 0) ? null : body(i);
+    }
+
+    /** The body of the i-th record */
+    String body(int i) throws IOException {
+	long start = index.getLong(startsPos + 8*i);
+	byte[] b = new byte[index.getInt(lensPos + 4*i)];
+	if (data != null) {
+	    ByteBuffer d = data.duplicate();
+	    d.position((int)start);
+	    d.get(b);
+	} else {
+	    ByteBuffer d = ByteBuffer.wrap(b);
+	    while(d.hasRemaining()) {
+		if (channel.read(d, start + d.position()) < 0) throw new EOFException("Unexpected end of " + txt);
+	    }
+	}
+	String s = new String(b, "UTF-8");
+	// as read by LineNumberReader, which strips CR/LF
+	if (s.indexOf('\r') >= 0) s = s.replace("\r\n", "\n").replace('\r', '\n');
+	if (s.length() > 0 && !s.endsWith("\n")) s += "\n";
+	return s;
+    }
+
+    /** Releases the file handle, if one is used. The mappings are
+	released when they are garbage collected. */
+    void close() throws IOException {
+	if (channel != null) channel.close();
+    }
+
+    /** Scans a joined file, recording the ": AID" lines and the
+	extent of the bodies in between */
+    private static class Scanner {
+	final File txt;
+	final ByteArrayOutputStream aids = new ByteArrayOutputStream();
+	int[] aidEnds = new int[1024];
+	long[] starts = new long[1024];
+	int[] lens = new int[1024];
+	int n = 0;
+	/** The ID and the body offset of the record being scanned */
+	byte[] aid = null;
+	long bodyStart = 0;
+
+	Scanner(File _txt) {
+	    txt = _txt;
+	}
+
+	/** Called at the start of each ": AID" line, and at the end
+	    of the file */
+	void endRecord(long pos) throws IOException {
+	    if (aid == null) return;
+	    long len = pos - bodyStart;
+	    if (len > Integer.MAX_VALUE) throw new IOException("Record for '" + new String(aid, "UTF-8") + "' in " + txt + " is too long");
+	    if (n == starts.length) {
+		aidEnds = Arrays.copyOf(aidEnds, 2*n);
+		starts = Arrays.copyOf(starts, 2*n);
+		lens = Arrays.copyOf(lens, 2*n);
+	    }
+	    aids.write(aid);
+	    aidEnds[n] = aids.size();
+	    starts[n] = bodyStart;
+	    lens[n] = (int)Math.max(len, 0);
+	    n++;
+	}
+
+	/** Called after each ": AID" line
+	    @param next The offset of the next line */
+	void startRecord(byte[] _aid, long next, int lineNo) throws IOException {
+	    if (aid != null && AidDictionary.compareBytes(_aid, aid) <= 0) {
+		throw new IOException("File " + txt + " is not sorted: '" + new String(_aid, "UTF-8") + "' follows '" + new String(aid, "UTF-8") + "' (line " + lineNo + ")");
+	    }
+	    aid = _aid;
+	    bodyStart = next;
+	}
+
+	void scan() throws IOException {
+	    InputStream in = new FileInputStream(txt);
+	    try {
+		byte[] buf = new byte[1 << 16];
+		ByteArrayOutputStream id = new ByteArrayOutputStream();
+		long off = 0;        // the file offset of buf[0]
+		long lineStart = 0;
+		int col = 0;         // the position in the current line
+		int lineNo = 1;
+		boolean header = false;
+		int k;
+		while((k = in.read(buf)) > 0) {
+		    for(int i=0; i<k; i++) {
+			byte b = buf[i];
+			if (b == '\n') {
+			    endLine(header && col >= 2, id, off + i + 1, lineNo);
+			    col = 0;
+			    lineNo++;
+			    lineStart = off + i + 1;
+			    header = false;
+			    continue;
+			}
+			if (col == -1) continue;
+			if (col == 0) {
+			    header = (b == ':');
+			} else if (col == 1) {
+			    header = header && (b == ' ');
+			    if (header) {
+				endRecord(lineStart);
+				id.reset();
+			    }
+			} else if (header) {
+			    id.write(b);
+			} else {
+			    // the rest of a body line doesn't matter
+			    col = -1;
+			    continue;
+			}
+			col++;
+		    }
+		    off += k;
+		}
+		if (col != 0) endLine(header && col >= 2, id, off, lineNo);
+		endRecord(off);
+	    } finally {
+		in.close();
+	    }
+	}
+
+	/** Called at the end of each line
+	    @param next The offset of the next line */
+	private void endLine(boolean header, ByteArrayOutputStream id, long next, int lineNo) throws IOException {
+	    if (header) startRecord(trim(id), next, lineNo);
+	    else if (aid == null) throw new IOException("Expected to find ': id' on line " + lineNo + " of " + txt);
+	}
+
+	/** The ID on a header line, without a trailing CR */
+	private static byte[] trim(ByteArrayOutputStream id) {
+	    byte[] b = id.toByteArray();
+	    return (b.length > 0 && b[b.length-1] == '\r') ? Arrays.copyOf(b, b.length-1) : b;
+	}
+    }
+
+    /** Writes the index of a joined file (to a temporary file, which
+	then replaces the old index in one step).
+	@return The number of articles in the file
+     */
+    static int write(File txt) throws IOException {
+	long len = txt.length(), modified = txt.lastModified();
+	Scanner s = new Scanner(txt);
+	s.scan();
+	File f = indexFile(txt), tmp = new File(f.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeLong(len);
+	    out.writeLong(modified);
+	    out.writeInt(s.n);
+	    out.writeInt(0);
+	    for(int i=0; i<s.n; i++) out.writeInt(s.aidEnds[i]);
+	    for(int i=0; i<s.n; i++) out.writeLong(s.starts[i]);
+	    for(int i=0; i<s.n; i++) out.writeInt(s.lens[i]);
+	    s.aids.writeTo(out);
+	} finally {
+	    out.close();
+	}
+	if (txt.length() != len || txt.lastModified() != modified) {
+	    tmp.delete();
+	    throw new IOException("File " + txt + " has changed while it was being indexed");
+	}
+	if (!tmp.renameTo(f)) throw new IOException("Cannot rename " + tmp + " to " + f);
+	return s.n;
+    }
+
+    /** Writes the indexes of the joined files in a year directory
+	@param force Rewrite the indexes that are up to date, too
+	@return The number of indexes written */
+    static int writeAll(File ydir, boolean force) throws IOException {
+	String[] names = ydir.list();
+	if (names == null) throw new IOException("Cannot read directory " + ydir);
+	Arrays.sort(names);
+	int cnt = 0;
+	for(String name: names) {
+	    if (!name.endsWith(".txt")) continue;
+	    File txt = new File(ydir, name);
+	    File f = indexFile(txt);
+	    if (!force && f.exists() && isCurrent(f, txt)) continue;
+	    int n = write(txt);
+	    System.out.println("Indexed " + n + " articles in " + txt);
+	    cnt++;
+	}
+	return cnt;
+    }
+
+    /** Does the index f match the file's current length and
+	modification time? */
+    private static boolean isCurrent(File f, File txt) throws IOException {
+	DataInputStream in = new DataInputStream(new FileInputStream(f));
+	try {
+	    return in.readInt() == MAGIC && in.readLong() == txt.length() && in.readLong() == txt.lastModified();
+	} catch(EOFException ex) {
+	    return false;
+	} finally {
+	    in.close();
+	}
+    }
+
+    static public void main(String argv[]) throws IOException {
+	String usage = "Usage: JoinedFileIndex -build [-force] YEAR_DIR...\n" +
+	    "       JoinedFileIndex -get AID [-docs DOCS_PATH] [-years 2003:2017]";
+	boolean build = false, force = false;
+	String aid = null, docsPath = ".", yearsString = null;
+	Vector<String> dirs = new Vector<String>();
+	for(int i=0; i<argv.length; i++) {
+	    if (argv[i].equals("-build")) build = true;
+	    else if (argv[i].equals("-force")) force = true;
+	    else if (argv[i].equals("-get")) aid = argv[++i];
+	    else if (argv[i].equals("-docs")) docsPath = argv[++i];
+	    else if (argv[i].equals("-years")) yearsString = argv[++i];
+	    else if (argv[i].startsWith("-")) throw new IllegalArgumentException("Unknown option: " + argv[i] + "\n" + usage);
+	    else dirs.add(argv[i]);
+	}
+	if (build == (aid != null)) throw new IllegalArgumentException(usage);
+
+	if (build) {
+	    int cnt = 0;
+	    for(String d: dirs) cnt += writeAll(new File(d), force);
+	    System.out.println("Wrote " + cnt + " offset indexes");
+	    return;
+	}
+
+	String prefix = IndexFiles.getPrefix(aid);
+	if (prefix == null) throw new IllegalArgumentException("No prefix in aid=" + aid);
+	for(int year: IndexFiles.makeYearList(yearsString)) {
+	    File txt = new File(new File(docsPath, "" + year), prefix + ".txt");
+	    if (!txt.exists()) continue;
+	    JoinedFileIndex ix = open(txt);
+	    if (ix == null) {
+		System.out.println(": " + year + " (no up-to-date offset index for " + txt + ")");
+		continue;
+	    }
+	    String body = ix.read(aid);
+	    ix.close();
+	    if (body == null) continue;
+	    System.out.print(": " + year + "\n" + body);
+	}
+    }
+}
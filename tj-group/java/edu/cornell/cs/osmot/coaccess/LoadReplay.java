@@ -0,0 +1,334 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+
+/** Replays a recorded list of article lookups (e.g. taken from the
+    access log) against CoaccessServlet, and reports the latency
+    percentiles, the throughput, and the errors. This is meant to be
+    run before each deployment, on one box: the servlet is started in
+    an embedded Tomcat, on an existing index (or store), or on one
+    generated by SyntheticData.
+
+    <p>Usage:
+    <pre>
+    LoadReplay [options] aid1 aid2 ...
+    LoadReplay [options] -          (article IDs from stdin)
+    LoadReplay [options] -log FILE  (article IDs from a file)
+    </pre>
+    The article IDs are given in the same way as to CoaccessStats (see
+    ArgvIterator), one per line in a file.
+
+    <p>Options:
+    <ul>
+    <li>-index DIR, -store DIR - the data for the embedded servlet
+    <li>-generate N - generate the data (for N articles, with
+    SyntheticData) and index them in a temporary directory; if no
+    article IDs are given, a simulated access log is replayed
+    <li>-url URL - replay against a servlet that is already running,
+    rather than starting one
+    <li>-sync - use CoaccessServlet, rather than AsyncCoaccessServlet
+    <li>-port P - the embedded servlet container's port (default 18080)
+    <li>-concurrency C - the number of client threads (default 16)
+    <li>-rate R - send R requests per second (open loop), whatever the
+    response time; by default, each thread sends its next request as
+    soon as it has got the previous response (closed loop)
+    <li>-n N - send N requests, going through the list more than once
+    if it is shorter (by default, each ID is looked up once)
+    <li>-warmup N - the first N requests are not counted
+    <li>-maxlen N - passed to the servlet
+    </ul>
+
+    <p>In the open-loop mode, the latency of a request is measured
+    from the time when it was scheduled to be sent, rather than from
+    when a client thread got to send it, so that a server that falls
+    behind is not flattered by the clients' waiting (the "coordinated
+    omission" problem).
+ */
+public class LoadReplay {
+
+    /** The precision of the latency histograms (in microseconds) */
+    static final int SUB_BITS = 7;
+
+    /** Sends the requests, and records the results. Each worker has
+	its own histogram, so that they don't have to be synchronized;
+	they are merged in the end. */
+    class Worker extends Thread {
+	final LogHistogram latency = new LogHistogram(SUB_BITS);
+	long found = 0, notFound = 0;
+	/** Error counts, by type (HTTP status, or exception class) */
+	final TreeMap<String,Integer> errors = new TreeMap<String,Integer>();
+	private final byte[] buf = new byte[8192];
+
+	public void run() {
+	    try {
+		while(true) {
+		    int i;
+		    long start;
+		    if (schedule!=null) {
+			long[] job = schedule.take();
+			if (job[0] < 0) return;
+			i = (int)job[0];
+			start = job[1];
+		    } else {
+			i = next.getAndIncrement();
+			if (i >= n) return;
+			start = System.nanoTime();
+		    }
+		    if (i == warmup) measureStart.set(start);
+		    sendRequest(i, start);
+		}
+	    } catch(InterruptedException ex) {}
+	}
+
+	private void sendRequest(int i, long start) {
+	    String aid = aids.elementAt(i % aids.size());
+	    String error = null;
+	    int len = 0;
+	    try {
+		URL u = new URL(url + "?" + CoaccessServlet.AID + "=" + URLEncoder.encode(aid, "UTF-8") + (maxlen!=null? "&maxlen=" + maxlen : ""));
+		HttpURLConnection con = (HttpURLConnection)u.openConnection();
+		int code = con.getResponseCode();
+		// read the body (or the error page) to the end, so that
+		// the connection can be reused
+		InputStream in = (code == HttpURLConnection.HTTP_OK) ? con.getInputStream() : con.getErrorStream();
+		if (in!=null) {
+		    int k;
+		    while((k = in.read(buf)) > 0) len += k;
+		    in.close();
+		}
+		if (code != HttpURLConnection.HTTP_OK) error = "HTTP " + code;
+	    } catch(IOException ex) {
+		error = ex.getClass().getName();
+	    }
+	    long end = System.nanoTime();
+	    if (i < warmup) return;
+	    long last;
+	    while((last = lastEnd.get()) < end && !lastEnd.compareAndSet(last, end));
+	    if (error!=null) {
+		Integer c = errors.get(error);
+		errors.put(error, c==null? 1 : c+1);
+		return;
+	    }
+	    // an unknown article gets an empty response
+	    if (len > 0) found++;
+	    else notFound++;
+	    latency.add((end - start) / 1000);
+	}
+    }
+
+    /** The article IDs to look up */
+    final Vector<String> aids;
+    /** The servlet's URL */
+    final String url;
+    /** The total number of requests to send, and the number of
+	warm-up requests among them */
+    final int n, warmup;
+    final String maxlen;
+
+    /** The next request to send (closed loop) */
+    private final AtomicInteger next = new AtomicInteger(0);
+    /** The requests to send (open loop), as (request number, time
+	when it is due) pairs; a negative request number tells the
+	worker to stop */
+    private BlockingQueue<long[]> schedule = null;
+    /** When the first measured request was sent, and when the last
+	one was answered */
+    private final AtomicLong measureStart = new AtomicLong(), lastEnd = new AtomicLong();
+
+    LoadReplay(Vector<String> _aids, String _url, int _n, int _warmup, String _maxlen) {
+	aids = _aids;
+	url = _url;
+	n = _n;
+	warmup = Math.min(_warmup, n);
+	maxlen = _maxlen;
+    }
+
+    /** Sends all requests, and prints the results.
+	@param rate Requests per second, or 0 for the closed loop
+     */
+    void run(int concurrency, double rate) throws InterruptedException {
+	if (rate > 0) schedule = new LinkedBlockingQueue<long[]>();
+	Worker[] workers = new Worker[concurrency];
+	for(int j=0; j<concurrency; j++) {
+	    workers[j] = new Worker();
+	    workers[j].start();
+	}
+	long t0 = System.nanoTime();
+	if (schedule!=null) {
+	    double period = 1e9 / rate;
+	    for(int i=0; i<n; i++) {
+		long due = t0 + (long)(i * period);
+		long wait = due - System.nanoTime();
+		if (wait > 0) Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		schedule.put(new long[] {i, due});
+	    }
+	    for(int j=0; j<concurrency; j++) schedule.put(new long[] {-1, 0});
+	}
+	for(Worker w: workers) w.join();
+	report(workers, concurrency, rate);
+    }
+
+    private void report(Worker[] workers, int concurrency, double rate) {
+	LogHistogram latency = new LogHistogram(SUB_BITS);
+	long found = 0, notFound = 0, errCnt = 0;
+	TreeMap<String,Integer> errors = new TreeMap<String,Integer>();
+	for(Worker w: workers) {
+	    latency.merge(w.latency);
+	    found += w.found;
+	    notFound += w.notFound;
+	    for(Map.Entry<String,Integer> e: w.errors.entrySet()) {
+		Integer c = errors.get(e.getKey());
+		errors.put(e.getKey(), (c==null? 0 : c) + e.getValue());
+		errCnt += e.getValue();
+	    }
+	}
+	long measured = n - warmup;
+	double sec = (lastEnd.get() - measureStart.get()) / 1e9;
+	System.out.println("Sent " + n + " requests (" + warmup + " warm-up requests not counted) with " + concurrency + " threads, " +
+			   (rate > 0 ? "open loop at " + rate + " requests/sec" : "closed loop"));
+	if (measured <= 0) return;
+	System.out.println("Throughput: " + String.format("%.1f", measured / sec) + " requests/sec over " + String.format("%.2f", sec) + " sec");
+	StringBuffer b = new StringBuffer("Responses: " + found + " found, " + notFound + " not found, " + errCnt + " errors");
+	for(Map.Entry<String,Integer> e: errors.entrySet()) b.append(" (" + e.getKey() + ": " + e.getValue() + ")");
+	System.out.println(b);
+	if (latency.count() == 0) return;
+	double[] qq = {0.5, 0.9, 0.99, 0.999, 1.0};
+	String[] names = {"p50", "p90", "p99", "p999", "max"};
+	b = new StringBuffer("Latency (msec):");
+	for(int k=0; k<qq.length; k++) {
+	    b.append(" " + names[k] + "=" + String.format("%.3f", latency.quantile(qq[k]) / 1000.0));
+	}
+	System.out.println(b);
+    }
+
+    /** Fetches the servlet's own counters (the cache, the Bloom
+	filter, and, for the asynchronous servlet, the thread pool) */
+    static String getServerStats(String url) {
+	try {
+	    InputStream in = new URL(url + "?stats=true").openStream();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte[] buf = new byte[4096];
+	    int k;
+	    while((k = in.read(buf)) > 0) out.write(buf, 0, k);
+	    in.close();
+	    return out.toString("UTF-8");
+	} catch(IOException ex) {
+	    return "(cannot get the servlet's stats: " + ex + ")\n";
+	}
+    }
+
+    /** Starts CoaccessServlet (or AsyncCoaccessServlet) in an embedded
+	Tomcat, at http://localhost:PORT/coaccess/coaccess, with the
+	data from the specified directory.
+     */
+    static Tomcat startServer(File baseDir, int port, boolean async, String backend, File dataDir) throws LifecycleException {
+	Tomcat tomcat = new Tomcat();
+	tomcat.setPort(port);
+	tomcat.setBaseDir(baseDir.getAbsolutePath());
+	Context ctx = tomcat.addContext("/coaccess", baseDir.getAbsolutePath());
+	Wrapper w = Tomcat.addServlet(ctx, "coaccess", async? new AsyncCoaccessServlet() : new CoaccessServlet());
+	if (backend.equals("store")) {
+	    w.addInitParameter("backend", "store");
+	    w.addInitParameter("storeDir", dataDir.getAbsolutePath());
+	} else {
+	    w.addInitParameter("indexDir", dataDir.getAbsolutePath());
+	}
+	w.setAsyncSupported(async);
+	w.setLoadOnStartup(1);
+	ctx.addServletMapping("/coaccess", "coaccess");
+	tomcat.start();
+	return tomcat;
+    }
+
+    private static void delete(File f) {
+	File[] files = f.listFiles();
+	if (files!=null) for(File g: files) delete(g);
+	f.delete();
+    }
+
+    static public void main(String argv[]) throws Exception {
+	String indexDir = null, storeDir = null, url = null, logFile = null, maxlen = null;
+	int generate = 0, port = 18080, concurrency = 16, n = -1, warmup = 0;
+	double rate = 0;
+	boolean async = true;
+	int pos = 0;
+	for(; pos<argv.length; pos++) {
+	    if (argv[pos].equals("-index")) indexDir = argv[++pos];
+	    else if (argv[pos].equals("-store")) storeDir = argv[++pos];
+	    else if (argv[pos].equals("-generate")) generate = Integer.parseInt(argv[++pos]);
+	    else if (argv[pos].equals("-url")) url = argv[++pos];
+	    else if (argv[pos].equals("-sync")) async = false;
+	    else if (argv[pos].equals("-port")) port = Integer.parseInt(argv[++pos]);
+	    else if (argv[pos].equals("-concurrency")) concurrency = Integer.parseInt(argv[++pos]);
+	    else if (argv[pos].equals("-rate")) rate = Double.parseDouble(argv[++pos]);
+	    else if (argv[pos].equals("-n")) n = Integer.parseInt(argv[++pos]);
+	    else if (argv[pos].equals("-warmup")) warmup = Integer.parseInt(argv[++pos]);
+	    else if (argv[pos].equals("-maxlen")) maxlen = argv[++pos];
+	    else if (argv[pos].equals("-log")) logFile = argv[++pos];
+	    else break;
+	}
+
+	// the embedded Tomcat's base directory, and the generated data
+	File tmp = File.createTempFile("coaccess-replay", "");
+	tmp.delete();
+	Tomcat tomcat = null;
+	try {
+	    if (generate > 0) {
+		SyntheticData syn = new SyntheticData(generate, 200, 1.0, 1);
+		int[] years = IndexFiles.makeYearList("2003:2005");
+		File[] yearDirs = new File[years.length];
+		for(int i=0; i<years.length; i++) yearDirs[i] = new File(tmp, "" + years[i]);
+		syn.writeYears(tmp, years);
+		indexDir = new File(tmp, "index").getPath();
+		storeDir = null;
+		SyntheticData.writeIndex(new File(indexDir), yearDirs, years);
+		if (logFile==null && pos >= argv.length) {
+		    logFile = new File(tmp, "access.txt").getPath();
+		    syn.writeAccessLog(new File(logFile), (n > 0) ? n : 10 * generate);
+		}
+	    }
+
+	    Vector<String> aids = new Vector<String>();
+	    if (logFile!=null) {
+		FileIterator it = FileIterator.createFileIterator(logFile);
+		while(it.hasNext()) aids.add(it.next());
+	    }
+	    aids.addAll((new ArgvIterator(argv,pos)).readAll());
+	    if (aids.size()==0) {
+		throw new IllegalArgumentException("No article IDs to look up (give them on the command line, or with -log FILE)");
+	    }
+
+	    if (url==null) {
+		if (indexDir==null && storeDir==null) {
+		    throw new IllegalArgumentException("Either -index, -store, -generate or -url must be given");
+		}
+		File base = new File(tmp, "tomcat");
+		base.mkdirs();
+		tomcat = (storeDir!=null) ?
+		    startServer(base, port, async, "store", new File(storeDir)) :
+		    startServer(base, port, async, "index", new File(indexDir));
+		url = "http://localhost:" + port + "/coaccess/coaccess";
+	    }
+
+	    System.out.println("Replaying " + aids.size() + " article IDs against " + url);
+	    LoadReplay replay = new LoadReplay(aids, url, (n > 0) ? n : aids.size(), warmup, maxlen);
+	    replay.run(concurrency, rate);
+	    System.out.print(getServerStats(url));
+	} finally {
+	    if (tomcat!=null) {
+		tomcat.stop();
+		tomcat.destroy();
+	    }
+	    delete(tmp);
+	}
+    }
+}
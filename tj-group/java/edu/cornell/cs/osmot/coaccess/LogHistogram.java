@@ -0,0 +1,143 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+/** A histogram of non-negative values with logarithmic buckets, in
+    the manner of HdrHistogram: the values below 2^subBits each have a
+    bucket of their own, and every further power-of-two range
+    [2^e, 2^(e+1)) is split into 2^(subBits-1) equal buckets. So the
+    memory taken is bounded (about 2^(subBits-1) buckets per binary
+    order of magnitude, whatever the number of values added), and each
+    value is represented with a relative error below 2^-(subBits-1).
+
+    <p>Histograms with the same subBits can be merged (e.g. those
+    filled by different threads, or saved by earlier runs with
+    write()), and the quantiles and the cumulative distribution
+    function can be read directly from a histogram, without
+    listing the values.
+ */
+class LogHistogram {
+
+    final int subBits;
+    /** The number of buckets for values below 2^subBits, and twice
+	the number of buckets per binary order above it */
+    private final int subCount, half;
+    private long[] counts;
+    /** The highest bucket index in use */
+    private int maxIndex = -1;
+    private long total = 0;
+
+    /** @param _subBits Sets the precision; with 8, values below 256
+	are exact, and larger ones are within 1/128 */
+    LogHistogram(int _subBits) {
+	if (_subBits < 1 || _subBits > 30) throw new IllegalArgumentException("subBits=" + _subBits);
+	subBits = _subBits;
+	subCount = 1 << subBits;
+	half = subCount >> 1;
+	counts = new long[subCount];
+    }
+
+    /** The bucket for the value */
+    int index(long v) {
+	if (v < 0) throw new IllegalArgumentException("Negative value " + v);
+	if (v < subCount) return (int)v;
+	int exp = 63 - Long.numberOfLeadingZeros(v);
+	int shift = exp - subBits + 1;
+	return shift * half + (int)(v >>> shift);
+    }
+
+    /** The smallest value that falls into the bucket */
+    long lowest(int index) {
+	if (index < subCount) return index;
+	int shift = index / half - 1;
+	long sub = index % half + half;
+	return sub << shift;
+    }
+
+    /** The largest value that falls into the bucket */
+    long highest(int index) {
+	return lowest(index + 1) - 1;
+    }
+
+    void add(long v) {
+	add(v, 1);
+    }
+
+    /** Adds n occurrences of the value v */
+    void add(long v, long n) {
+	int i = index(v);
+	if (i >= counts.length) counts = Arrays.copyOf(counts, Math.max(i + 1, 2*counts.length));
+	counts[i] += n;
+	total += n;
+	if (i > maxIndex) maxIndex = i;
+    }
+
+    /** Adds all counts from another histogram to this one */
+    void merge(LogHistogram o) {
+	if (o.subBits != subBits) throw new IllegalArgumentException("Cannot merge histograms of different precision (" + subBits + ", " + o.subBits + ")");
+	if (o.maxIndex >= counts.length) counts = Arrays.copyOf(counts, o.maxIndex + 1);
+	for(int i=0; i<=o.maxIndex; i++) counts[i] += o.counts[i];
+	total += o.total;
+	if (o.maxIndex > maxIndex) maxIndex = o.maxIndex;
+    }
+
+    /** The number of values added */
+    long count() {
+	return total;
+    }
+
+    /** The number of buckets in use, i.e. those that can be passed to
+	count(int), lowest() etc. */
+    int size() {
+	return maxIndex + 1;
+    }
+
+    /** The number of values in the bucket */
+    long count(int index) {
+	return counts[index];
+    }
+
+    /** Finds the value at the specified quantile: the smallest
+	value v such that at least q*count() of the values added are
+	&le; v (to within the precision of the bucket, whose lowest
+	value is returned).
+	@param q Between 0 and 1
+	@return The value, or -1 if the histogram is empty
+     */
+    long quantile(double q) {
+	if (total == 0) return -1;
+	long rank = Math.max(1, (long)Math.ceil(q * total));
+	long sum = 0;
+	for(int i=0; i<=maxIndex; i++) {
+	    sum += counts[i];
+	    if (sum >= rank) return lowest(i);
+	}
+	return lowest(maxIndex);
+    }
+
+    /** Writes the histogram, so that it can be read with read() and
+	merged with later data */
+    void write(DataOutputStream out) throws IOException {
+	out.writeInt(subBits);
+	int nz = 0;
+	for(int i=0; i<=maxIndex; i++) if (counts[i] != 0) nz++;
+	out.writeInt(nz);
+	for(int i=0; i<=maxIndex; i++) {
+	    if (counts[i] == 0) continue;
+	    out.writeInt(i);
+	    out.writeLong(counts[i]);
+	}
+    }
+
+    static LogHistogram read(DataInputStream in) throws IOException {
+	LogHistogram h = new LogHistogram(in.readInt());
+	int nz = in.readInt();
+	for(int j=0; j<nz; j++) {
+	    int i = in.readInt();
+	    long c = in.readLong();
+	    h.add(h.lowest(i), c);
+	}
+	return h;
+    }
+}
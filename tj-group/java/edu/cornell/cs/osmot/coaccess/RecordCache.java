@@ -0,0 +1,198 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded in-memory cache of rendered coaccess lists, used by
+    CoaccessServlet so that popular articles are not looked up in the
+    index over and over again. The key is (aid, maxlen), and the
+    value is the exact text sent to the client (as written by
+    CoaccessRecord.writeTo()); an article that is not in the index is
+    cached too, as NOT_FOUND.
+
+    <p>(The older edu.cornell.cs.osmot.cache.SimpleCache is not
+    suitable here: it is unbounded, and scans all entries on every
+    put to expire the old ones.)
+
+    <p>Eviction is LRU, with a TinyLFU-style admission filter: once
+    the cache is full, a new entry only gets in if it has been
+    requested more often, recently, than the LRU entry it would push
+    out. The request frequencies are estimated with a small
+    count-min sketch, whose counters are halved every
+    SAMPLE_FACTOR*maxSize requests, so that old popularity fades
+    away. This keeps a burst of one-off requests (e.g. from a crawler)
+    from flushing out the articles that are asked for all the time.
+
+    <p>The cache remembers the data source's generation (see
+    CoaccessSource.getGeneration()), and empties itself when the
+    generation changes, i.e. when the index has been reopened.
+
+    <p>All methods are thread-safe; the map is guarded by the cache's
+    own lock, which is held only for a few hash table operations.
+ */
+class RecordCache {
+
+    /** The cached value for an article that is not known */
+    static final byte[] NOT_FOUND = new byte[0];
+
+    /** The frequency sketch is aged after this many requests per
+	cache slot */
+    static final int SAMPLE_FACTOR = 10;
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, byte[]> map;
+    private final FrequencySketch sketch;
+    private long generation;
+
+    final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+	rejected = new AtomicLong(), evicted = new AtomicLong(),
+	invalidated = new AtomicLong();
+
+    /** @param _maxSize The max number of entries */
+    RecordCache(int _maxSize, long _generation) {
+	maxSize = _maxSize;
+	generation = _generation;
+	// access order, i.e. LRU
+	map = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	sketch = new FrequencySketch(maxSize);
+    }
+
+    static class Key {
+	final String aid;
+	final int maxlen;
+	Key(String _aid, int _maxlen) {
+	    aid = _aid;
+	    maxlen = _maxlen;
+	}
+	public int hashCode() {
+	    return aid.hashCode() * 31 + maxlen;
+	}
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key)) return false;
+	    Key k = (Key)o;
+	    return maxlen == k.maxlen && aid.equals(k.aid);
+	}
+    }
+
+    /** Empties the cache if the data source has been reopened since
+	the entries were stored. Must be called with the lock held.
+	@return false if gen is older than the cache's generation,
+	i.e. the caller's data are stale
+     */
+    private boolean checkGeneration(long gen) {
+	if (gen > generation) {
+	    if (map.size() > 0) invalidated.incrementAndGet();
+	    map.clear();
+	    generation = gen;
+	}
+	return gen == generation;
+    }
+
+    /** Looks up a cached value, and records the request in the
+	frequency sketch.
+	@param gen The data source's current generation
+	@return The cached text, NOT_FOUND, or null if not cached
+     */
+    byte[] get(String aid, int maxlen, long gen) {
+	Key key = new Key(aid, maxlen);
+	byte[] v;
+	synchronized(this) {
+	    sketch.increment(key.hashCode());
+	    v = checkGeneration(gen) ? map.get(key) : null;
+	}
+	(v == null ? misses : hits).incrementAndGet();
+	return v;
+    }
+
+    /** Offers a value to the cache. If the cache is full, the value is
+	stored only if its key has been requested more often than that
+	of the least recently used entry, which is then evicted.
+	@param value The rendered text, or NOT_FOUND
+	@param gen The generation of the data source from which the
+	value was read
+     */
+    void put(String aid, int maxlen, byte[] value, long gen) {
+	Key key = new Key(aid, maxlen);
+	synchronized(this) {
+	    if (!checkGeneration(gen)) return;
+	    if (map.containsKey(key)) {
+		map.put(key, value);
+		return;
+	    }
+	    if (map.size() >= maxSize) {
+		Iterator<Key> it = map.keySet().iterator();
+		if (!it.hasNext()) return;
+		Key victim = it.next();
+		if (sketch.frequency(key.hashCode()) <= sketch.frequency(victim.hashCode())) {
+		    rejected.incrementAndGet();
+		    return;
+		}
+		it.remove();
+		evicted.incrementAndGet();
+	    }
+	    map.put(key, value);
+	}
+    }
+
+    synchronized int size() {
+	return map.size();
+    }
+
+    /** A one-line summary of the counters */
+    String stats() {
+	long h = hits.get(), m = misses.get();
+	return "cache: size=" + size() + "/" + maxSize + " hits=" + h + " misses=" + m +
+	    " hitRate=" + (h + m == 0 ? 0 : (100*h)/(h + m)) + "%" +
+	    " rejected=" + rejected.get() + " evicted=" + evicted.get() +
+	    " invalidated=" + invalidated.get();
+    }
+
+    /** A count-min sketch with 4 rows of small (at most 15) counters,
+	kept in bytes. Every sampleSize increments, all counters are
+	halved. Not synchronized; the caller holds the cache's lock.
+     */
+    static class FrequencySketch {
+	private static final int ROWS = 4, MAX = 15;
+	private static final int[] SEEDS = { 0x97CB3127, 0xB7E15163, 0x9E3779B9, 0x85EBCA6B };
+	private final byte[][] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	FrequencySketch(int maxSize) {
+	    int w = 16;
+	    while(w < maxSize) w <<= 1;
+	    table = new byte[ROWS][w];
+	    mask = w - 1;
+	    sampleSize = SAMPLE_FACTOR * Math.max(maxSize, 1);
+	}
+
+	private int index(int h, int row) {
+	    h *= SEEDS[row];
+	    h ^= (h >>> 16);
+	    return h & mask;
+	}
+
+	void increment(int h) {
+	    for(int r=0; r<ROWS; r++) {
+		int i = index(h, r);
+		if (table[r][i] < MAX) table[r][i]++;
+	    }
+	    if (++additions >= sampleSize) age();
+	}
+
+	int frequency(int h) {
+	    int f = MAX;
+	    for(int r=0; r<ROWS; r++) f = Math.min(f, table[r][index(h, r)]);
+	    return f;
+	}
+
+	/** Halves all counters */
+	private void age() {
+	    for(byte[] row: table) {
+		for(int i=0; i<row.length; i++) row[i] >>= 1;
+	    }
+	    additions /= 2;
+	}
+    }
+}
@@ -176,21 +176,12 @@ public class SearchFiles {
                 }
                 
                 Document doc = searcher.doc(hits[i].doc);
-                String yearArray = doc.get(IndexFiles.Fields.COACCESS);
-                
-		// Merge coaccess data from all years.
-		List<Map.Entry<String,Integer>> list=aggregateCounts(yearArray);
- 
-                String topTen = "";
-                int num = 0;
-                for(Map.Entry<String, Integer> entry : list){
-                    if(num == 10)
-                        break;
-                    topTen = topTen + entry.getKey() + " " + entry.getValue() + "\n";
-                    num++;
-                }
-                
-                System.out.println(topTen);
+		CoaccessRecord rec = CoaccessIndex.getRecord(doc);
+		if (rec == null) continue;
+
+		// The stored list is already merged and sorted; print the top ten
+		rec.writeTo(System.out, 10);
+		System.out.println();
                 
                 //System.out.println(yearArray);
                 
@@ -247,41 +238,31 @@ public class SearchFiles {
 	order, by count
      */
     static List<Map.Entry<String, Integer>> aggregateCounts(String yearArray) {
-	String[] years = yearArray.split("\n:\n");
-	return aggregateCounts(years);	
+	CountAggregator agg = CountAggregator.aggregator();
+	agg.addText(yearArray);
+	return agg.toList(-1);
     }
 
- 
-     static List<Map.Entry<String, Integer>> aggregateCounts(String[] years) {
-	Hashtable<String, Integer> ht = new Hashtable<String, Integer>();
+    /** Aggregates coaccess counts over several years' data.
+	@param years Each element is one year's list, one "aid count"
+	line per entry, or null or "" if there are no data for that year
+	@return a List of (article id, count) pairs, ordered, in descending
+	order, by count
+     */
+    static List<Map.Entry<String, Integer>> aggregateCounts(String[] years) {
+	return aggregate(years).toList(-1);
+    }
 
+    /** Sums up the counts over several years' data. The returned
+	aggregator belongs to the current thread, and is only valid
+	until the next call to this method.
+     */
+    static CountAggregator aggregate(String[] years) {
+	CountAggregator agg = CountAggregator.aggregator();
 	for(String year : years) {
-	    if (years==null || years.equals("")) continue;
-	    String[] coaccesses = year.split("\n");
-	    for(String coaccess : coaccesses){
-		if(coaccess != ""){
-		    String[] temp = coaccess.split(" ");
-		    String key=temp[0];
-		    int q = Integer.parseInt(temp[1]);
-		    if (ht.containsKey(key)) {
-			int coaccessNum = ht.get(key);
-			ht.put(key, coaccessNum+q);
-		    } else {
-			ht.put(key, q);
-		    }
-		}
-	    }
+	    agg.addText(year);
 	}
-	List<Map.Entry<String, Integer>> list =
-	    new LinkedList<Map.Entry<String, Integer>>( ht.entrySet() );
-	Collections.sort( list, new Comparator<Map.Entry<String, Integer>>()
-			  {
-			      public int compare( Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2 )
-			      {
-				  return -(o1.getValue()).compareTo(o2.getValue());
-			      }
-			  } );
-	return list;
+	return agg;
     }
 
     /** Reformats a database entry, merging together data from
@@ -294,13 +275,10 @@ public class SearchFiles {
      */
     static String consolidate(String[] years, int maxCnt) {
 
-	List<Map.Entry<String, Integer>> list = aggregateCounts(years);
+	List<Map.Entry<String, Integer>> list = aggregate(years).toList(maxCnt);
 	StringBuffer buf = new StringBuffer();	
-	int cnt=0;
 	for(Map.Entry<String, Integer> x: list) {
-	    if (cnt==maxCnt) break;
 	    buf.append(x.getKey() + " " + x.getValue() + "\n");
-	    cnt++;
 	}
 	return buf.toString();
     }
@@ -0,0 +1,224 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+/** Merges the coaccess lists of several "seed" articles (e.g. the
+    papers a user has viewed recently) into one list of the top N
+    articles coaccessed with any of them: an article's score is the
+    sum, over the seeds, of the seed's weight times the article's
+    count in the seed's list. The seeds themselves are left out.
+
+    <p>This is the "no random access" (NRA) variant of Fagin's
+    threshold algorithm. Since every stored list is sorted by count in
+    descending order, the lists are read in parallel, one entry from
+    each in turn, and for each article seen so far, the sum of its
+    counts read so far (weighted) is a lower bound of its score; an
+    upper bound adds, for each list it has not been seen in yet, the
+    count last read from that list. The reading stops as soon as the
+    N best lower bounds are at least the upper bound of every other
+    article seen, and at least the threshold (the sum of the last
+    counts read), which bounds the score of any article not seen yet;
+    from then on, the set of the top N cannot change. Their exact
+    scores are then completed by looking for them in the unread parts
+    of the lists they were not seen in, and they are sorted.
+
+    <p>Only the served part of each list (not the retained tail) is
+    read, so the work is at most the total length of these, i.e. about
+    maxCnt entries per seed; when the seeds' lists agree on the top
+    articles, it is usually much less. The bounds are only checked
+    once the threshold has dropped below the best lower bound, which
+    is necessary for stopping, so that a merge of many short lists
+    does not spend its time on the checks.
+
+    <p>An object of this class is used for one merge, by one thread.
+ */
+final class SeedMerger {
+
+    /** An article seen in some of the lists */
+    static final class Candidate {
+	final String aid;
+	/** The weighted sum of the counts read so far */
+	double score = 0;
+	/** The lists it has been seen in */
+	int[] seen = new int[4];
+	int nSeen = 0;
+
+	Candidate(String _aid) {
+	    aid = _aid;
+	}
+
+	void add(int list, double s) {
+	    score += s;
+	    if (nSeen == seen.length) seen = Arrays.copyOf(seen, 2*nSeen);
+	    seen[nSeen++] = list;
+	}
+
+	boolean seenIn(int list) {
+	    for(int j=0; j<nSeen; j++) if (seen[j]==list) return true;
+	    return false;
+	}
+    }
+
+    private final CoaccessRecord[] lists;
+    private final double[] weights;
+    /** The number of entries read from each list */
+    private final int[] read;
+    /** The (weighted) score last read from each list; 0 once the
+	list is exhausted */
+    private final double[] last;
+    private final Set<String> seeds;
+    private final HashMap<String,Candidate> candidates = new HashMap<String,Candidate>();
+    /** The best lower bound so far */
+    private double best = 0;
+    /** The number of entries read, in all */
+    private int nRead = 0;
+
+    /** @param _seeds The seeds' article IDs
+	@param _lists Their coaccess lists (null for those not found)
+	@param _weights Their weights (non-negative)
+     */
+    SeedMerger(String[] _seeds, CoaccessRecord[] _lists, double[] _weights) {
+	lists = _lists;
+	weights = _weights;
+	read = new int[lists.length];
+	last = new double[lists.length];
+	seeds = new HashSet<String>(Arrays.asList(_seeds));
+	for(int i=0; i<lists.length; i++) {
+	    // until the first entry is read, a list's bound is its
+	    // first count, which is not known yet
+	    last[i] = (lists[i]==null || weights[i]==0 || lists[i].topSize()==0) ? 0 : Double.POSITIVE_INFINITY;
+	}
+    }
+
+    /** The number of list entries read by the last merge */
+    int entriesRead() {
+	return nRead;
+    }
+
+    /** The total length of the lists merged */
+    int entries() {
+	int t = 0;
+	for(CoaccessRecord r: lists) if (r!=null) t += r.topSize();
+	return t;
+    }
+
+    /** Reads the next entry of list i, if any */
+    private void step(int i) {
+	CoaccessRecord r = lists[i];
+	if (read[i] >= r.topSize() || !r.next()) {
+	    last[i] = 0;
+	    return;
+	}
+	read[i]++;
+	nRead++;
+	double s = weights[i] * r.count();
+	last[i] = s;
+	String aid = r.aid();
+	if (seeds.contains(aid)) return;
+	Candidate c = candidates.get(aid);
+	if (c==null) {
+	    c = new Candidate(aid);
+	    candidates.put(aid, c);
+	}
+	c.add(i, s);
+	if (c.score > best) best = c.score;
+    }
+
+    /** Is a ranked higher than b? Ties are broken by article ID. */
+    private static boolean better(Candidate a, Candidate b) {
+	if (a.score != b.score) return a.score > b.score;
+	return a.aid.compareTo(b.aid) < 0;
+    }
+
+    /** Selects the n candidates with the best lower bounds, best
+	first */
+    private Candidate[] select(int n) {
+	PriorityQueue<Candidate> heap = new PriorityQueue<Candidate>(n + 1, new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+		    return better(a, b) ? 1 : (better(b, a) ? -1 : 0);
+		}
+	    });
+	for(Candidate c: candidates.values()) {
+	    if (heap.size() < n) heap.add(c);
+	    else if (better(c, heap.peek())) {
+		heap.poll();
+		heap.add(c);
+	    }
+	}
+	Candidate[] top = new Candidate[heap.size()];
+	for(int j=top.length-1; j>=0; j--) top[j] = heap.poll();
+	return top;
+    }
+
+    /** Can the reading stop, i.e. is the set of the top n final?
+	@param t The threshold: the sum of the last scores read */
+    private Candidate[] finalTop(int n, double t) {
+	if (candidates.size() < n) return null;
+	Candidate[] top = select(n);
+	double min = top[top.length-1].score;
+	if (t > min) return null;
+	Set<Candidate> in = new HashSet<Candidate>(Arrays.asList(top));
+	for(Candidate c: candidates.values()) {
+	    if (in.contains(c)) continue;
+	    // the upper bound: add the last scores of the lists c has
+	    // not been seen in
+	    double upper = c.score + t;
+	    for(int j=0; j<c.nSeen; j++) upper -= last[c.seen[j]];
+	    if (upper > min) return null;
+	}
+	return top;
+    }
+
+    /** Merges the lists.
+	@param n The number of articles to return; 0 means all
+	@return The top n articles, with their exact scores, best first
+     */
+    Candidate[] merge(int n) {
+	Candidate[] top = null;
+	while(true) {
+	    double t = 0;
+	    boolean more = false;
+	    for(int i=0; i<lists.length; i++) {
+		if (last[i] == 0) continue;
+		step(i);
+		t += last[i];
+		if (last[i] > 0) more = true;
+	    }
+	    if (!more) break;
+	    if (n > 0 && t <= best && (top = finalTop(n, t)) != null) break;
+	}
+	if (top == null) return select(n > 0 ? n : candidates.size());
+
+	// complete the scores of the top n from the unread parts of
+	// the lists they have not been seen in
+	for(int i=0; i<lists.length; i++) {
+	    if (last[i] == 0) continue;
+	    HashMap<String,Candidate> missing = new HashMap<String,Candidate>();
+	    for(Candidate c: top) if (!c.seenIn(i)) missing.put(c.aid, c);
+	    CoaccessRecord r = lists[i];
+	    while(missing.size() > 0 && read[i] < r.topSize() && r.next()) {
+		read[i]++;
+		Candidate c = missing.remove(r.aid());
+		if (c != null) c.add(i, weights[i] * r.count());
+	    }
+	}
+	Arrays.sort(top, new Comparator<Candidate>() {
+		public int compare(Candidate a, Candidate b) {
+		    return better(a, b) ? -1 : (better(b, a) ? 1 : 0);
+		}
+	    });
+	return top;
+    }
+
+    /** Writes the merged list, one "aid score" line per article.
+	@param integral Write the scores as integers (e.g. if all the
+	weights are integers), rather than with 3 decimal places
+     */
+    static void writeTo(OutputStream out, Candidate[] top, boolean integral) throws IOException {
+	for(Candidate c: top) {
+	    String v = c.aid + (integral ? " " + (long)c.score + "\n" : String.format(" %.3f\n", c.score));
+	    out.write(v.getBytes("UTF-8"));
+	}
+    }
+}
@@ -0,0 +1,533 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/** The coaccess data split into one Lucene index (a shard) per
+    article ID prefix (IndexFiles.getPrefix(): hep-th, math, 1203,
+    ...), as the year directories already split them into one file per
+    prefix. Each shard is an ordinary index, as built by IndexFiles,
+    with its own dictionary and Bloom filter, and is read by its own
+    CoaccessIndex; a lookup goes to the shard of the article's prefix,
+    and a batch lookup is split by shard, with the shards searched in
+    parallel.
+
+    <p>The shards are listed in the file shards.txt in the root
+    directory, one "PREFIX [DIR]" line per shard. DIR defaults to
+    ROOT/PREFIX, and a relative DIR is taken relative to the root; so
+    a shard can be moved to another disk by moving its directory and
+    editing its line. The file is reread whenever it changes (checked
+    at most every refreshMsec), so shards can be added, rebuilt or
+    moved while the servlet is running.
+
+    <p>The shards are built by IndexFiles -merge -shards, each prefix
+    by an independent worker (build()), and -prefixes rebuilds only
+    some of them, leaving the others alone; an interrupted build is
+    resumed (-resume) with the shards it has not completed. -append
+    and -bloom work on each shard in turn. Two-hop lists (TwoHop)
+    cross the shards, and are not available for a sharded index.
+ */
+class ShardedIndex extends CoaccessSource {
+
+    /** The name of the shard map in the root directory */
+    static final String FILE = "shards.txt";
+
+    final File root;
+    /** How often (in msec) we check if the shard map has changed */
+    private final long refreshMsec;
+    private volatile long lastRefreshCheck;
+    /** The modification time of the shard map last read */
+    private long mapModified = 0;
+    /** The open shards, by prefix. Replaced, not modified, when the
+	map changes. */
+    private volatile Map<String,CoaccessIndex> shards = new HashMap<String,CoaccessIndex>();
+    /** Added to the sum of the shards' generations, so that the
+	generation grows when the shard map changes */
+    private volatile long genOffset = 0;
+    /** Searches the shards of a batch in parallel */
+    private final ExecutorService pool;
+
+    /** @param _refreshMsec Check for changes of the shard map (and of
+	each shard) at most this often. If 0, check on every request.
+     */
+    ShardedIndex(File _root, long _refreshMsec) throws IOException {
+	root = _root;
+	refreshMsec = _refreshMsec;
+	pool = Executors.newFixedThreadPool(Math.min(8, Runtime.getRuntime().availableProcessors()),
+					    new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+						    Thread t = new Thread(r, "coaccess-shard-lookup");
+						    t.setDaemon(true);
+						    return t;
+						}
+					    });
+	lastRefreshCheck = System.currentTimeMillis();
+	loadMap();
+	if (shards.isEmpty()) {
+	    pool.shutdown();
+	    throw new IOException("No shards could be opened in " + root);
+	}
+    }
+
+    /** Is dir the root of a sharded index (rather than an index)? */
+    static boolean isSharded(File dir) {
+	return new File(dir, FILE).exists();
+    }
+
+    /** Opens the coaccess index in dir, sharded or not */
+    static CoaccessSource open(File dir, long refreshMsec) throws IOException {
+	return isSharded(dir) ? new ShardedIndex(dir, refreshMsec) : new CoaccessIndex(dir, refreshMsec);
+    }
+
+    /** Reads the shard map.
+	@return The directory of each shard, by prefix; empty if there
+	is no map
+     */
+    static SortedMap<String,File> readMap(File root) throws IOException {
+	SortedMap<String,File> map = new TreeMap<String,File>();
+	File f = new File(root, FILE);
+	if (!f.exists()) return map;
+	LineNumberReader r = new LineNumberReader(new FileReader(f));
+	try {
+	    String s;
+	    while((s = r.readLine())!=null) {
+		s = s.trim();
+		if (s.length()==0 || s.startsWith("#")) continue;
+		String[] q = s.split("\\s+");
+		if (q.length > 2) throw new IOException("Bad line " + r.getLineNumber() + " in " + f + ": " + s);
+		File d = new File(q.length > 1 ? q[1] : q[0]);
+		map.put(q[0], d.isAbsolute() ? d : new File(root, d.getPath()));
+	    }
+	} finally {
+	    r.close();
+	}
+	return map;
+    }
+
+    /** Writes the shard map, replacing the old one in one step, so
+	that a reader never sees a partial map */
+    static void writeMap(File root, SortedMap<String,File> map) throws IOException {
+	File f = new File(root, FILE), tmp = new File(root, FILE + ".tmp");
+	PrintWriter w = new PrintWriter(new FileWriter(tmp));
+	w.println("# The shards of the coaccess index: PREFIX [DIR]");
+	for(Map.Entry<String,File> e: map.entrySet()) {
+	    File d = e.getValue();
+	    w.println(d.equals(new File(root, e.getKey())) ? e.getKey() : e.getKey() + " " + d.getAbsolutePath());
+	}
+	w.close();
+	if (w.checkError()) throw new IOException("Cannot write " + tmp);
+	if (!tmp.renameTo(f)) throw new IOException("Cannot rename " + tmp + " to " + f);
+    }
+
+    /** Rereads the shard map if it has changed, opening the new
+	shards and closing those no longer listed. A shard that cannot
+	be opened (e.g. it is being built) is left out, and tried again
+	on the next check. */
+    private synchronized void loadMap() throws IOException {
+	File f = new File(root, FILE);
+	long modified = f.lastModified();
+	if (modified == mapModified) return;
+	SortedMap<String,File> map = readMap(root);
+	Map<String,CoaccessIndex> old = shards;
+	Map<String,CoaccessIndex> fresh = new HashMap<String,CoaccessIndex>();
+	boolean complete = true;
+	for(Map.Entry<String,File> e: map.entrySet()) {
+	    CoaccessIndex s = old.get(e.getKey());
+	    if (s == null || !s.indexDir.equals(e.getValue())) {
+		try {
+		    s = new CoaccessIndex(e.getValue(), refreshMsec);
+		} catch(IOException ex) {
+		    System.out.println("Cannot open the shard for prefix " + e.getKey() + " in " + e.getValue() + ": " + ex);
+		    complete = false;
+		    continue;
+		}
+	    }
+	    fresh.put(e.getKey(), s);
+	}
+	long before = getGeneration();
+	long sum = 0;
+	for(CoaccessIndex s: fresh.values()) sum += s.getGeneration();
+	genOffset = before + 1 - sum;
+	shards = fresh;
+	mapModified = complete ? modified : 0;
+	for(CoaccessIndex s: old.values()) {
+	    if (!fresh.containsValue(s)) s.close();
+	}
+    }
+
+    /** Rereads the shard map, if at least refreshMsec have passed
+	since the last check */
+    private void maybeRefresh() throws IOException {
+	long now = System.currentTimeMillis();
+	if (now - lastRefreshCheck < refreshMsec) return;
+	lastRefreshCheck = now;
+	loadMap();
+    }
+
+    /** @return The shard of the article's prefix, or null if there
+	is none */
+    private CoaccessIndex shardFor(String aid) throws IOException {
+	maybeRefresh();
+	String prefix = IndexFiles.getPrefix(aid);
+	return (prefix==null) ? null : shards.get(prefix);
+    }
+
+    CoaccessRecord getRecord(String aid) throws IOException {
+	CoaccessIndex s = shardFor(aid);
+	return (s==null) ? null : s.getRecord(aid);
+    }
+
+    /** Splits the IDs by shard, and looks up each shard's IDs in one
+	sorted pass (CoaccessIndex.getRecords()). If several shards are
+	involved, they are searched in parallel. */
+    CoaccessRecord[] getRecords(final String[] aids) throws IOException {
+	maybeRefresh();
+	Map<String,CoaccessIndex> sh = shards;
+	final LinkedHashMap<CoaccessIndex,Vector<Integer>> groups = new LinkedHashMap<CoaccessIndex,Vector<Integer>>();
+	for(int i=0; i<aids.length; i++) {
+	    String prefix = IndexFiles.getPrefix(aids[i]);
+	    CoaccessIndex s = (prefix==null) ? null : sh.get(prefix);
+	    if (s==null) continue;
+	    Vector<Integer> g = groups.get(s);
+	    if (g==null) {
+		g = new Vector<Integer>();
+		groups.put(s, g);
+	    }
+	    g.add(i);
+	}
+	final CoaccessRecord[] recs = new CoaccessRecord[aids.length];
+	if (groups.size() <= 1) {
+	    for(Map.Entry<CoaccessIndex,Vector<Integer>> e: groups.entrySet()) lookUp(e.getKey(), e.getValue(), aids, recs);
+	    return recs;
+	}
+	Vector<Future<?>> pending = new Vector<Future<?>>();
+	for(final Map.Entry<CoaccessIndex,Vector<Integer>> e: groups.entrySet()) {
+	    pending.add(pool.submit(new Callable<Void>() {
+		    public Void call() throws IOException {
+			lookUp(e.getKey(), e.getValue(), aids, recs);
+			return null;
+		    }
+		}));
+	}
+	try {
+	    for(Future<?> f: pending) f.get();
+	} catch(InterruptedException ex) {
+	    throw new InterruptedIOException();
+	} catch(ExecutionException ex) {
+	    Throwable c = ex.getCause();
+	    if (c instanceof IOException) throw (IOException)c;
+	    throw new IOException(c);
+	}
+	return recs;
+    }
+
+    /** Looks up the IDs at the specified positions in one shard, and
+	puts the records at the same positions of recs */
+    private static void lookUp(CoaccessIndex s, Vector<Integer> pos, String[] aids, CoaccessRecord[] recs) throws IOException {
+	String[] q = new String[pos.size()];
+	for(int j=0; j<q.length; j++) q[j] = aids[pos.get(j)];
+	CoaccessRecord[] r = s.getRecords(q);
+	for(int j=0; j<q.length; j++) recs[pos.get(j)] = r[j];
+    }
+
+    YearCounts getYearCounts(String aid) throws IOException {
+	CoaccessIndex s = shardFor(aid);
+	return (s==null) ? null : s.getYearCounts(aid);
+    }
+
+    /** The shards that are currently open, by prefix */
+    Map<String,CoaccessIndex> getShards() throws IOException {
+	maybeRefresh();
+	return shards;
+    }
+
+    /** The latest year included in any shard */
+    int getLastYear() {
+	int last = 0;
+	for(CoaccessIndex s: shards.values()) last = Math.max(last, s.getLastYear());
+	return last;
+    }
+
+    /** An article whose prefix has no shard is certainly not known */
+    boolean mightContain(String aid) throws IOException {
+	CoaccessIndex s = shardFor(aid);
+	return s!=null && s.mightContain(aid);
+    }
+
+    /** Grows whenever any shard has been reopened, or the shard map
+	has changed */
+    long getGeneration() {
+	long g = genOffset;
+	for(CoaccessIndex s: shards.values()) g += s.getGeneration();
+	return g;
+    }
+
+    /** Closes all the shards */
+    void close() throws IOException {
+	pool.shutdown();
+	for(CoaccessIndex s: shards.values()) s.close();
+    }
+
+    //---- building
+
+    /** The file in the root directory that identifies a sharded build
+	in progress, with its ID (its start time) and its years, so that
+	it can be resumed; deleted when the build has succeeded */
+    static final String BUILD_FILE = "shards.build";
+    /** The key, in the commit user data of a shard, under which the
+	ID of the build that has built it is kept */
+    static final String BUILD_KEY = "build";
+
+    /** Builds (or rebuilds) the shards of the specified prefixes from
+	the year directories, each from all years' files for its
+	prefix (YearMerger.mergePrefix()), with nWorkers shards built at
+	a time, each by its own IndexWriter. A shard listed in the map
+	is rebuilt in its directory; a new one is put in ROOT/PREFIX.
+	The shards of the other prefixes are not touched. The map is
+	updated as each shard is completed; if some shards fail, the
+	others are still built, and the failed ones keep their old data.
+
+	<p>An interrupted or failed build can be resumed: only the
+	shards that have not been completed by it (according to the ID
+	of the build, which is kept in BUILD_FILE and in each shard's
+	commit data) are then built.
+	@param only The prefixes to build; null means all prefixes
+	that have files in any of the year directories
+	@param resume Resume the last build, rather than start a new one
+	@param forceMerge Force-merge each shard into one segment
+	@return The number of articles indexed
+     */
+    static int build(File root, File[] yearDirs, int[] years, Collection<String> only,
+		     int maxCnt, int retain, int nWorkers, boolean resume, boolean forceMerge) throws IOException {
+	if (!root.exists() && !root.mkdirs()) throw new IOException("Cannot create directory " + root);
+	SortedSet<String> prefixes = new YearMerger(yearDirs).listPrefixes();
+	if (only != null) {
+	    for(String p: only) {
+		if (!prefixes.contains(p)) System.out.println("Warning: there are no files for prefix " + p);
+	    }
+	    prefixes.retainAll(only);
+	}
+	final SortedMap<String,File> map = readMap(root);
+	String yearList = IndexFiles.Checkpointer.yearList(years);
+	File buildFile = new File(root, BUILD_FILE);
+	String id;
+	if (resume) {
+	    if (!buildFile.exists()) throw new IOException("There is no sharded build to resume in " + root);
+	    String[] q = readLine(buildFile).split(" ");
+	    id = q[0];
+	    if (q.length < 2 || !q[1].equals(yearList)) {
+		throw new IOException("The interrupted build in " + root + " was for the years " + (q.length < 2 ? "" : q[1]) + ", not " + yearList);
+	    }
+	    int before = prefixes.size();
+	    for(Iterator<String> it = prefixes.iterator(); it.hasNext(); ) {
+		String p = it.next();
+		File d = map.containsKey(p) ? map.get(p) : new File(root, p);
+		if (!new File(d, "segments.gen").exists() || !id.equals(commitData(d).get(BUILD_KEY))) continue;
+		// built by the interrupted run
+		map.put(p, d);
+		it.remove();
+	    }
+	    System.out.println("Resuming the build " + id + ": " + (before - prefixes.size()) + " shards have been built already");
+	} else {
+	    id = "" + System.currentTimeMillis();
+	    PrintWriter w = new PrintWriter(new FileWriter(buildFile));
+	    w.println(id + " " + yearList);
+	    w.close();
+	}
+	double ramMB = Math.max(16.0, 512.0 / nWorkers);
+	System.out.println("Building " + prefixes.size() + " shards in " + root + ", with " + nWorkers + " workers");
+
+	ExecutorService workers = Executors.newFixedThreadPool(nWorkers);
+	CompletionService<Integer> done = new ExecutorCompletionService<Integer>(workers);
+	HashMap<Future<Integer>,String> pending = new HashMap<Future<Integer>,String>();
+	for(String p: prefixes) {
+	    File d = map.containsKey(p) ? map.get(p) : new File(root, p);
+	    pending.put(done.submit(new ShardBuilder(d, yearDirs, years, p, maxCnt, retain, ramMB, id, forceMerge)), p);
+	}
+	workers.shutdown();
+
+	int cnt = 0;
+	Vector<String> failed = new Vector<String>();
+	IOException failure = null;
+	try {
+	    for(int i=pending.size(); i>0; i--) {
+		Future<Integer> f = done.take();
+		String p = pending.get(f);
+		try {
+		    cnt += f.get();
+		    // in the order of completion, so that an interruption
+		    // loses no completed shard
+		    if (!map.containsKey(p)) {
+			map.put(p, new File(root, p));
+			writeMap(root, map);
+		    }
+		} catch(ExecutionException ex) {
+		    Throwable c = ex.getCause();
+		    System.out.println("Failed to build the shard for prefix " + p + ": " + c);
+		    failed.add(p);
+		    if (failure == null) failure = (c instanceof IOException) ? (IOException)c : new IOException(c);
+		}
+	    }
+	} catch(InterruptedException ex) {
+	    throw new InterruptedIOException();
+	}
+	writeMap(root, map);
+	if (failure != null) {
+	    System.out.println("The shards for " + failed + " have not been built; use -resume to build them");
+	    throw failure;
+	}
+	buildFile.delete();
+	return cnt;
+    }
+
+    /** Reads the first line of a file */
+    private static String readLine(File f) throws IOException {
+	BufferedReader r = new BufferedReader(new FileReader(f));
+	try {
+	    String s = r.readLine();
+	    if (s == null) throw new IOException("File " + f + " is empty");
+	    return s.trim();
+	} finally {
+	    r.close();
+	}
+    }
+
+    /** Builds one shard, from scratch */
+    static class ShardBuilder implements Callable<Integer> {
+	final File dir;
+	final File[] yearDirs;
+	final int[] years;
+	final String prefix;
+	final int maxCnt, retain;
+	final double ramMB;
+	/** The ID of the build, or null */
+	final String buildId;
+	final boolean forceMerge;
+
+	ShardBuilder(File _dir, File[] _yearDirs, int[] _years, String _prefix, int _maxCnt, int _retain, double _ramMB,
+		     String _buildId, boolean _forceMerge) {
+	    dir = _dir;
+	    yearDirs = _yearDirs;
+	    years = _years;
+	    prefix = _prefix;
+	    maxCnt = _maxCnt;
+	    retain = _retain;
+	    ramMB = _ramMB;
+	    buildId = _buildId;
+	    forceMerge = _forceMerge;
+	}
+
+	/** @return The number of articles indexed */
+	public Integer call() throws IOException {
+	    if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create directory " + dir);
+	    Directory d = FSDirectory.open(dir);
+	    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	    // until this writer commits, readers still see the old shard
+	    iwc.setOpenMode(OpenMode.CREATE);
+	    iwc.setRAMBufferSizeMB(ramMB);
+	    final IndexWriter writer = new IndexWriter(d, iwc);
+	    boolean success = false;
+	    int cnt;
+	    try {
+		// OpenMode.CREATE keeps the old shard's commit data
+		Map<String,String> data = new HashMap<String,String>();
+		if (buildId != null) data.put(BUILD_KEY, buildId);
+		writer.setCommitData(data);
+		cnt = new YearMerger(yearDirs).mergePrefix(prefix, new YearMerger.Handler() {
+			void handle(String aid, String[] v) throws IOException {
+			    IndexFiles.indexData(writer, null, aid, v, years, maxCnt, retain);
+			}
+		    });
+		Set<Integer> done = new TreeSet<Integer>();
+		for(int y: years) done.add(y);
+		IndexFiles.setYears(writer, done);
+		if (forceMerge) writer.forceMerge(1);
+		writer.close();
+		success = true;
+	    } finally {
+		if (!success) writer.rollback();
+		d.close();
+	    }
+	    IndexFiles.writeAidFiles(dir);
+	    System.out.println("At " + new Date() + ", built the shard for prefix " + prefix + " (" + cnt + " articles) in " + dir);
+	    return cnt;
+	}
+    }
+
+    /** Merges one new year's data into the shards, as
+	IndexFiles.appendYear() does into an index. The shards that
+	already include the year (e.g. since an earlier run was
+	interrupted) are skipped; but if all of them do, this is
+	refused, unless force is true. A prefix that has no shard yet
+	gets a new one, with just this year's data.
+	@return The number of articles updated or added
+     */
+    static int appendYear(File root, File ydir, int year, int maxCnt, int retain, boolean force) throws IOException {
+	SortedMap<String,File> map = readMap(root);
+	SortedSet<String> prefixes = new YearMerger(new File[] {ydir}).listPrefixes();
+	Vector<String> todo = new Vector<String>(), skipped = new Vector<String>();
+	for(String p: prefixes) {
+	    File d = map.get(p);
+	    if (d != null && !force) {
+		Map<String,String> data = commitData(d);
+		if (IndexFiles.getYears(data, IndexFiles.DELTA_KEY).contains(year)) {
+		    throw new IOException("Live updates for year " + year + " have been folded into the shard in " + d + " (see CoaccessDelta), and would be counted twice; rebuild the shard, or use -force");
+		}
+		if (IndexFiles.getYears(data, IndexFiles.YEARS_KEY).contains(year)) {
+		    skipped.add(p);
+		    continue;
+		}
+	    }
+	    todo.add(p);
+	}
+	if (todo.isEmpty() && !skipped.isEmpty()) {
+	    throw new IOException("Year " + year + " has already been merged into all the shards in " + root + "; use -force to merge it again");
+	}
+	if (!skipped.isEmpty()) System.out.println("Year " + year + " has already been merged into the shards for " + skipped + "; skipping these");
+
+	int cnt = 0;
+	for(String p: todo) {
+	    File d = map.get(p);
+	    if (d == null) {
+		d = new File(root, p);
+		cnt += new ShardBuilder(d, new File[] {ydir}, new int[] {year}, p, maxCnt, retain, 512.0, null, true).call();
+		map.put(p, d);
+		writeMap(root, map);
+	    } else {
+		cnt += IndexFiles.appendYear(d, ydir, p, year, maxCnt, retain, true);
+		IndexFiles.writeAidFiles(d);
+	    }
+	}
+	return cnt;
+    }
+
+    /** The user data of the last commit of the index in dir */
+    private static Map<String,String> commitData(File dir) throws IOException {
+	Directory d = FSDirectory.open(dir);
+	try {
+	    DirectoryReader r = DirectoryReader.open(d);
+	    try {
+		return r.getIndexCommit().getUserData();
+	    } finally {
+		r.close();
+	    }
+	} finally {
+	    d.close();
+	}
+    }
+
+    /** Rewrites the dictionary and the Bloom filter of each shard */
+    static void writeAidFiles(File root) throws IOException {
+	for(File d: readMap(root).values()) IndexFiles.writeAidFiles(d);
+    }
+}
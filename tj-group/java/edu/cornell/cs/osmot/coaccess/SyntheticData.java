@@ -0,0 +1,233 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/** Generates synthetic coaccess data, with the same layout as the
+    real data (one directory per year, with one joined file per
+    prefix, as read by IndexFiles.JoinedFileAccess), for benchmarks
+    and load tests that have to run on one box without the real data.
+
+    <p>The articles are a mix of old-style (hep-th/9901001) and
+    new-style (1203.4567) IDs. Each article has a popularity rank,
+    and both the choice of coaccess partners and the simulated access
+    log follow a Zipf distribution over these ranks, so that a few
+    articles are very popular and most are rarely seen, as in the
+    real logs. The counts in each list decrease with the partner's
+    position in the list, also following a power law.
+
+    <p>Usage:
+    <pre>
+    java edu.cornell.cs.osmot.coaccess.SyntheticData -out DIR [-articles N] [-years 2003:2005] [-partners K] [-zipf S] [-seed X] [-log N] [-index]
+    </pre>
+    This writes DIR/YEAR/PREFIX.txt for each year, the list of all
+    article IDs (for IndexFiles -aids) to DIR/aids.txt, and, with -log
+    N, a simulated access log of N article IDs (one per line) to
+    DIR/access.txt. With -index, the data are also indexed into
+    DIR/index.
+ */
+public class SyntheticData {
+
+    /** Samples ranks 0 thru n-1 with the probability of rank r
+	proportional to 1/(r+1)^s */
+    static class ZipfSampler {
+	private final double[] cdf;
+	ZipfSampler(int n, double s) {
+	    cdf = new double[n];
+	    double sum = 0;
+	    for(int r=0; r<n; r++) {
+		sum += 1.0 / Math.pow(r + 1, s);
+		cdf[r] = sum;
+	    }
+	    for(int r=0; r<n; r++) cdf[r] /= sum;
+	}
+
+	int next(Random random) {
+	    double u = random.nextDouble();
+	    int i = Arrays.binarySearch(cdf, u);
+	    if (i < 0) i = -i - 1;
+	    return Math.min(i, cdf.length - 1);
+	}
+    }
+
+    private static final String[] OLD_PREFIXES = {"hep-th", "hep-ph", "math", "cond-mat", "astro-ph", "quant-ph"};
+    private static final String[] NEW_PREFIXES = {"1203", "1301", "1409", "1512", "1610"};
+
+    /** The article IDs, in the order of popularity (the most popular
+	first) */
+    final String[] aids;
+    final int maxPartners;
+    private final ZipfSampler sampler;
+    private final Random random;
+
+    /** @param n The number of articles
+	@param _maxPartners The max length of an article's list in one year
+	@param s The exponent of the Zipf distribution (around 1 for
+	real access data)
+     */
+    SyntheticData(int n, int _maxPartners, double s, long seed) {
+	random = new Random(seed);
+	maxPartners = _maxPartners;
+	sampler = new ZipfSampler(n, s);
+	Set<String> seen = new HashSet<String>();
+	aids = new String[n];
+	for(int i=0; i<n; i++) {
+	    String aid;
+	    do {
+		aid = randomAid();
+	    } while(!seen.add(aid));
+	    aids[i] = aid;
+	}
+    }
+
+    private String randomAid() {
+	if (random.nextInt(3) == 0) {
+	    String p = OLD_PREFIXES[random.nextInt(OLD_PREFIXES.length)];
+	    return p + "/" + (90 + random.nextInt(10)) + String.format("%05d", random.nextInt(100000));
+	} else {
+	    String p = NEW_PREFIXES[random.nextInt(NEW_PREFIXES.length)];
+	    return p + "." + String.format("%04d", random.nextInt(10000));
+	}
+    }
+
+    /** A popular article, drawn from the Zipf distribution */
+    String nextAid() {
+	return aids[sampler.next(random)];
+    }
+
+    /** Generates one year's coaccess list of an article, in the text
+	format of the joined files ("aid count" lines, by decreasing
+	count) */
+    String yearText(String aid) {
+	int len = 1 + random.nextInt(maxPartners);
+	LinkedHashSet<String> partners = new LinkedHashSet<String>();
+	for(int tries=0; partners.size()<len && tries<4*len; tries++) {
+	    String p = nextAid();
+	    if (!p.equals(aid)) partners.add(p);
+	}
+	int top = 10 + random.nextInt(1000);
+	StringBuffer b = new StringBuffer();
+	int r = 1;
+	for(String p: partners) {
+	    int cnt = Math.max(1, (int)(top / Math.pow(r++, 0.8)));
+	    b.append(p + " " + cnt + "\n");
+	}
+	return b.toString();
+    }
+
+    /** Writes the data for the specified years under dir. Each article
+	appears in each year with the probability of 3/4. */
+    void writeYears(File dir, int[] years) throws IOException {
+	String[] sorted = aids.clone();
+	Arrays.sort(sorted);
+	for(int year: years) {
+	    File ydir = new File(dir, "" + year);
+	    if (!ydir.exists() && !ydir.mkdirs()) throw new IOException("Cannot create directory " + ydir);
+	    PrintWriter w = null;
+	    String oldPrefix = null;
+	    for(String aid: sorted) {
+		String prefix = IndexFiles.getPrefix(aid);
+		if (!prefix.equals(oldPrefix)) {
+		    if (w!=null) w.close();
+		    // the sorted order keeps each prefix's IDs together
+		    w = new PrintWriter(new BufferedWriter(new FileWriter(new File(ydir, prefix + ".txt"))));
+		    oldPrefix = prefix;
+		}
+		if (random.nextInt(4) == 0) continue;
+		w.print(": " + aid + "\n");
+		w.print(yearText(aid));
+	    }
+	    if (w!=null) w.close();
+	}
+    }
+
+    /** Writes the list of all article IDs, one per line, in the
+	order IndexFiles expects */
+    void writeAidList(File f) throws IOException {
+	String[] sorted = aids.clone();
+	Arrays.sort(sorted);
+	PrintWriter w = new PrintWriter(new FileWriter(f));
+	for(String aid: sorted) w.println(aid);
+	w.close();
+    }
+
+    /** Writes a simulated access log: n article IDs, drawn from the
+	Zipf distribution, with a few unknown IDs (1 in 20) mixed in,
+	as in real traffic */
+    void writeAccessLog(File f, int n) throws IOException {
+	PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+	for(int i=0; i<n; i++) {
+	    w.println(random.nextInt(20)==0 ? "9999." + random.nextInt(100000) : nextAid());
+	}
+	w.close();
+    }
+
+    /** Builds a Lucene index of the data in the year directories (as
+	IndexFiles -merge would), with the dictionary and the Bloom
+	filter of the article IDs, so that tools such as LoadReplay
+	can run without a separate indexing step.
+	@param years The year of each directory
+	@return The number of articles indexed
+     */
+    static int writeIndex(File indexDir, File[] yearDirs, final int[] years) throws IOException {
+	IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	iwc.setOpenMode(OpenMode.CREATE);
+	final IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), iwc);
+	int cnt;
+	try {
+	    cnt = new YearMerger(yearDirs).run(new YearMerger.Handler() {
+		    void handle(String aid, String[] v) throws IOException {
+			IndexFiles.indexData(writer, null, aid, v, years, 100, 0);
+		    }
+		});
+	    Set<Integer> done = new TreeSet<Integer>();
+	    for(int y: years) done.add(y);
+	    IndexFiles.setYears(writer, done);
+	    writer.forceMerge(1);
+	} finally {
+	    writer.close();
+	}
+	IndexFiles.writeAidFiles(indexDir);
+	return cnt;
+    }
+
+    static public void main(String argv[]) throws IOException {
+	String out = null;
+	int n = 10000, maxPartners = 200, logSize = 0;
+	boolean index = false;
+	double s = 1.0;
+	long seed = 1;
+	int[] years = IndexFiles.makeYearList("2003:2005");
+	for(int i=0; i<argv.length; i++) {
+	    if (argv[i].equals("-out")) out = argv[++i];
+	    else if (argv[i].equals("-articles")) n = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-partners")) maxPartners = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-zipf")) s = Double.parseDouble(argv[++i]);
+	    else if (argv[i].equals("-seed")) seed = Long.parseLong(argv[++i]);
+	    else if (argv[i].equals("-years")) years = IndexFiles.makeYearList(argv[++i]);
+	    else if (argv[i].equals("-log")) logSize = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-index")) index = true;
+	    else throw new IllegalArgumentException("Unknown option: " + argv[i]);
+	}
+	if (out==null) throw new IllegalArgumentException("Usage: SyntheticData -out DIR [-articles N] [-years 2003:2005] [-partners K] [-zipf S] [-seed X] [-log N] [-index]");
+	File dir = new File(out);
+	SyntheticData data = new SyntheticData(n, maxPartners, s, seed);
+	data.writeYears(dir, years);
+	data.writeAidList(new File(dir, "aids.txt"));
+	if (logSize > 0) data.writeAccessLog(new File(dir, "access.txt"), logSize);
+	System.out.println("Wrote synthetic data for " + n + " articles and " + years.length + " years to " + dir);
+	if (index) {
+	    File[] yearDirs = new File[years.length];
+	    for(int i=0; i<years.length; i++) yearDirs[i] = new File(dir, "" + years[i]);
+	    int cnt = writeIndex(new File(dir, "index"), yearDirs, years);
+	    System.out.println("Indexed " + cnt + " articles into " + new File(dir, "index"));
+	}
+    }
+}
@@ -0,0 +1,390 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+import java.util.concurrent.*;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/** A batch job computing two-hop ("item-item-item") coaccess lists:
+    for each article i, the articles k reached through one of its
+    partners j, scored by the sum over j of A[i][j]*A[j][k], where A
+    is the (truncated, top maxCnt) coaccess matrix stored by
+    IndexFiles. Such lists help with papers that have few direct
+    coaccess partners. The top K of each row of A&middot;A (leaving out
+    the article itself) are stored in the COACCESS_2HOP field of each
+    document, which CoaccessServlet serves for requests with hops=2.
+
+    <p>The matrix is loaded into the compressed sparse row (CSR)
+    form, in three primitive arrays (row starts, column numbers,
+    counts), with the articles numbered by their ordinals in the
+    index's AidDictionary (which IndexFiles writes next to the index,
+    and which is the order of their IDs), so that neither the load nor
+    the product needs a map from IDs to numbers. The matrix
+    takes about 8 bytes per stored entry, i.e. 1.2 GB for 1.5
+    million articles with 100 partners each. The rows of the product
+    are computed in parallel, by fork-join tasks over blocks of rows;
+    each worker thread accumulates a row in a dense array (one long
+    per article), remembering which elements it has touched, so that
+    it only has to visit (and clear) those, and selects the top K with
+    a bounded heap. There is no hashing, and no boxing, in the product.
+
+    <p>Usage:
+    <pre>
+    TwoHop [-index DIR] [-k K] [-threads N] [-dry]
+    </pre>
+    The documents are rewritten with the new field (keeping their
+    other fields), and the index is merged. Anything that rewrites the
+    documents (IndexFiles -append, or a rebuild) drops the field, so
+    this has to be run again afterwards. With -dry, the product is
+    computed, but the index is not changed.
+ */
+public class TwoHop {
+
+    /** The number of rows in a piece of work for one fork-join task */
+    static final int CHUNK = 1024;
+
+    /** The indexed articles; row (and column) i is the article with
+	ordinal i */
+    final AidDictionary dict;
+    /** The partners that don't have records of their own, in
+	increasing order; column nRows+j is more[j]. They are columns,
+	but they have no rows. */
+    final String[] more;
+    /** The number of indexed articles, i.e. of rows */
+    final int nRows;
+    /** CSR: row i's entries are at rowStart[i] .. rowStart[i+1]-1 */
+    final int[] rowStart;
+    final int[] cols, vals;
+
+    /** The results: the top partners of each row, and their scores */
+    int[][] topCols;
+    int[][] topVals;
+
+    private TwoHop(AidDictionary _dict, String[] _more, int[] _rowStart, int[] _cols, int[] _vals) {
+	dict = _dict;
+	more = _more;
+	nRows = dict.size();
+	rowStart = _rowStart;
+	cols = _cols;
+	vals = _vals;
+    }
+
+    /** Loads the served part (the top maxCnt entries, not the
+	retained tail) of every live document's coaccess list.
+	@param dict The dictionary of the index's article IDs
+	@param docOfRow Receives the docid of each row
+	@throws IOException If the dictionary does not match the
+	index (e.g. the index has been changed since it was written)
+     */
+    static TwoHop load(IndexReader reader, AidDictionary dict, int[][] docOfRow) throws IOException {
+	// the docid of each article, from the terms dictionary, which
+	// has the IDs in the same order as the AidDictionary; so each
+	// search starts where the previous one has ended
+	Bits live = MultiFields.getLiveDocs(reader);
+	int n = dict.size();
+	int[] rowDoc = new int[n];
+	Arrays.fill(rowDoc, -1);
+	int found = 0;
+	Terms terms = MultiFields.getTerms(reader, IndexFiles.Fields.ARXIV_ID);
+	if (terms!=null) {
+	    TermsEnum te = terms.iterator(null);
+	    DocsEnum de = null;
+	    BytesRef term;
+	    int lo = 0;
+	    while((term = te.next())!=null) {
+		de = te.docs(live, de, DocsEnum.FLAG_NONE);
+		int doc = de.nextDoc();
+		if (doc == DocIdSetIterator.NO_MORE_DOCS) continue;
+		byte[] b = new byte[term.length];
+		System.arraycopy(term.bytes, term.offset, b, 0, term.length);
+		int ord = dict.find(b, lo);
+		if (ord < 0) throw new IOException("Article " + term.utf8ToString() + " is not in the dictionary in " + dict.dir + "; rebuild it with IndexFiles -bloom");
+		rowDoc[ord] = doc;
+		lo = ord + 1;
+		found++;
+	    }
+	}
+	if (found != n) throw new IOException("The dictionary in " + dict.dir + " has " + n + " articles, the index " + found + "; rebuild it with IndexFiles -bloom");
+	docOfRow[0] = rowDoc;
+
+	// pass 1: the length of each row
+	int[] rowStart = new int[n+1];
+	long nnz = 0;
+	for(int i=0; i<n; i++) {
+	    CoaccessRecord rec = CoaccessIndex.getRecord(reader.document(rowDoc[i], CoaccessIndex.fieldsToLoad));
+	    nnz += (rec==null ? 0 : rec.topSize());
+	    if (nnz > Integer.MAX_VALUE - 8) throw new IOException("Too many entries (over " + nnz + ") for the arrays");
+	    rowStart[i+1] = (int)nnz;
+	}
+	int[] cols = new int[(int)nnz], vals = new int[(int)nnz];
+
+	// pass 2: the entries. The partners that are not indexed
+	// themselves are noted down (as -1-k for the k-th such entry),
+	// and numbered after the indexed ones once they are all known.
+	Vector<String> extra = new Vector<String>();
+	for(int i=0; i<n; i++) {
+	    CoaccessRecord rec = CoaccessIndex.getRecord(reader.document(rowDoc[i], CoaccessIndex.fieldsToLoad));
+	    if (rec==null) continue;
+	    int p = rowStart[i], top = rowStart[i+1] - p;
+	    String[] a = new String[top];
+	    for(int j=0; j<top && rec.next(); j++) {
+		a[j] = rec.aid();
+		vals[p+j] = rec.count();
+	    }
+	    int[] ords = dict.ords(a);
+	    for(int j=0; j<top; j++) {
+		if (ords[j] < 0) {
+		    ords[j] = -1 - extra.size();
+		    extra.add(a[j]);
+		}
+		cols[p+j] = ords[j];
+	    }
+	}
+	String[] more = new TreeSet<String>(extra).toArray(new String[0]);
+	for(int p=0; p<cols.length; p++) {
+	    if (cols[p] < 0) cols[p] = n + Arrays.binarySearch(more, extra.elementAt(-1 - cols[p]));
+	}
+	return new TwoHop(dict, more, rowStart, cols, vals);
+    }
+
+    /** The article ID of row (or column) c */
+    String aid(int c) {
+	return (c < nRows) ? dict.get(c) : more[c - nRows];
+    }
+
+    /** A worker thread's scratch space for computing one row of the
+	product */
+    static class Accumulator {
+	final long[] acc;
+	/** The columns with non-zero sums, in the order first touched */
+	int[] touched = new int[1024];
+	int nTouched = 0;
+	/** A min-heap of columns, by sum (the worst of the top K at
+	    the root) */
+	final int[] heap;
+
+	Accumulator(int nCols, int k) {
+	    acc = new long[nCols];
+	    heap = new int[k];
+	}
+
+	/** Is column a ranked higher than column b? Higher sums go
+	    first; ties are broken by the column number (i.e. by the
+	    article ID, among the indexed articles). */
+	boolean better(int a, int b) {
+	    if (acc[a] != acc[b]) return acc[a] > acc[b];
+	    return a < b;
+	}
+
+	void siftDown(int hs, int c) {
+	    int j = 0;
+	    while(true) {
+		int ch = 2*j + 1;
+		if (ch >= hs) break;
+		if (ch+1 < hs && better(heap[ch], heap[ch+1])) ch++;
+		if (!better(c, heap[ch])) break;
+		heap[j] = heap[ch];
+		j = ch;
+	    }
+	    heap[j] = c;
+	}
+    }
+
+    /** Computes the product's row i, and stores its top k entries */
+    private void row(int i, int k, Accumulator a) {
+	long[] acc = a.acc;
+	a.nTouched = 0;
+	for(int p = rowStart[i]; p < rowStart[i+1]; p++) {
+	    int j = cols[p];
+	    if (j >= nRows) continue; // j has no partners of its own
+	    long w = vals[p];
+	    for(int q = rowStart[j]; q < rowStart[j+1]; q++) {
+		int c = cols[q];
+		long x = w * vals[q];
+		if (c == i || x == 0) continue;
+		if (acc[c] == 0) {
+		    if (a.nTouched == a.touched.length) a.touched = Arrays.copyOf(a.touched, 2*a.touched.length);
+		    a.touched[a.nTouched++] = c;
+		}
+		acc[c] += x;
+	    }
+	}
+
+	// select the top k with a bounded min-heap, then sort them,
+	// best first, by popping the root into the end of the result
+	int hs = 0;
+	for(int t=0; t<a.nTouched; t++) {
+	    int c = a.touched[t];
+	    if (hs < k) {
+		int j = hs++;
+		while(j > 0) {
+		    int parent = (j-1) >>> 1;
+		    if (!a.better(a.heap[parent], c)) break;
+		    a.heap[j] = a.heap[parent];
+		    j = parent;
+		}
+		a.heap[j] = c;
+	    } else if (a.better(c, a.heap[0])) {
+		a.siftDown(hs, c);
+	    }
+	}
+	int[] tc = new int[hs], tv = new int[hs];
+	for(int j=hs-1; j>=0; j--) {
+	    int c = a.heap[0];
+	    tc[j] = c;
+	    tv[j] = (int)Math.min(acc[c], Integer.MAX_VALUE);
+	    hs--;
+	    if (hs > 0) a.siftDown(hs, a.heap[hs]);
+	}
+	topCols[i] = tc;
+	topVals[i] = tv;
+
+	for(int t=0; t<a.nTouched; t++) acc[a.touched[t]] = 0;
+    }
+
+    /** A fork-join task computing the rows [from, to). Ranges longer
+	than CHUNK are split in half. */
+    static class Block extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	final TwoHop th;
+	final int from, to, k;
+	final ThreadLocal<Accumulator> local;
+	Block(TwoHop _th, int _from, int _to, int _k, ThreadLocal<Accumulator> _local) {
+	    th = _th;
+	    from = _from;
+	    to = _to;
+	    k = _k;
+	    local = _local;
+	}
+	protected void compute() {
+	    if (to - from <= CHUNK) {
+		Accumulator a = local.get();
+		for(int i=from; i<to; i++) th.row(i, k, a);
+		return;
+	    }
+	    int mid = (from + to) >>> 1;
+	    invokeAll(new Block(th, from, mid, k, local), new Block(th, mid, to, k, local));
+	}
+    }
+
+    /** Computes the top k entries of each row of A&middot;A, on a
+	fork-join pool of nThreads threads */
+    void multiply(final int k, int nThreads) {
+	topCols = new int[nRows][];
+	topVals = new int[nRows][];
+	final int nCols = nRows + more.length;
+	ThreadLocal<Accumulator> local = new ThreadLocal<Accumulator>() {
+	    protected Accumulator initialValue() {
+		return new Accumulator(nCols, k);
+	    }
+	};
+	ForkJoinPool pool = new ForkJoinPool(nThreads);
+	try {
+	    pool.invoke(new Block(this, 0, nRows, k, local));
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    /** Encodes row i's result as a CoaccessRecord */
+    byte[] encode(int i) {
+	int[] tc = topCols[i];
+	String[] a = new String[tc.length];
+	for(int j=0; j<tc.length; j++) a[j] = aid(tc[j]);
+	return CoaccessRecord.encode(a, topVals[i], tc.length, tc.length);
+    }
+
+    /** Rewrites every document, with its row of the result in the
+	COACCESS_2HOP field, and all its other stored fields as they
+	were.
+	@param docOfRow The docid of each row, in reader
+     */
+    void store(IndexReader reader, IndexWriter writer, int[] docOfRow) throws IOException {
+	for(int i=0; i<nRows; i++) {
+	    Document old = reader.document(docOfRow[i]);
+	    Document doc = new Document();
+	    for(IndexableField f: old.getFields()) {
+		if (f.name().equals(IndexFiles.Fields.COACCESS_2HOP)) continue;
+		if (f.name().equals(IndexFiles.Fields.ARXIV_ID)) {
+		    doc.add(new StringField(f.name(), f.stringValue(), Field.Store.YES));
+		} else if (f.binaryValue()!=null) {
+		    doc.add(new StoredField(f.name(), f.binaryValue()));
+		} else {
+		    doc.add(new StoredField(f.name(), f.stringValue()));
+		}
+	    }
+	    doc.add(new StoredField(IndexFiles.Fields.COACCESS_2HOP, encode(i)));
+	    writer.updateDocument(new Term(IndexFiles.Fields.ARXIV_ID, aid(i)), doc);
+	}
+    }
+
+    static public void main(String argv[]) throws IOException {
+	String indexPath = CoaccessServlet.indexDir;
+	int k = 100;
+	int nThreads = Runtime.getRuntime().availableProcessors();
+	boolean dry = false;
+	for(int i=0; i<argv.length; i++) {
+	    if (argv[i].equals("-index")) indexPath = argv[++i];
+	    else if (argv[i].equals("-k")) k = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-threads")) nThreads = Integer.parseInt(argv[++i]);
+	    else if (argv[i].equals("-dry")) dry = true;
+	    else throw new IllegalArgumentException("Usage: TwoHop [-index DIR] [-k K] [-threads N] [-dry]");
+	}
+
+	File indexDir = new File(indexPath);
+	if (ShardedIndex.isSharded(indexDir)) {
+	    // the second hop would have to go from shard to shard
+	    throw new IllegalArgumentException("Two-hop lists cannot be computed for the sharded index in " + indexDir);
+	}
+	// an index written before the dictionary was part of it
+	if (!AidDictionary.exists(indexDir)) IndexFiles.writeAidFiles(indexDir);
+	AidDictionary dict = new AidDictionary(indexDir);
+	Directory dir = FSDirectory.open(indexDir);
+	DirectoryReader reader = DirectoryReader.open(dir);
+	IndexWriter writer = null;
+	boolean success = false;
+	try {
+	    long t0 = System.currentTimeMillis();
+	    int[][] docOfRow = new int[1][];
+	    TwoHop th = load(reader, dict, docOfRow);
+	    long t1 = System.currentTimeMillis();
+	    System.out.println("Loaded " + th.rowStart[th.nRows] + " entries for " + th.nRows + " articles (" + th.more.length + " more partners) in " + (t1-t0) + " msec");
+	    th.multiply(k, nThreads);
+	    long t2 = System.currentTimeMillis();
+	    long total = 0;
+	    for(int[] r: th.topCols) total += r.length;
+	    System.out.println("Computed the top " + k + " two-hop partners (" + total + " in all) with " + nThreads + " threads in " + (t2-t1) + " msec");
+	    if (dry) {
+		success = true;
+		return;
+	    }
+
+	    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	    iwc.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+	    iwc.setRAMBufferSizeMB(512.0);
+	    writer = new IndexWriter(dir, iwc);
+	    th.store(reader, writer, docOfRow[0]);
+	    // every document has been replaced, so half of the index is
+	    // deleted documents
+	    writer.forceMerge(1);
+	    writer.close();
+	    success = true;
+	    System.out.println("Stored the two-hop lists in " + indexDir + " in " + (System.currentTimeMillis()-t2) + " msec");
+	} finally {
+	    if (!success && writer!=null) writer.rollback();
+	    reader.close();
+	    dir.close();
+	}
+	IndexFiles.writeAidFiles(indexDir);
+    }
+}
@@ -0,0 +1,287 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** The per-year coaccess counts of one article's partners, as stored
+    in the COACCESS_YEARS field of the coaccess index, next to the
+    all-years list (COACCESS_BIN). They are kept as cumulative counts
+    (the partner's count through year y, summed from the first year),
+    one column per year, so that the count over any window of years
+    [from, to] is the difference of two columns, and can be computed
+    at request time with O(K) arithmetic for K partners, without
+    re-aggregating anything. A weighting of the years (e.g. with an
+    exponential decay into the past) needs the per-year counts, i.e.
+    the differences of adjacent columns, and so takes O(K) per year in
+    the window.
+
+    <p>The partners are those of the COACCESS_BIN record (the top ones
+    over all years, including the retained tail), in the same order;
+    so a window query ranks these partners, and may miss a partner
+    that was strong in the window, but not strong enough overall to be
+    stored. The layout is:
+<pre>
+    byte    format version (FORMAT_V1)
+    vint    the first year
+    vint    Y, the number of years (consecutive, starting from the first)
+    vint    K, the number of partners
+    K times:
+      vint  length of the partner's article ID, in bytes
+      bytes the article ID (UTF-8)
+    Y times:
+      vint  the length of the column for that year, in bytes
+    Y columns, each of K vints: the partners' cumulative counts
+    through that year
+</pre>
+    The column lengths let a reader go straight to the columns it
+    needs.
+ */
+final class YearCounts {
+
+    static final byte FORMAT_V1 = 1;
+
+    private final byte[] b;
+    private final int firstYear, nYears, n;
+    /** Where each partner's ID is, in b */
+    private final int[] aidStart, aidLen;
+    /** Where each year's column starts, in b; colStart[nYears] is the
+	end of the last one */
+    private final int[] colStart;
+
+    YearCounts(byte[] _b, int offset, int length) throws IOException {
+	b = _b;
+	ByteBuffer buf = ByteBuffer.wrap(b, offset, length);
+	byte format = buf.get();
+	if (format != FORMAT_V1) throw new IOException("Unknown per-year record format: " + format);
+	firstYear = CoaccessRecord.readVInt(buf);
+	nYears = CoaccessRecord.readVInt(buf);
+	n = CoaccessRecord.readVInt(buf);
+	aidStart = new int[n];
+	aidLen = new int[n];
+	for(int k=0; k<n; k++) {
+	    aidLen[k] = CoaccessRecord.readVInt(buf);
+	    aidStart[k] = buf.position();
+	    buf.position(aidStart[k] + aidLen[k]);
+	}
+	int[] len = new int[nYears];
+	for(int y=0; y<nYears; y++) len[y] = CoaccessRecord.readVInt(buf);
+	colStart = new int[nYears + 1];
+	colStart[0] = buf.position();
+	for(int y=0; y<nYears; y++) colStart[y+1] = colStart[y] + len[y];
+    }
+
+    int firstYear() {
+	return firstYear;
+    }
+
+    int lastYear() {
+	return firstYear + nYears - 1;
+    }
+
+    /** The number of partners */
+    int size() {
+	return n;
+    }
+
+    String aid(int k) {
+	try {
+	    return new String(b, aidStart[k], aidLen[k], "UTF-8");
+	} catch (UnsupportedEncodingException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+    /** Reads the cumulative counts through the specified year into
+	c. Years before the first one give zeros; years after the last
+	one, the totals. */
+    void cumulative(int year, int[] c) {
+	int y = year - firstYear;
+	if (y < 0) {
+	    Arrays.fill(c, 0, n, 0);
+	    return;
+	}
+	if (y >= nYears) y = nYears - 1;
+	ByteBuffer buf = ByteBuffer.wrap(b, colStart[y], colStart[y+1] - colStart[y]);
+	for(int k=0; k<n; k++) c[k] = CoaccessRecord.readVInt(buf);
+    }
+
+    /** Computes each partner's count over the years from..to, with
+	the count from year y weighted by decay^(to-y).
+	@param decay 1 for plain counts over the window; a value
+	below 1 makes the older years count for less
+	@return One score per partner, in the stored order
+     */
+    double[] scores(int from, int to, double decay) {
+	double[] s = new double[n];
+	if (to < from) return s;
+	int[] hi = new int[n], lo = new int[n];
+	if (decay == 1.0) {
+	    // O(K): the difference of two columns
+	    cumulative(to, hi);
+	    cumulative(from - 1, lo);
+	    for(int k=0; k<n; k++) s[k] = hi[k] - lo[k];
+	    return s;
+	}
+	// weight each year's count, i.e. the difference between its
+	// column and the previous one; years outside the stored range
+	// have no counts
+	int y0 = Math.max(from, firstYear), y1 = Math.min(to, lastYear());
+	if (y1 < y0) return s;
+	cumulative(y0 - 1, lo);
+	for(int y=y0; y<=y1; y++) {
+	    cumulative(y, hi);
+	    double w = Math.pow(decay, to - y);
+	    for(int k=0; k<n; k++) s[k] += w * (hi[k] - lo[k]);
+	    int[] t = lo;
+	    lo = hi;
+	    hi = t;
+	}
+	return s;
+    }
+
+    /** Writes the partners with non-zero scores, by score in
+	descending order (ties are broken by the stored order, i.e. the
+	all-years count), one "aid score" line per partner.
+	@param integral Write the scores as integers (e.g. if they
+	are plain counts), rather than with 3 decimal places
+	@param maxlen The max number of lines; 0 means all
+	@return The number of lines written
+     */
+    int writeTo(OutputStream out, final double[] s, boolean integral, int maxlen) throws IOException {
+	Integer[] order = new Integer[n];
+	for(int k=0; k<n; k++) order[k] = k;
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer c) {
+		    if (s[a] != s[c]) return s[a] > s[c] ? -1 : 1;
+		    return a - c;
+		}
+	    });
+	int cnt = 0;
+	for(int k: order) {
+	    if (s[k] <= 0 || (maxlen > 0 && cnt >= maxlen)) break;
+	    out.write(b, aidStart[k], aidLen[k]);
+	    String v = integral ? " " + (long)s[k] + "\n" : String.format(" %.3f\n", s[k]);
+	    out.write(v.getBytes("UTF-8"));
+	    cnt++;
+	}
+	return cnt;
+    }
+
+    /** The per-year (not cumulative) counts, as counts[k][y] for
+	year firstYear()+y, e.g. for adding a new year's data */
+    int[][] perYear() {
+	int[][] c = new int[n][nYears];
+	int[] prev = new int[n], cur = new int[n];
+	for(int y=0; y<nYears; y++) {
+	    cumulative(firstYear + y, cur);
+	    for(int k=0; k<n; k++) c[k][y] = cur[k] - prev[k];
+	    int[] t = prev;
+	    prev = cur;
+	    cur = t;
+	}
+	return c;
+    }
+
+    /** Lists the partners in an encoded all-years record, including
+	its tail */
+    private static String[] partners(byte[] rec) throws IOException {
+	CoaccessRecord r = new CoaccessRecord(rec, 0, rec.length);
+	String[] aids = new String[r.size()];
+	for(int k=0; r.next(); k++) aids[k] = r.aid();
+	return aids;
+    }
+
+    /** Builds the per-year record that goes with an all-years record.
+	This uses the current thread's CountAggregator, so the caller
+	must be done with it.
+	@param rec The encoded all-years record (CoaccessRecord),
+	whose partners are the ones to keep
+	@param v Each year's list, as in SearchFiles.aggregate()
+	@param years The year of each element of v, in increasing order
+     */
+    static byte[] build(byte[] rec, String[] v, int[] years) throws IOException {
+	String[] aids = partners(rec);
+	int first = years[0], nYears = years[years.length-1] - first + 1;
+	int[][] counts = new int[aids.length][nYears];
+	CountAggregator agg = CountAggregator.aggregator();
+	for(int i=0; i<years.length; i++) {
+	    if (v[i]==null || v[i].length()==0) continue;
+	    agg.clear();
+	    agg.addText(v[i]);
+	    for(int k=0; k<aids.length; k++) counts[k][years[i]-first] = agg.get(aids[k]);
+	}
+	return encode(aids, counts, aids.length, first, nYears);
+    }
+
+    /** Builds the per-year record after one more year's data have
+	been merged into an article's list (IndexFiles -append). The
+	earlier years' counts come from the old per-year record; a
+	partner that was not in it starts from zero in those years.
+	This uses the current thread's CountAggregator.
+	@param old The old per-year record, or null if the article is new
+	@param rec The new all-years record
+	@param text The new year's list
+     */
+    static byte[] addYear(YearCounts old, byte[] rec, String text, int year) throws IOException {
+	String[] aids = partners(rec);
+	int first = year, last = year;
+	if (old != null) {
+	    first = Math.min(first, old.firstYear());
+	    last = Math.max(last, old.lastYear());
+	}
+	int nYears = last - first + 1;
+	int[][] counts = new int[aids.length][nYears];
+	if (old != null) {
+	    HashMap<String,Integer> pos = new HashMap<String,Integer>();
+	    for(int j=0; j<old.size(); j++) pos.put(old.aid(j), j);
+	    int[][] oc = old.perYear();
+	    int shift = old.firstYear() - first;
+	    for(int k=0; k<aids.length; k++) {
+		Integer j = pos.get(aids[k]);
+		if (j != null) System.arraycopy(oc[j], 0, counts[k], shift, oc[j].length);
+	    }
+	}
+	CountAggregator agg = CountAggregator.aggregator();
+	agg.addText(text);
+	for(int k=0; k<aids.length; k++) counts[k][year-first] += agg.get(aids[k]);
+	return encode(aids, counts, aids.length, first, nYears);
+    }
+
+    /** Encodes the per-year counts of the first n partners.
+	@param counts counts[k][y] is the count of partner k in year
+	firstYear+y
+     */
+    static byte[] encode(String[] aids, int[][] counts, int n, int firstYear, int nYears) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(16 + n * (12 + 2*nYears));
+	out.write(FORMAT_V1);
+	CoaccessRecord.writeVInt(out, firstYear);
+	CoaccessRecord.writeVInt(out, nYears);
+	CoaccessRecord.writeVInt(out, n);
+	for(int k=0; k<n; k++) {
+	    byte[] a;
+	    try {
+		a = aids[k].getBytes("UTF-8");
+	    } catch (UnsupportedEncodingException ex) {
+		throw new AssertionError(ex);
+	    }
+	    CoaccessRecord.writeVInt(out, a.length);
+	    out.write(a, 0, a.length);
+	}
+	ByteArrayOutputStream[] cols = new ByteArrayOutputStream[nYears];
+	int[] cum = new int[n];
+	for(int y=0; y<nYears; y++) {
+	    cols[y] = new ByteArrayOutputStream(2*n);
+	    for(int k=0; k<n; k++) {
+		cum[k] += counts[k][y];
+		CoaccessRecord.writeVInt(cols[y], cum[k]);
+	    }
+	    CoaccessRecord.writeVInt(out, cols[y].size());
+	}
+	for(int y=0; y<nYears; y++) {
+	    byte[] c = cols[y].toByteArray();
+	    out.write(c, 0, c.length);
+	}
+	return out.toByteArray();
+    }
+}
@@ -0,0 +1,133 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+/** Reads the joined per-prefix files (one per prefix per year, in the
+    format read by IndexFiles.JoinedFileAccess) of all years at once,
+    and merges them in a single pass. This is used by IndexFiles
+    -merge, instead of looking up each article from an aid list in
+    every year's file.
+
+    <p>For each prefix, the files of all years are opened together,
+    and a k-way merge is done over their sorted ": AID" header lines:
+    the smallest current ID is taken, the records for it are read
+    from every year that has it, and the merged record is passed to
+    a Handler. Each file is read once, sequentially, and only one
+    record per year is held in memory at any time. Since no aid list
+    is involved, there is nothing for the files' order to disagree
+    with; and if a file turns out not to be sorted, this is reported
+    as an error, rather than quietly skipping data.
+ */
+class YearMerger {
+
+    /** Receives the merged records */
+    abstract static class Handler {
+	/** @param years The data for each year (in the order of the
+	    year directories); "" for years with no data */
+	abstract void handle(String aid, String[] years) throws IOException;
+    }
+
+    private final File[] yearDirs;
+
+    YearMerger(File[] _yearDirs) {
+	yearDirs = _yearDirs;
+    }
+
+    /** Lists all prefixes for which at least one year directory has
+	a file (named prefix.txt) */
+    SortedSet<String> listPrefixes() {
+	TreeSet<String> prefixes = new TreeSet<String>();
+	for(File y: yearDirs) {
+	    String[] names = y.list();
+	    if (names==null) continue;
+	    for(String name: names) {
+		if (name.endsWith(".txt")) prefixes.add(name.substring(0, name.length()-4));
+	    }
+	}
+	return prefixes;
+    }
+
+    /** Merges the files for all prefixes.
+	@return The number of articles passed to the handler
+     */
+    int run(Handler h) throws IOException {
+	return run(h, null);
+    }
+
+    /** Merges the files for all prefixes, skipping the articles up to
+	and including the specified one, in the order of the merge (by
+	prefix, then by ID), e.g. to resume an interrupted run after its
+	last checkpoint. The files of the prefix of the article are still
+	read from the start, but the articles before it are not passed
+	to the handler.
+	@param after The last article to skip, or null to skip none
+	@return The number of articles passed to the handler
+     */
+    int run(Handler h, String after) throws IOException {
+	String afterPrefix = (after==null) ? null : IndexFiles.getPrefix(after);
+	int cnt = 0;
+	for(String prefix: listPrefixes()) {
+	    if (afterPrefix != null && prefix.compareTo(afterPrefix) < 0) continue;
+	    cnt += mergePrefix(prefix, h, prefix.equals(afterPrefix) ? after : null);
+	}
+	return cnt;
+    }
+
+    /** Merges all years' files for one prefix.
+	@return The number of articles passed to the handler
+     */
+    int mergePrefix(String prefix, Handler h) throws IOException {
+	return mergePrefix(prefix, h, null);
+    }
+
+    /** Merges all years' files for one prefix, passing only the
+	articles after the specified one to the handler */
+    private int mergePrefix(String prefix, Handler h, String after) throws IOException {
+	final int n = yearDirs.length;
+	final IndexFiles.JoinedFileAccess[] fa = new IndexFiles.JoinedFileAccess[n];
+	// the last ID read from each file, to check the order
+	final String[] current = new String[n];
+	PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(n,1), new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    int c = current[a].compareTo(current[b]);
+		    return (c != 0) ? c : a - b;
+		}
+	    });
+
+	int cnt = 0;
+	try {
+	    for(int j=0; j<n; j++) {
+		fa[j] = new IndexFiles.JoinedFileAccess(yearDirs[j]);
+		if (fa[j].open(prefix) && (current[j] = fa[j].nextAid()) != null) {
+		    heap.add(j);
+		}
+	    }
+
+	    while(!heap.isEmpty()) {
+		String aid = current[heap.peek()];
+		String[] v = new String[n];
+		Arrays.fill(v, "");
+		while(!heap.isEmpty() && current[heap.peek()].equals(aid)) {
+		    int j = heap.poll();
+		    v[j] = fa[j].readBody();
+		    String next = fa[j].nextAid();
+		    if (next == null) continue;
+		    if (next.compareTo(aid) <= 0) {
+			throw new IOException("File " + new File(yearDirs[j], prefix + ".txt") + " is not sorted: '" + next + "' follows '" + aid + "' (line " + fa[j].getLineNumber() + ")");
+		    }
+		    current[j] = next;
+		    heap.add(j);
+		}
+		if (after != null && aid.compareTo(after) <= 0) continue;
+		h.handle(aid, v);
+		cnt++;
+	    }
+	} finally {
+	    for(IndexFiles.JoinedFileAccess f: fa) {
+		if (f!=null) f.closeAll();
+	    }
+	}
+	return cnt;
+    }
+}
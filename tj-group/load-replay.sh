@@ -0,0 +1,29 @@
+#!/bin/csh
+
+#-- This script is supposed to run in one's ~/arxiv/coaccess/tj-group
+
+#-- Replays a list of article IDs against CoaccessServlet, in an
+#-- embedded Tomcat (whose JAR files are taken from $tomcat/lib), e.g.
+#--   load-replay.sh -index index -concurrency 16 -rate 500 -log access.txt
+#--   load-replay.sh -generate 100000 -n 200000 -warmup 20000
+
+set main=$home/arxiv/coaccess/tj-group
+set lib=$main/lib
+set build=$main/build
+if (! $?tomcat) set tomcat=/usr/share/tomcat7
+
+set cp="$build/osmot-1.0.jar"
+
+# Tomcat's JAR files go first, for the Servlet 3.0 API
+foreach j ($tomcat/lib/*.jar $tomcat/bin/tomcat-juli.jar)
+    set cp="${cp}:${j}"
+end
+
+foreach j ($lib/*.jar)
+    set cp="${cp}:${j}"
+end
+
+set opt="-cp ${cp}"
+
+echo java $opt edu.cornell.cs.osmot.coaccess.LoadReplay $argv 
+java $opt edu.cornell.cs.osmot.coaccess.LoadReplay $argv 
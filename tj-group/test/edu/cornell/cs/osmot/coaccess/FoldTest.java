@@ -0,0 +1,112 @@
+package edu.cornell.cs.osmot.coaccess;
+
+import java.util.*;
+import java.io.*;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/** Folding new counts into stored lists (IndexFiles.foldArticle(), as
+    used by -append and by CoaccessDelta's compaction), for lists in
+    each of the stored forms: aggregated, not aggregated (a V2 record
+    without FLAG_AGGREGATED), and the old text with per-year
+    sections. Each old count must be added exactly once.
+ */
+public class FoldTest extends TestCase {
+
+    static final int YEAR = 2005;
+
+    File dir, indexDir;
+
+    protected void setUp() throws IOException {
+	dir = File.createTempFile("coaccess-fold", "");
+	dir.delete();
+	indexDir = new File(dir, "index");
+	IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_40, new StandardAnalyzer(Version.LUCENE_40));
+	iwc.setOpenMode(OpenMode.CREATE);
+	IndexWriter writer = new IndexWriter(FSDirectory.open(indexDir), iwc);
+	// b/1 appears twice, as in a list that has not been merged over
+	// the years: 5 + 3
+	IndexFiles.storeRecord(writer, null, "a/1", unaggregated(new String[] {"b/1", "c/1", "b/1"}, new int[] {5, 4, 3}));
+	Document doc = new Document();
+	doc.add(new StringField(IndexFiles.Fields.ARXIV_ID, "a/2", Field.Store.YES));
+	doc.add(new StoredField(IndexFiles.Fields.COACCESS, "b/1 2\nc/1 1\n:\nb/1 3\n"));
+	writer.addDocument(doc);
+	IndexFiles.storeRecord(writer, null, "a/3", CoaccessRecord.encode(new String[] {"b/1", "c/1"}, new int[] {8, 4}, 2, 2));
+	writer.close();
+    }
+
+    protected void tearDown() {
+	delete(dir);
+    }
+
+    private static void delete(File f) {
+	File[] files = f.listFiles();
+	if (files!=null) for(File g: files) delete(g);
+	f.delete();
+    }
+
+    /** Encodes a list as it is, without FLAG_AGGREGATED */
+    static byte[] unaggregated(String[] aids, int[] counts) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	out.write(CoaccessRecord.FORMAT_V2);
+	out.write(0);
+	CoaccessRecord.writeVInt(out, aids.length);
+	for(int i=0; i<aids.length; i++) {
+	    byte[] b = aids[i].getBytes("UTF-8");
+	    CoaccessRecord.writeVInt(out, b.length);
+	    out.write(b);
+	    CoaccessRecord.writeVInt(out, (i==0) ? counts[i] : counts[i-1] - counts[i]);
+	}
+	return out.toByteArray();
+    }
+
+    /** The stored list of an article, as "aid=count" strings */
+    String list(String aid) throws IOException {
+	CoaccessIndex index = new CoaccessIndex(indexDir, 0);
+	try {
+	    CoaccessRecord rec = index.getRecord(aid);
+	    assertTrue(rec.isAggregated());
+	    return rec.toList().toString();
+	} finally {
+	    index.close();
+	}
+    }
+
+    void checkFolded() throws IOException {
+	assertEquals("[b/1=9, c/1=4, d/1=2]", list("a/1"));
+	assertEquals("[b/1=6, d/1=2, c/1=1]", list("a/2"));
+	assertEquals("[b/1=9, c/1=4, d/1=2]", list("a/3"));
+    }
+
+    public void testGetRecord() throws IOException {
+	assertEquals("[b/1=8, c/1=4]", list("a/1"));
+	assertEquals("[b/1=5, c/1=1]", list("a/2"));
+    }
+
+    public void testAppendYear() throws IOException {
+	File ydir = new File(dir, "" + YEAR);
+	ydir.mkdirs();
+	PrintWriter w = new PrintWriter(new FileWriter(new File(ydir, "a.txt")));
+	for(String aid: new String[] {"a/1", "a/2", "a/3"}) w.print(": " + aid + "\nd/1 2\nb/1 1\n");
+	w.close();
+	assertEquals(3, IndexFiles.appendYear(indexDir, ydir, YEAR, IndexFiles.MAX_CNT, -1, false));
+	checkFolded();
+    }
+
+    /** What CoaccessDelta.compact() does with a snapshot of the live
+	counts */
+    public void testFoldDelta() throws IOException {
+	HashMap<String,String> texts = new HashMap<String,String>();
+	for(String aid: new String[] {"a/1", "a/2", "a/3"}) texts.put(aid, "d/1 2\nb/1 1\n");
+	assertEquals(3, IndexFiles.foldDelta(indexDir, texts, YEAR));
+	checkFolded();
+    }
+}